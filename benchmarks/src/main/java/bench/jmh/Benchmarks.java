@@ -0,0 +1,23 @@
+package bench.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Запуск тестов JMH с профилировщиком сборщика мусора: к каждому результату добавляются
+ * gc.alloc.rate.norm (байт на операцию во всех потоках, включая потоки сервера) и число сборок.
+ * Параметры командной строки те же, что у JMH, например:
+ * java -jar benchmarks.jar ClientHandler -p strategy=ZERO_COPY -rf json
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
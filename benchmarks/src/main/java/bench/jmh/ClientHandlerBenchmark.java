@@ -0,0 +1,155 @@
+package bench.jmh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import lesson1.common.BufferPool;
+import lesson1.common.FileTransfer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Загрузка и скачивание файла старым протоколом через {@link lesson1.server.ClientHandler}
+ * при разных способах передачи и размерах буфера сервера. Результат - МБ/с.
+ * Способ и буфер задаются свойствами storage.transfer и storage.buffer до загрузки классов
+ * сервера, поэтому каждая комбинация параметров должна идти в своем форке (-f 0 не подходит).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientHandlerBenchmark {
+    private static final int FILE_MB = 32;
+    private static final long FILE_SIZE = FILE_MB * 1024L * 1024L;
+    private static final String NAME = "bench.bin";
+
+    @Param({"ZERO_COPY", "POOLED_BUFFER"})
+    public FileTransfer.Mode strategy;
+
+    @Param({"65536", "262144", "1048576"})
+    public int bufferSize;
+
+    private Path dir;
+    private Path source;
+    private FileChannel file;
+    private SocketChannel channel;
+    private ByteBuffer sink;
+    private byte[] uploadHeader;
+    private byte[] downloadHeader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("storage.transfer", strategy == FileTransfer.Mode.POOLED_BUFFER ? "pooled" : "zero-copy");
+        System.setProperty("storage.buffer", String.valueOf(bufferSize));
+        if (FileTransfer.defaultTransfer().mode() != strategy || BufferPool.shared().bufferSize() != bufferSize) {
+            throw new IllegalStateException("Server transfer is already configured, run each parameter set in a fork");
+        }
+        dir = Files.createTempDirectory("client-handler-bench");
+        source = Servers.randomFile(dir, "source.bin", FILE_SIZE);
+        file = FileChannel.open(source, StandardOpenOption.READ);
+        int port = Servers.storage(dir.resolve("server"));
+        channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        sink = ByteBuffer.allocateDirect(bufferSize);
+        uploadHeader = header("upload", NAME, FILE_SIZE);
+        downloadHeader = header("download", NAME, -1);
+        upload();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        file.close();
+        Servers.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_MB)
+    public void upload() throws IOException {
+        writeFully(ByteBuffer.wrap(uploadHeader));
+        for (long sent = 0; sent < FILE_SIZE; ) {
+            sent += file.transferTo(sent, FILE_SIZE - sent, channel);
+        }
+        expect("DONE");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_MB)
+    public long download() throws IOException {
+        writeFully(ByteBuffer.wrap(downloadHeader));
+        expect("FILE");
+        ByteBuffer length = ByteBuffer.allocate(Long.BYTES);
+        readFully(length);
+        long remaining = length.flip().getLong();
+        long total = remaining;
+        while (remaining > 0) {
+            sink.clear().limit((int) Math.min(sink.capacity(), remaining));
+            int read = channel.read(sink);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            remaining -= read;
+        }
+        return total;
+    }
+
+    private static byte[] header(String command, String name, long size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(command);
+        out.writeUTF(name);
+        if (size >= 0) {
+            out.writeLong(size);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void expect(String reply) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(Short.BYTES);
+        readFully(length);
+        ByteBuffer text = ByteBuffer.allocate(length.flip().getShort() & 0xFFFF);
+        readFully(text);
+        String actual = new String(text.array(), StandardCharsets.UTF_8);
+        if (!reply.equals(actual)) {
+            throw new IOException("Expected " + reply + ", got " + actual);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import lesson1.client.ClusterClient;
+import lesson1.common.ClusterMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Рост пропускной способности кластера с числом узлов. Узлы - отдельные процессы lesson1.server.Server
+ * на этой машине, каждый со своим портом, каталогом и одним реактором, как небольшие машины.
+ * Одна операция - clients клиентов {@link ClusterClient} одновременно загрузили или скачали по файлу;
+ * пропускная способность = clients * fileKb / время операции (без учета копий).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClusterBenchmark {
+    // файлов на клиента: имена расходятся по кольцу, а не ложатся на один узел
+    private static final int FILES = 16;
+
+    @Param({"1", "2", "4"})
+    public int nodes;
+
+    @Param({"1"})
+    public int replicas;
+
+    @Param({"8"})
+    public int clients;
+
+    @Param({"1024"})
+    public int fileKb;
+
+    private Path dir;
+    private Path source;
+    private final List<Process> processes = new ArrayList<>();
+    private ClusterClient[] connections;
+    private Path[] targets;
+    private CompletableFuture<?>[] pending;
+    private int round;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("cluster-bench");
+        source = Servers.randomFile(dir, "source.bin", fileKb * 1024L);
+        String seed = start();
+        connections = new ClusterClient[clients];
+        targets = new Path[clients];
+        pending = new CompletableFuture<?>[clients];
+        for (int i = 0; i < clients; i++) {
+            connections[i] = ClusterClient.connect(ClusterMap.host(seed), ClusterMap.port(seed));
+            targets[i] = dir.resolve("download-" + i + ".bin");
+        }
+        for (int i = 0; i < FILES; i++) {
+            upload();
+        }
+        download();
+        if (Files.size(targets[0]) != Files.size(source)) {
+            throw new IllegalStateException("Cluster transfer is broken");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        for (ClusterClient connection : connections) {
+            connection.close();
+        }
+        for (Process process : processes) {
+            process.destroyForcibly().waitFor();
+        }
+        Servers.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void upload() {
+        String suffix = "-" + next() + ".bin";
+        for (int i = 0; i < clients; i++) {
+            pending[i] = connections[i].upload(source, "client-" + i + suffix, null);
+        }
+        await();
+    }
+
+    @Benchmark
+    public void download() {
+        String suffix = "-" + next() + ".bin";
+        for (int i = 0; i < clients; i++) {
+            pending[i] = connections[i].download("client-" + i + suffix, targets[i], null);
+        }
+        await();
+    }
+
+    private int next() {
+        round = (round + 1) % FILES;
+        return round;
+    }
+
+    // неудачная операция не должна сойти за быструю
+    private void await() {
+        CompletableFuture.allOf(pending).join();
+        for (CompletableFuture<?> operation : pending) {
+            Object status = operation.join();
+            if (!"DONE".equals(status)) {
+                throw new IllegalStateException("Cluster operation failed: " + status);
+            }
+        }
+    }
+
+    /**
+     * Запуск узлов и ожидание, пока все начнут принимать соединения
+     *
+     * @return адрес первого узла
+     */
+    private String start() throws IOException {
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            addresses.add("localhost:" + Servers.freePort());
+        }
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        for (int i = 0; i < nodes; i++) {
+            String node = addresses.get(i);
+            ProcessBuilder builder = new ProcessBuilder(java,
+                "-cp", System.getProperty("java.class.path"),
+                "-Dstorage.port=" + ClusterMap.port(node),
+                "-Dstorage.root=" + dir.resolve("node-" + i),
+                "-Dstorage.cluster=" + String.join(",", addresses),
+                "-Dstorage.replicas=" + replicas,
+                "-Dstorage.reactors=1",
+                "-Dstorage.metricsPort=0",
+                "lesson1.server.Server");
+            builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+            processes.add(builder.start());
+        }
+        for (String node : addresses) {
+            Servers.awaitPort(ClusterMap.port(node));
+        }
+        return addresses.get(0);
+    }
+}
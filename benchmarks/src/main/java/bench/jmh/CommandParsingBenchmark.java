@@ -0,0 +1,60 @@
+package bench.jmh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import lesson2.nio.CommandParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Разбор строк команд прямо в буфере, как это делает {@link lesson2.nio.NioTelnetServer}:
+ * поиск конца строки, сравнение слова команды и чтение числа. Выделений памяти быть не должно.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+    private static final byte[] HELP = CommandParser.word("--help");
+    private static final byte[] LS = CommandParser.word("ls");
+    private static final byte[] PAGE_SIZE = CommandParser.word("-n");
+
+    private final ByteBuffer lines = ByteBuffer.allocateDirect(512)
+        .put("ls -n 100 file\r\n--help\r\nmsg alice,bob hello there\r\nls\r\n".getBytes(StandardCharsets.US_ASCII))
+        .flip();
+
+    @Benchmark
+    public int parse() {
+        ByteBuffer in = lines;
+        in.position(0);
+        int result = 0;
+        int end;
+        while ((end = CommandParser.lineEnd(in)) >= 0) {
+            int start = in.position();
+            in.position(end + 1);
+            int trimmed = CommandParser.trimEnd(in, start, end);
+            if (CommandParser.is(in, start, trimmed, HELP)) {
+                result++;
+            } else if (CommandParser.isCommand(in, start, trimmed, LS)) {
+                int flag = CommandParser.skipSpaces(in, start + LS.length, trimmed);
+                int flagEnd = CommandParser.wordEnd(in, flag, trimmed);
+                if (CommandParser.is(in, flag, flagEnd, PAGE_SIZE)) {
+                    int value = CommandParser.skipSpaces(in, flagEnd, trimmed);
+                    result += CommandParser.parseInt(in, value, CommandParser.wordEnd(in, value, trimmed));
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,168 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import lesson1.common.ChunkRef;
+import lesson1.common.ContentChunker;
+import lesson1.server.ChunkStore;
+import lesson1.server.Storage;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Дедупликация в хранилище частей на нескольких версиях одного файла с правками:
+ * разбиение файла на части и прием всех версий в пустое хранилище. Результат - мс на операцию;
+ * у приема счетчики storedBytes и totalBytes показывают, сколько данных пришлось сохранить.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DedupBenchmark {
+    @Param({"16"})
+    public int fileMb;
+
+    @Param({"5"})
+    public int versions;
+
+    private final ContentChunker chunker = new ContentChunker();
+    private Path dir;
+    private byte[][] data;
+    private Path[] files;
+    private int next;
+
+    /**
+     * Объем данных за итерацию: сколько принято и сколько из этого оказалось новым
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Volume {
+        public long storedBytes;
+        public long totalBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            storedBytes = 0;
+            totalBytes = 0;
+        }
+    }
+
+    /**
+     * Пустое хранилище для каждого приема, иначе все части уже были бы в нем
+     */
+    @State(Scope.Thread)
+    public static class Store {
+        private Path dir;
+        ChunkStore chunks;
+
+        @Setup(Level.Invocation)
+        public void create() throws IOException {
+            dir = Files.createTempDirectory("dedup-bench-store");
+            chunks = new Storage(dir).chunkStore();
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete() throws IOException {
+            Servers.deleteRecursively(dir);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("dedup-bench");
+        Random random = new Random(42);
+        data = new byte[versions][];
+        files = new Path[versions];
+        data[0] = new byte[fileMb * 1024 * 1024];
+        random.nextBytes(data[0]);
+        for (int version = 0; version < versions; version++) {
+            if (version > 0) {
+                data[version] = edit(data[version - 1], random);
+            }
+            files[version] = dir.resolve("v" + version);
+            Files.write(files[version], data[version]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Servers.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public int split() throws IOException {
+        Path file = files[next];
+        next = (next + 1) % versions;
+        return split(file).size();
+    }
+
+    @Benchmark
+    public int ingest(Store store, Volume volume) throws IOException {
+        Set<String> unique = new HashSet<>();
+        for (int version = 0; version < versions; version++) {
+            List<ChunkRef> chunks = split(files[version]);
+            for (ChunkRef chunk : chunks) {
+                if (unique.add(chunk.hex())) {
+                    byte[] bytes = new byte[chunk.getLength()];
+                    System.arraycopy(data[version], (int) chunk.getOffset(), bytes, 0, chunk.getLength());
+                    store.chunks.put(chunk.getHash(), bytes, bytes.length);
+                    volume.storedBytes += chunk.getLength();
+                }
+            }
+            store.chunks.putManifest("v" + version, chunks);
+            volume.totalBytes += data[version].length;
+        }
+        return unique.size();
+    }
+
+    private List<ChunkRef> split(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return chunker.split(channel);
+        }
+    }
+
+    // следующая версия: несколько вставок и замен в случайных местах и дописанный хвост
+    private static byte[] edit(byte[] data, Random random) {
+        byte[] insert = new byte[100];
+        byte[] result = data;
+        for (int i = 0; i < 20; i++) {
+            random.nextBytes(insert);
+            int position = random.nextInt(result.length);
+            byte[] next = new byte[result.length + insert.length];
+            System.arraycopy(result, 0, next, 0, position);
+            System.arraycopy(insert, 0, next, position, insert.length);
+            System.arraycopy(result, position, next, position + insert.length, result.length - position);
+            result = next;
+            result[random.nextInt(result.length)] ^= 0x5A;
+        }
+        byte[] tail = new byte[result.length + 256 * 1024];
+        System.arraycopy(result, 0, tail, 0, result.length);
+        for (int i = result.length; i < tail.length; i++) {
+            tail[i] = (byte) random.nextInt();
+        }
+        return tail;
+    }
+}
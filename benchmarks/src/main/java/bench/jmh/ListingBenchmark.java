@@ -0,0 +1,99 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import lesson1.common.FileInfo;
+import lesson1.server.MetadataIndex;
+import lesson1.server.Storage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Список каталога при разном числе файлов: обход индекса хранилища и команда ls telnet-сервера
+ * целиком, одной страницей и по префиксу. Файлы есть только в индексе, на диске их нет.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int files;
+
+    private Path dir;
+    private Storage storage;
+    private SocketChannel channel;
+    private ByteBuffer reply;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("listing-bench");
+        storage = new Storage(dir.resolve("server"));
+        MetadataIndex index = storage.index();
+        for (int i = 0; i < files; i++) {
+            index.put(new FileInfo(String.format("file-%07d.dat", i), i, 0, null, false));
+        }
+        int port = Servers.telnet(storage);
+        channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        reply = ByteBuffer.allocateDirect(64 * 1024);
+        Servers.readReply(channel, reply);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        Servers.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public int index() throws IOException {
+        int count = 0;
+        for (FileInfo ignored : storage.list("", null)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int ls() throws IOException {
+        return command("ls\n");
+    }
+
+    @Benchmark
+    public int lsPage() throws IOException {
+        return command("ls -n 100\n");
+    }
+
+    @Benchmark
+    public int lsPrefix() throws IOException {
+        return command("ls file-00005\n");
+    }
+
+    private int command(String line) throws IOException {
+        ByteBuffer request = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+        return Servers.readReply(channel, reply);
+    }
+}
@@ -0,0 +1,90 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import lesson1.client.StorageClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Полный путь через loopback: clients клиентов {@link StorageClient} одновременно загружают
+ * или скачивают по файлу с сервером хранилища в том же процессе. Одна операция - все клиенты
+ * закончили; пропускная способность = clients * fileKb / время операции.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    @Param({"1", "8", "32"})
+    public int clients;
+
+    @Param({"64", "4096"})
+    public int fileKb;
+
+    private Path dir;
+    private Path source;
+    private StorageClient[] connections;
+    private Path[] targets;
+    private CompletableFuture<?>[] pending;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("loopback-bench");
+        source = Servers.randomFile(dir, "source.bin", fileKb * 1024L);
+        int port = Servers.storage(dir.resolve("server"));
+        connections = new StorageClient[clients];
+        targets = new Path[clients];
+        pending = new CompletableFuture<?>[clients];
+        for (int i = 0; i < clients; i++) {
+            connections[i] = new StorageClient("localhost", port);
+            targets[i] = dir.resolve("download-" + i + ".bin");
+        }
+        upload();
+        download();
+        if (Files.size(targets[0]) != Files.size(source)) {
+            throw new IllegalStateException("Loopback transfer is broken");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (StorageClient connection : connections) {
+            connection.close();
+        }
+        Servers.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void upload() {
+        for (int i = 0; i < clients; i++) {
+            pending[i] = connections[i].upload(source, "file-" + i + ".bin");
+        }
+        CompletableFuture.allOf(pending).join();
+    }
+
+    @Benchmark
+    public void download() {
+        for (int i = 0; i < clients; i++) {
+            pending[i] = connections[i].download("file-" + i + ".bin", targets[i]);
+        }
+        CompletableFuture.allOf(pending).join();
+    }
+}
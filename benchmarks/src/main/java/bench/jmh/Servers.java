@@ -0,0 +1,149 @@
+package bench.jmh;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+import lesson1.server.Server;
+import lesson1.server.Storage;
+import lesson2.nio.NioTelnetServer;
+
+/**
+ * Серверы внутри процесса теста: принимающий поток сервера - демон, он завершается вместе с форком JMH.
+ * Метрики по HTTP не публикуются, чтобы форки не занимали порт.
+ */
+final class Servers {
+    private static final byte[] PROMPT = ">: ".getBytes(StandardCharsets.UTF_8);
+
+    private Servers() {
+    }
+
+    static int storage(Path root) throws IOException {
+        System.setProperty("storage.metricsPort", "0");
+        int port = freePort();
+        start("storage-server", () -> new Server(root, port, Runtime.getRuntime().availableProcessors()));
+        return awaitPort(port);
+    }
+
+    static int telnet(Storage storage) throws IOException {
+        System.setProperty("telnet.metricsPort", "0");
+        int port = freePort();
+        start("telnet-server", () -> {
+            try {
+                new NioTelnetServer(storage, port);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        return awaitPort(port);
+    }
+
+    private static void start(String name, Runnable server) {
+        Thread thread = new Thread(server, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // сервер начинает принимать соединения не сразу после запуска потока
+    static int awaitPort(int port) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try (SocketChannel ignored = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+                return port;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Файл из случайных байт: сжатие и дедупликация на нем ничего не выигрывают
+     */
+    static Path randomFile(Path dir, String name, long size) throws IOException {
+        Path file = dir.resolve(name);
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < size; ) {
+                ThreadLocalRandom.current().nextBytes(buffer.array());
+                buffer.clear().limit((int) Math.min(buffer.capacity(), size - written));
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Ответ telnet-сервера целиком: он заканчивается приглашением "...>: ".
+     * Длинный ответ читается через буфер по частям, возвращается его длина.
+     */
+    static int readReply(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int total = 0;
+        while (true) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            total += read;
+            if (endsWith(buffer, PROMPT)) {
+                return total;
+            }
+            if (!buffer.hasRemaining()) {
+                // хвост оставляем: приглашение может прийти разрезанным
+                buffer.flip().position(buffer.limit() - PROMPT.length);
+                buffer.compact();
+            }
+        }
+    }
+
+    private static boolean endsWith(ByteBuffer buffer, byte[] suffix) {
+        int end = buffer.position();
+        if (end < suffix.length) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length; i++) {
+            if (buffer.get(end - suffix.length + i) != suffix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
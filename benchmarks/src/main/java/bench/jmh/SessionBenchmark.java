@@ -0,0 +1,134 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import lesson1.server.Storage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Стоимость команды telnet-сервера в зависимости от числа подключенных клиентов.
+ * Один клиент шлет сообщения другому (msg) и пустые команды пачками по WINDOW,
+ * остальные соединения простаивают. Для 100k соединений нужен ulimit -n больше 200k.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionBenchmark {
+    private static final int WINDOW = 8;
+
+    @Param({"10", "1000", "5000"})
+    public int connections;
+
+    @Param({"noop", "msg receiver hello"})
+    public String command;
+
+    private Path dir;
+    private SocketChannel sender;
+    private SocketChannel receiver;
+    private final List<SocketChannel> idle = new ArrayList<>();
+    private ByteBuffer request;
+    private ByteBuffer reply;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("session-bench");
+        int port = Servers.telnet(new Storage(dir.resolve("server")));
+        reply = ByteBuffer.allocateDirect(64 * 1024);
+        sender = connect(port, "sender");
+        receiver = connect(port, "receiver");
+        Thread drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            try {
+                while (receiver.read(buffer.clear()) >= 0) {
+                    // сообщения только вычитываются
+                }
+            } catch (IOException e) {
+                // соединение закрыто в конце теста
+            }
+        }, "session-bench-drain");
+        drain.setDaemon(true);
+        drain.start();
+        while (idle.size() < connections) {
+            idle.add(SocketChannel.open(new InetSocketAddress("localhost", port)));
+        }
+        request = ByteBuffer.wrap((command + "\n").repeat(WINDOW).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (SocketChannel channel : idle) {
+            channel.close();
+        }
+        sender.close();
+        receiver.close();
+        Servers.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public void command() throws IOException {
+        request.rewind();
+        while (request.hasRemaining()) {
+            sender.write(request);
+        }
+        awaitPrompts(sender, reply, WINDOW);
+    }
+
+    private SocketChannel connect(int port, String nickname) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        awaitPrompts(channel, reply, 1);
+        channel.write(ByteBuffer.wrap(("nick " + nickname + "\n").getBytes(StandardCharsets.UTF_8)));
+        awaitPrompts(channel, reply, 1);
+        return channel;
+    }
+
+    // каждый ответ заканчивается приглашением "имя>: "; пачка ответов может прийти одним чтением
+    private static void awaitPrompts(SocketChannel channel, ByteBuffer buffer, int prompts) throws IOException {
+        int seen = 0;
+        int matched = 0;
+        while (seen < prompts) {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Server closed connection");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (matched == 0 && b == '>' || matched == 1 && b == ':' || matched == 2 && b == ' ') {
+                    matched++;
+                } else {
+                    matched = b == '>' ? 1 : 0;
+                }
+                if (matched == 3) {
+                    seen++;
+                    matched = 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import lesson1.server.Storage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Полный цикл команда - ответ telnet-сервера через loopback: разбор строки, формирование ответа
+ * и очередь записи сервера. Каталог содержит 100 файлов, чтобы ls выдавал непустой список.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TelnetCommandBenchmark {
+    @Param({"noop", "--help", "ls none", "ls -n 10"})
+    public String command;
+
+    private Path dir;
+    private SocketChannel channel;
+    private ByteBuffer request;
+    private ByteBuffer reply;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("telnet-command-bench");
+        Storage storage = new Storage(dir.resolve("server"));
+        for (int i = 0; i < 100; i++) {
+            storage.touch(String.format("file-%03d.txt", i));
+        }
+        int port = Servers.telnet(storage);
+        channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        request = ByteBuffer.wrap((command + "\n").getBytes(StandardCharsets.UTF_8));
+        reply = ByteBuffer.allocateDirect(64 * 1024);
+        readReply();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        Servers.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        request.rewind();
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+        return readReply();
+    }
+
+    private int readReply() throws IOException {
+        return Servers.readReply(channel, reply);
+    }
+}
@@ -0,0 +1,72 @@
+package lesson1.client;
+
+import java.util.Arrays;
+
+import lesson1.common.Delta;
+
+/**
+ * Подписи блоков копии файла на сервере, ответ на SIGNATURE.
+ * Последний блок может быть короче остальных.
+ */
+public class BlockSignatures {
+    private final long size;
+    private final byte[] hash;
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[] strong;
+    private int count;
+
+    BlockSignatures(long size, byte[] hash, int blockSize) {
+        this.size = size;
+        this.hash = hash;
+        this.blockSize = blockSize;
+        int blocks = (int) ((size + blockSize - 1) / blockSize);
+        this.weak = new int[blocks];
+        this.strong = new byte[blocks * Delta.STRONG_SIZE];
+    }
+
+    void add(int weakSum, byte[] strongSum) {
+        weak[count] = weakSum;
+        System.arraycopy(strongSum, 0, strong, count * Delta.STRONG_SIZE, Delta.STRONG_SIZE);
+        count++;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * SHA-256 копии на сервере или null, если он не известен
+     */
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Сколько блоков пришло; у сжатого при хранении файла - ни одного
+     */
+    public int count() {
+        return count;
+    }
+
+    int capacity() {
+        return weak.length;
+    }
+
+    public int weak(int block) {
+        return weak[block];
+    }
+
+    public boolean strongEquals(int block, byte[] strongSum) {
+        int from = block * Delta.STRONG_SIZE;
+        return Arrays.equals(strong, from, from + Delta.STRONG_SIZE, strongSum, 0, Delta.STRONG_SIZE);
+    }
+
+    public int blockLength(int block) {
+        return (int) Math.min(blockSize, size - (long) block * blockSize);
+    }
+}
@@ -0,0 +1,230 @@
+package lesson1.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import lesson1.common.ChunkState;
+
+/**
+ * Передача файла частями по нескольким соединениям параллельно.
+ * Сервер подтверждает каждую записанную часть, поэтому после обрыва
+ * повторный вызов передает только недостающие части.
+ */
+public class ChunkedTransfer implements Closeable {
+    // сколько частей одновременно в пути по одному соединению
+    private static final int WINDOW = 2;
+
+    private final List<StorageClient> connections = new ArrayList<>();
+    private final int chunkSize;
+
+    public ChunkedTransfer(String host, int port, int streams) throws IOException {
+        this(host, port, streams, ChunkState.DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedTransfer(String host, int port, int streams, int chunkSize) throws IOException {
+        this.chunkSize = chunkSize;
+        try {
+            for (int i = 0; i < streams; i++) {
+                connections.add(new StorageClient(host, port));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public CompletableFuture<String> upload(Path source, String name) {
+        return upload(source, name, null);
+    }
+
+    public CompletableFuture<String> upload(Path source, String name, Progress progress) {
+        FileChannel file;
+        long size;
+        try {
+            file = FileChannel.open(source, StandardOpenOption.READ);
+            size = file.size();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        StorageClient first = connections.get(0);
+        return first.openChunked(name, size, chunkSize)
+            .thenCompose(state -> {
+                Queue<Integer> missing = missingChunks(state, progress);
+                return runLanes(client -> {
+                    Integer chunk = missing.poll();
+                    if (chunk == null) {
+                        return null;
+                    }
+                    return client.putChunk(name, chunk, file, state.offset(chunk), state.length(chunk), progress)
+                        .thenApply(ChunkedTransfer::requireDone);
+                });
+            })
+            .thenCompose(ignored -> first.commitChunked(name))
+            .whenComplete((result, error) -> closeQuietly(file));
+    }
+
+    /**
+     * Скачивание в target. Пока файл не собран, данные лежат в target.part,
+     * подтвержденные части - в target.part.state.
+     */
+    public CompletableFuture<String> download(String name, Path target) {
+        return download(name, target, null);
+    }
+
+    /**
+     * После отмены через progress target.part и target.part.state остаются,
+     * и следующее скачивание продолжает с подтвержденных частей
+     */
+    public CompletableFuture<String> download(String name, Path target, Progress progress) {
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        Path stateFile = target.resolveSibling(target.getFileName() + ".part.state");
+        FileChannel file;
+        try {
+            file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return connections.get(0).read(name, 0, 0, file, 0)
+            .thenCompose(size -> {
+                ChunkState state = loadState(stateFile, size);
+                Queue<Integer> missing = missingChunks(state, progress);
+                return runLanes(client -> {
+                    Integer chunk = missing.poll();
+                    if (chunk == null) {
+                        return null;
+                    }
+                    long offset = state.offset(chunk);
+                    return client.read(name, offset, state.length(chunk), file, offset, progress)
+                        .thenAccept(ignored -> {
+                            try {
+                                file.force(false);
+                                state.markDone(chunk);
+                                state.save(stateFile);
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        });
+                }).thenApply(ignored -> size);
+            })
+            .thenApply(size -> {
+                try {
+                    file.truncate(size);
+                    file.close();
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Files.deleteIfExists(stateFile);
+                    return "DONE";
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            })
+            .whenComplete((result, error) -> {
+                closeQuietly(file);
+                if (error != null && !Files.exists(stateFile)) {
+                    // ни одной части не получено - продолжать нечего
+                    try {
+                        Files.deleteIfExists(part);
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+    }
+
+    private ChunkState loadState(Path stateFile, long size) {
+        try {
+            if (Files.exists(stateFile)) {
+                ChunkState saved = ChunkState.load(stateFile);
+                if (saved.sameLayout(size, chunkSize)) {
+                    return saved;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // испорченное состояние - начинаем заново
+        }
+        return new ChunkState(size, chunkSize);
+    }
+
+    /**
+     * Части, подтвержденные до обрыва, сразу засчитываются в progress
+     */
+    private static Queue<Integer> missingChunks(ChunkState state, Progress progress) {
+        Queue<Integer> missing = new ConcurrentLinkedQueue<>();
+        long done = 0;
+        long total = 0;
+        for (int chunk = 0; chunk < state.chunkCount(); chunk++) {
+            if (!state.isDone(chunk)) {
+                missing.add(chunk);
+            } else {
+                done += state.length(chunk);
+            }
+            total += state.length(chunk);
+        }
+        if (progress != null) {
+            progress.expect(total);
+            progress.add(done);
+        }
+        return missing;
+    }
+
+    private interface ChunkTask {
+        /**
+         * Следующая часть для соединения или null, если части закончились
+         */
+        CompletableFuture<?> next(StorageClient client);
+    }
+
+    /**
+     * По каждому соединению запускается WINDOW цепочек, каждая берет следующую часть после подтверждения предыдущей
+     */
+    private CompletableFuture<Void> runLanes(ChunkTask task) {
+        List<CompletableFuture<Void>> lanes = new ArrayList<>();
+        for (StorageClient client : connections) {
+            for (int i = 0; i < WINDOW; i++) {
+                lanes.add(lane(client, task));
+            }
+        }
+        return CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private static CompletableFuture<Void> lane(StorageClient client, ChunkTask task) {
+        CompletableFuture<?> step = task.next(client);
+        if (step == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return step.thenCompose(ignored -> lane(client, task));
+    }
+
+    private static String requireDone(String status) {
+        if (!"DONE".equals(status)) {
+            throw new CompletionException(new IOException(status));
+        }
+        return status;
+    }
+
+    private static void closeQuietly(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        for (StorageClient connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -1,56 +1,91 @@
 package lesson1.client;
 
 import java.awt.*;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import javax.swing.*;
 
+import lesson1.common.FileInfo;
+
+/**
+ * Окно клиента. Загрузки, скачивания и синхронизация встают в {@link TransferManager} и идут
+ * параллельно вне потока интерфейса; таблица показывает ход и скорость каждой передачи,
+ * выбранные передачи можно отменить. Список файлов обновляет {@link FolderWatcher}.
+ */
 public class Client {
-    private final Socket socket;
-    private final DataInputStream in;
-    private final DataOutputStream out;
+    // файлы больше порога загружаются частями в несколько соединений
+    private static final long CHUNKED_THRESHOLD = 64L * 1024 * 1024;
+    private static final int CHUNKED_STREAMS = 4;
+    private static final int PARALLEL_TRANSFERS = 3;
+    private static final int REFRESH_MILLIS = 250;
+    private static final Path ROOT = Paths.get("client");
+
+    private final StorageClient storage;
+    private final ChunkedTransfer chunked;
+    private final DedupUploader dedup;
+    private final DeltaSync delta;
+    private final DirectorySync directory;
+    private final LocalHashes hashes;
+    private final TransferManager transfers = new TransferManager(PARALLEL_TRANSFERS);
 
     public Client() throws IOException {
-        socket = new Socket("localhost", 1235);
-        in = new DataInputStream(socket.getInputStream());
-        out = new DataOutputStream(socket.getOutputStream());
+        storage = new StorageClient("localhost", 1235);
+        chunked = new ChunkedTransfer("localhost", 1235, CHUNKED_STREAMS);
+        dedup = new DedupUploader(storage);
+        delta = new DeltaSync(storage);
+        directory = new DirectorySync(storage);
+        hashes = new LocalHashes(Files.createDirectories(Paths.get("downloads")));
         runClient();
     }
 
-    private void runClient() {
+    private void runClient() throws IOException {
         JFrame frame = new JFrame("Cloud Storage");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setSize(400, 300);
+        frame.setSize(640, 480);
 
         JTextField textField = new JTextField();
 
-        JList<String> fileList = new JList<>();
+        DefaultListModel<String> listModel = new DefaultListModel<>();
+        JList<String> fileList = new JList<>(listModel);
         fileList.addListSelectionListener(a -> {
             textField.setText(fileList.getSelectedValue());
         });
 
+        TransferTable transferModel = new TransferTable(transfers);
+        JTable transferTable = new JTable(transferModel);
+        transferTable.getColumnModel().getColumn(TransferTable.PROGRESS_COLUMN)
+            .setCellRenderer(new TransferTable.ProgressRenderer());
+
         JButton uploadButton = new JButton("Upload");
         JButton downloadButton = new JButton("Download");
         JButton deleteButton = new JButton("Delete");
+        JButton syncButton = new JButton("Sync");
+        JButton cancelButton = new JButton("Cancel");
+        JButton clearButton = new JButton("Clear");
 
         frame.getContentPane().add(BorderLayout.NORTH, textField);
-        frame.getContentPane().add(BorderLayout.CENTER, fileList);
+        JSplitPane center = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
+            new JScrollPane(fileList), new JScrollPane(transferTable));
+        center.setResizeWeight(0.5);
+        frame.getContentPane().add(BorderLayout.CENTER, center);
 
         JPanel footerJPanel = new JPanel();
         footerJPanel.setLayout(new GridLayout(2, 1, 1, 2));
 
         JPanel buttonPanel = new JPanel();
-        buttonPanel.setLayout(new GridLayout(1, 3, 2, 1));
+        buttonPanel.setLayout(new GridLayout(1, 6, 2, 1));
         buttonPanel.add(uploadButton);
         buttonPanel.add(downloadButton);
         buttonPanel.add(deleteButton);
+        buttonPanel.add(syncButton);
+        buttonPanel.add(cancelButton);
+        buttonPanel.add(clearButton);
 
         footerJPanel.add(buttonPanel);
 
@@ -59,112 +94,143 @@ public class Client {
 
         frame.getContentPane().add(BorderLayout.SOUTH, footerJPanel);
 
-        fillFileList(fileList);
+        watchFileList(listModel);
 
         frame.setVisible(true);
 
+        new Timer(REFRESH_MILLIS, a -> transferModel.refresh()).start();
+
         uploadButton.addActionListener(a -> {
-            statusField.setText(sendFile(textField.getText()));
+            String filename = textField.getText();
+            showStatus(statusField, transfers.submit("upload " + filename, progress -> sendFile(filename, progress)));
         });
 
         downloadButton.addActionListener(a -> {
-            statusField.setText(downloadFile(textField.getText()));
+            String filename = textField.getText();
+            showStatus(statusField,
+                transfers.submit("download " + filename, progress -> downloadFile(filename, progress)));
         });
 
         deleteButton.addActionListener(a -> {
-            statusField.setText(deleteFile(textField.getText()));
+            showStatus(statusField, deleteFile(textField.getText()));
         });
-    }
 
-    private void fillFileList(JList<String> fileList) {
-        DefaultListModel listModel = new DefaultListModel();
-        try {
-            Files.walk(Paths.get("client"))
-                .filter(Files::isRegularFile)
-                .forEach(it -> {
-                    listModel.addElement(it.getFileName().toString());
-                });
-            fileList.setModel(listModel);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // весь каталог client с корнем хранилища, в обе стороны
+        syncButton.addActionListener(a -> {
+            showStatus(statusField, transfers.submit("sync", progress -> directory.sync(ROOT, "", progress)));
+        });
+
+        cancelButton.addActionListener(a -> {
+            for (int row : transferTable.getSelectedRows()) {
+                transferModel.transfer(row).cancel();
+            }
+        });
+
+        clearButton.addActionListener(a -> {
+            transfers.removeFinished();
+            transferModel.refresh();
+        });
     }
 
-    private String sendFile(String filename) {
-        try {
-            File file = new File("client" + File.separator + filename);
-            if (file.exists()) {
-                out.writeUTF("upload");
-                out.writeUTF(filename);
-                long length = file.length();
-                out.writeLong(length);
-                FileInputStream fis = new FileInputStream(file);
-                int read = 0;
-                byte[] buffer = new byte[256];
-                while ((read = fis.read(buffer)) != -1) {
-                    out.write(buffer, 0, read);
-                }
-                out.flush();
-                String status = in.readUTF();
-                return status;
-            } else {
-                return "File is not exists";
+    /**
+     * Список собирается один раз, дальше в модель приходят только изменения
+     */
+    private void watchFileList(DefaultListModel<String> listModel) throws IOException {
+        new FolderWatcher(ROOT, new FolderWatcher.Listener() {
+            @Override
+            public void added(String name) {
+                SwingUtilities.invokeLater(() -> listModel.addElement(name));
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return "Something error";
+
+            @Override
+            public void removed(String name) {
+                SwingUtilities.invokeLater(() -> listModel.removeElement(name));
+            }
+        });
     }
 
-    private String downloadFile(String filename) {
-        try {
-            out.writeUTF("download");
-            out.writeUTF(filename);
+    // выполняется в потоке очереди: разбиение и хеширование файла не задерживают интерфейс
+    private CompletableFuture<String> sendFile(String filename, Progress progress) {
+        File file = ROOT.resolve(filename).toFile();
+        if (!file.exists()) {
+            return CompletableFuture.completedFuture("File is not exists");
+        }
+        if (file.length() >= CHUNKED_THRESHOLD) {
+            // измененный большой файл догружается отличиями от копии сервера
+            progress.expect(file.length());
+            return delta.upload(file.toPath(), filename, progress,
+                () -> chunked.upload(file.toPath(), filename, progress));
+        }
+        // на сервер уходят только части, которых у него еще нет
+        return dedup.upload(file.toPath(), filename, progress);
+    }
 
+    /**
+     * Файл, который уже скачан и с тех пор не менялся ни здесь, ни на сервере, не скачивается заново:
+     * хеш с сервера сравнивается с сохраненным после прошлого скачивания
+     */
+    private CompletableFuture<String> downloadFile(String filename, Progress progress) {
+        return storage.list(filename).thenCompose(files -> {
+            FileInfo remote = files.stream().filter(info -> info.getName().equals(filename)).findFirst().orElse(null);
+            if (remote == null) {
+                return CompletableFuture.completedFuture("FILE NOT FOUND");
+            }
             try {
-                String answer = in.readUTF();
-                if ("FILE".equals(answer)) {
-                    File file = new File("downloads" + File.separator + filename);
-                    if (!file.exists()) {
-                        file.createNewFile();
-                    }
-                    long size = in.readLong();
-                    FileOutputStream fos = new FileOutputStream(file);
-                    byte[] buffer = new byte[256];
-                    for (int i = 0; i < (size + 255) / 256; i++) { // FIXME
-                        int read = in.read(buffer);
-                        fos.write(buffer, 0, read);
-                    }
-                    fos.close();
-                    return "DONE";
-                } else {
-                    return answer;
+                if (hashes.matches(filename, remote.getHash())) {
+                    return CompletableFuture.completedFuture("UP TO DATE");
                 }
             } catch (IOException e) {
-                e.printStackTrace();
-                return e.getMessage();
+                // локальный файл недоступен - просто скачиваем
+            }
+            Path target = Paths.get("downloads", filename);
+            try {
+                // в списке есть и файлы подкаталогов
+                Files.createDirectories(target.getParent());
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            // скачивание частями продолжается с места обрыва, каждая часть сверяется по CRC32C.
+            // Файл на сервере мог смениться между списком и частями, поэтому собранный файл
+            // сверяется с хешем из списка; хеширование не занимает поток чтения ответов.
+            return chunked.download(filename, target, progress)
+                .thenApplyAsync(status -> {
+                    try {
+                        if (remote.hasHash() && !Arrays.equals(hashes.hash(filename), remote.getHash())) {
+                            throw new IOException("Downloaded file does not match the server hash: " + filename);
+                        }
+                        hashes.record(filename, remote.getHash());
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                    return status;
+                });
+        });
+    }
+
+    private CompletableFuture<String> deleteFile(String filename) {
+        File file = ROOT.resolve(filename).toFile();
+        if (!file.exists()) {
+            return CompletableFuture.completedFuture("File is not exists");
         }
-        return "Something error";
+        return storage.remove(filename);
     }
 
-    private String deleteFile(String filename) {
-        try {
-            File file = new File("client" + File.separator + filename);
-            if (file.exists()) {
-                out.writeUTF("remove");
-                out.writeUTF(filename);
-                String status = in.readUTF();
-                return status;
+    // результат приходит из потока чтения ответов, в интерфейс его передаем через EDT
+    private void showStatus(JTextField statusField, CompletableFuture<String> status) {
+        status.whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                error.printStackTrace();
+                statusField.setText("Something error");
             } else {
-                return "File is not exists";
+                statusField.setText(result);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return "Something error";
+        }));
+    }
+
+    private void showStatus(JTextField statusField, Transfer transfer) {
+        transfer.result().whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            statusField.setText(transfer.title() + ": " + transfer.status());
+        }));
     }
 
     public static void main(String[] args) throws IOException {
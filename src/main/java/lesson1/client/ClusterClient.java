@@ -0,0 +1,338 @@
+package lesson1.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import lesson1.common.ClusterMap;
+import lesson1.common.FileInfo;
+import lesson1.common.HashRing;
+
+/**
+ * Клиент кластера хранилища. Карту кластера он берет у любого узла и дальше сам находит владельцев
+ * файла на кольце {@link HashRing}, обращаясь к ним напрямую, без промежуточного узла.
+ * Файл пишется на replicas владельцев параллельно. Копия для недоступного владельца уходит
+ * подсказкой следующему узлу кольца, и тот передаст ее, когда владелец вернется.
+ * Читается самая новая из доступных копий.
+ */
+public class ClusterClient implements Closeable {
+    // недоступный узел не опрашивается это время
+    private static final long RETRY_NANOS = 1_000_000_000L;
+    private static final String HINTED = "HINTED";
+
+    private final ClusterMap map;
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    private static class Node {
+        private StorageClient client;
+        private long retryAt;
+    }
+
+    public ClusterClient(ClusterMap map) {
+        this.map = map;
+    }
+
+    /**
+     * Подключение через любой узел кластера. Одиночный сервер считается кластером из одного узла.
+     */
+    public static ClusterClient connect(String host, int port) throws IOException {
+        ClusterMap map;
+        try (StorageClient seed = new StorageClient(host, port)) {
+            map = seed.cluster().join();
+        } catch (CompletionException e) {
+            throw new IOException("Cannot read cluster map from " + host + ":" + port, e.getCause());
+        }
+        return new ClusterClient(map != null ? map : new ClusterMap(List.of(host + ":" + port), 1, 1));
+    }
+
+    public ClusterMap map() {
+        return map;
+    }
+
+    public CompletableFuture<String> upload(Path source, String name, Progress progress) {
+        if (progress != null) {
+            try {
+                progress.expect(Files.size(source) * map.replicas());
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return replicate(name, (client, owner) -> owner == null
+            ? client.upload(source, name, progress)
+            : client.hintUpload(source, name, owner, progress));
+    }
+
+    public CompletableFuture<String> remove(String name) {
+        return replicate(name, (client, owner) -> owner == null
+            ? client.remove(name)
+            : client.hintRemove(name, owner));
+    }
+
+    /**
+     * Самая новая копия с доступных владельцев; если копия не читается, берется следующая
+     */
+    public CompletableFuture<String> download(String name, Path target, Progress progress) {
+        List<String> owners = map.owners(name);
+        List<CompletableFuture<FileInfo>> found = new ArrayList<>();
+        for (String owner : owners) {
+            found.add(call(owner, client -> client.list(name)).thenApply(files -> find(files, name)));
+        }
+        return settled(found).thenCompose(ignored -> {
+            List<Map.Entry<String, FileInfo>> copies = new ArrayList<>();
+            Throwable error = null;
+            for (int i = 0; i < owners.size(); i++) {
+                try {
+                    FileInfo info = found.get(i).join();
+                    if (info != null) {
+                        copies.add(Map.entry(owners.get(i), info));
+                    }
+                } catch (CompletionException e) {
+                    error = e.getCause();
+                }
+            }
+            if (copies.isEmpty()) {
+                return error != null
+                    ? CompletableFuture.failedFuture(error)
+                    : CompletableFuture.completedFuture("FILE NOT FOUND");
+            }
+            copies.sort(Comparator.comparingLong(copy -> -copy.getValue().getModified()));
+            List<String> order = new ArrayList<>();
+            for (Map.Entry<String, FileInfo> copy : copies) {
+                order.add(copy.getKey());
+            }
+            return fetch(order.iterator(), name, target, progress);
+        });
+    }
+
+    private CompletableFuture<String> fetch(Iterator<String> candidates, String name, Path target, Progress progress) {
+        String node = candidates.next();
+        return call(node, client -> client.download(name, target, progress))
+            .handle((status, error) -> {
+                if (candidates.hasNext() && (error != null ? isDown(error) : !"DONE".equals(status))) {
+                    return fetch(candidates, name, target, progress);
+                }
+                return error != null
+                    ? CompletableFuture.<String>failedFuture(error)
+                    : CompletableFuture.completedFuture(status);
+            })
+            .thenCompose(Function.identity());
+    }
+
+    /**
+     * Файлы всех доступных узлов; из копий одного файла - самая новая
+     */
+    public CompletableFuture<List<FileInfo>> list(String prefix) {
+        List<CompletableFuture<List<FileInfo>>> pages = new ArrayList<>();
+        for (String node : map.nodes()) {
+            pages.add(call(node, client -> client.list(prefix)));
+        }
+        return settled(pages).thenApply(ignored -> {
+            Map<String, FileInfo> files = new TreeMap<>();
+            Throwable error = null;
+            boolean answered = false;
+            for (CompletableFuture<List<FileInfo>> page : pages) {
+                try {
+                    for (FileInfo info : page.join()) {
+                        files.merge(info.getName(), info, (a, b) -> a.getModified() >= b.getModified() ? a : b);
+                    }
+                    answered = true;
+                } catch (CompletionException e) {
+                    error = e.getCause();
+                }
+            }
+            if (!answered) {
+                throw new CompletionException(error);
+            }
+            return new ArrayList<>(files.values());
+        });
+    }
+
+    private interface Replica {
+        /**
+         * @param owner null - запрос владельцу, иначе подсказка для недоступного owner
+         */
+        CompletableFuture<String> send(StorageClient client, String owner);
+    }
+
+    /**
+     * Запрос всем владельцам имени параллельно; недоступных заменяют следующие узлы кольца
+     */
+    private CompletableFuture<String> replicate(String name, Replica replica) {
+        List<String> preference = map.ring().preferenceList(name);
+        int replicas = map.replicas();
+        // общий для всех копий: каждый запасной узел получает подсказку только для одного владельца
+        Iterator<String> substitutes = preference.subList(replicas, preference.size()).iterator();
+        List<CompletableFuture<String>> copies = new ArrayList<>();
+        for (String owner : preference.subList(0, replicas)) {
+            copies.add(call(owner, client -> replica.send(client, null))
+                .handle((status, error) -> error == null
+                    ? CompletableFuture.completedFuture(status)
+                    : handoff(error, owner, substitutes, replica))
+                .thenCompose(Function.identity()));
+        }
+        return settled(copies).thenApply(ignored -> summary(copies));
+    }
+
+    private CompletableFuture<String> handoff(Throwable error, String owner, Iterator<String> substitutes,
+                                              Replica replica) {
+        String substitute = null;
+        if (isDown(error)) {
+            synchronized (substitutes) {
+                substitute = substitutes.hasNext() ? substitutes.next() : null;
+            }
+        }
+        if (substitute == null) {
+            return CompletableFuture.failedFuture(error);
+        }
+        return call(substitute, client -> replica.send(client, owner))
+            .thenApply(status -> "DONE".equals(status) ? HINTED : status)
+            .handle((status, next) -> next == null
+                ? CompletableFuture.completedFuture(status)
+                : handoff(next, owner, substitutes, replica))
+            .thenCompose(Function.identity());
+    }
+
+    /**
+     * Итог записи копий: DONE, если все копии на месте; с подсказками или частью копий - DONE с пояснением;
+     * если ни одна копия не записана - ответ или ошибка узла
+     */
+    private static String summary(List<CompletableFuture<String>> copies) {
+        int stored = 0;
+        int hinted = 0;
+        String status = null;
+        Throwable error = null;
+        for (CompletableFuture<String> copy : copies) {
+            try {
+                String result = copy.join();
+                if ("DONE".equals(result)) {
+                    stored++;
+                } else if (HINTED.equals(result)) {
+                    hinted++;
+                } else if (status == null) {
+                    status = result;
+                }
+            } catch (CancellationException e) {
+                throw e;
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof CancellationException) {
+                    throw e;
+                }
+                error = e.getCause();
+            }
+        }
+        if (stored + hinted == 0) {
+            if (status != null) {
+                return status;
+            }
+            throw new CompletionException(error);
+        }
+        if (stored + hinted < copies.size()) {
+            return "DONE (" + (stored + hinted) + " of " + copies.size() + " replicas)";
+        }
+        return hinted == 0 ? "DONE" : "DONE (" + hinted + " hinted)";
+    }
+
+    /**
+     * Запрос к узлу. Если соединение с узлом не открывается или рвется, запрос завершается
+     * {@link ConnectException}, а узел какое-то время считается недоступным.
+     */
+    private <T> CompletableFuture<T> call(String node, Function<StorageClient, CompletableFuture<T>> request) {
+        StorageClient client;
+        try {
+            client = client(node);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new ConnectException("Node is down: " + node));
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        request.apply(client).whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+            } else if (!client.isOpen()) {
+                down(node, client);
+                result.completeExceptionally(new ConnectException("Node is down: " + node));
+            } else {
+                result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+            }
+        });
+        return result;
+    }
+
+    private static boolean isDown(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof ConnectException;
+    }
+
+    private synchronized StorageClient client(String node) throws IOException {
+        Node state = nodes.computeIfAbsent(node, n -> new Node());
+        if (state.client != null && state.client.isOpen()) {
+            return state.client;
+        }
+        if (System.nanoTime() - state.retryAt < 0) {
+            throw new ConnectException("Node is down: " + node);
+        }
+        try {
+            state.client = new StorageClient(ClusterMap.host(node), ClusterMap.port(node));
+            return state.client;
+        } catch (IOException e) {
+            state.client = null;
+            state.retryAt = System.nanoTime() + RETRY_NANOS;
+            throw e;
+        }
+    }
+
+    private synchronized void down(String node, StorageClient client) {
+        Node state = nodes.get(node);
+        if (state != null && state.client == client) {
+            state.client = null;
+            state.retryAt = System.nanoTime() + RETRY_NANOS;
+        }
+        closeQuietly(client);
+    }
+
+    private static FileInfo find(List<FileInfo> files, String name) {
+        for (FileInfo info : files) {
+            if (info.getName().equals(name)) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    // все запросы завершены, успешно или нет
+    private static CompletableFuture<Void> settled(List<? extends CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(futures.stream()
+            .map(future -> future.handle((value, error) -> null))
+            .toArray(CompletableFuture[]::new));
+    }
+
+    private static void closeQuietly(StorageClient client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+            // соединение уже разорвано
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Node node : nodes.values()) {
+            if (node.client != null) {
+                closeQuietly(node.client);
+            }
+        }
+        nodes.clear();
+    }
+}
@@ -0,0 +1,128 @@
+package lesson1.client;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import lesson1.common.ChunkRef;
+import lesson1.common.ContentChunker;
+
+/**
+ * Загрузка с дедупликацией: файл режется на части по содержимому,
+ * сервер сообщает, каких частей у него нет, и по сети уходят только они и манифест.
+ */
+public class DedupUploader {
+    // столько хешей помещается в один кадр CHUNK_QUERY с запасом
+    private static final int QUERY_BATCH = 3000;
+
+    private final StorageClient client;
+    private final ContentChunker chunker = new ContentChunker();
+
+    public DedupUploader(StorageClient client) {
+        this.client = client;
+    }
+
+    public CompletableFuture<String> upload(Path source, String name) {
+        return upload(source, name, null);
+    }
+
+    /**
+     * Разбиение читает весь файл в вызывающем потоке; части, которые есть на сервере,
+     * засчитываются в progress сразу после ответа на запрос
+     */
+    public CompletableFuture<String> upload(Path source, String name, Progress progress) {
+        FileChannel file;
+        List<ChunkRef> chunks;
+        // хеш всего файла считается в том же проходе, что и части; сервер хранит его в индексе
+        MessageDigest content = ContentChunker.sha256();
+        try {
+            file = FileChannel.open(source, StandardOpenOption.READ);
+            chunks = chunker.split(file, content);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long total = 0;
+        for (ChunkRef chunk : chunks) {
+            total += chunk.getLength();
+        }
+        long size = total;
+        byte[] hash = content.digest();
+        if (progress != null) {
+            progress.expect(size);
+        }
+        return missing(chunks)
+            .thenCompose(missing -> {
+                List<CompletableFuture<String>> puts = new ArrayList<>();
+                long sent = 0;
+                for (ChunkRef chunk : missing) {
+                    sent += chunk.getLength();
+                }
+                if (progress != null) {
+                    progress.add(size - sent);
+                }
+                for (ChunkRef chunk : missing) {
+                    puts.add(client.putBlob(chunk, file, progress).thenApply(DedupUploader::requireDone));
+                }
+                long sentBytes = sent;
+                return CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0]))
+                    .thenCompose(ignored -> client.putManifest(name, chunks, hash))
+                    .thenApply(status -> "DONE".equals(status)
+                        ? "DONE (sent " + sentBytes + " of " + size + " bytes)"
+                        : status);
+            })
+            .whenComplete((result, error) -> {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            });
+    }
+
+    /**
+     * Части, которых нет на сервере; повторы внутри файла отправляются один раз
+     */
+    private CompletableFuture<List<ChunkRef>> missing(List<ChunkRef> chunks) {
+        List<CompletableFuture<List<ChunkRef>>> batches = new ArrayList<>();
+        for (int from = 0; from < chunks.size(); from += QUERY_BATCH) {
+            List<ChunkRef> batch = chunks.subList(from, Math.min(chunks.size(), from + QUERY_BATCH));
+            batches.add(client.queryChunks(batch).thenApply(bits -> select(batch, bits)));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0]))
+            .thenApply(ignored -> {
+                List<ChunkRef> result = new ArrayList<>();
+                Set<String> seen = new HashSet<>();
+                for (CompletableFuture<List<ChunkRef>> batch : batches) {
+                    for (ChunkRef chunk : batch.join()) {
+                        if (seen.add(chunk.hex())) {
+                            result.add(chunk);
+                        }
+                    }
+                }
+                return result;
+            });
+    }
+
+    private static List<ChunkRef> select(List<ChunkRef> batch, BitSet bits) {
+        List<ChunkRef> result = new ArrayList<>();
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            result.add(batch.get(i));
+        }
+        return result;
+    }
+
+    private static String requireDone(String status) {
+        if (!"DONE".equals(status)) {
+            throw new CompletionException(new IOException(status));
+        }
+        return status;
+    }
+}
@@ -0,0 +1,162 @@
+package lesson1.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import lesson1.common.ContentChunker;
+import lesson1.common.Delta;
+import lesson1.common.RollingChecksum;
+
+/**
+ * Поиск блоков копии сервера в новом файле. Окно размером с блок скользит по файлу,
+ * слабая сумма пересчитывается на каждом байте; сильная считается только при совпадении слабой.
+ * Файл читается один раз, по ходу чтения считается и его SHA-256.
+ */
+class DeltaEncoder {
+    private static final int NONE = -1;
+
+    /**
+     * Получатель команд по порядку файла
+     */
+    interface Sink {
+        void copy(int block) throws IOException;
+
+        void literal(byte[] data, int offset, int length) throws IOException;
+    }
+
+    private final BlockSignatures base;
+    private final int blockSize;
+    // цепочки блоков с одинаковым хвостом слабой суммы: heads[слабая & mask] -> next[блок] -> ...
+    private final int[] heads;
+    private final int[] next;
+    private final int mask;
+    // короткий последний блок ищется только в конце файла
+    private final int tail;
+    private final MessageDigest content = ContentChunker.sha256();
+    private byte[] buffer;
+    private int limit;
+    private boolean eof;
+
+    DeltaEncoder(BlockSignatures base) {
+        this.base = base;
+        this.blockSize = base.getBlockSize();
+        int full = base.count();
+        tail = full > 0 && base.blockLength(full - 1) < blockSize ? full - 1 : NONE;
+        if (tail != NONE) {
+            full--;
+        }
+        int size = Integer.highestOneBit(Math.max(1, full) * 2 - 1) * 2;
+        heads = new int[size];
+        next = new int[full];
+        mask = size - 1;
+        Arrays.fill(heads, NONE);
+        // в обратном порядке, чтобы цепочка начиналась с меньшего номера
+        for (int block = full - 1; block >= 0; block--) {
+            int slot = base.weak(block) & mask;
+            next[block] = heads[slot];
+            heads[slot] = block;
+        }
+    }
+
+    /**
+     * @return SHA-256 нового файла
+     */
+    byte[] encode(FileChannel file, Sink sink) throws IOException {
+        buffer = new byte[Math.max(16 * blockSize, 1024 * 1024)];
+        limit = 0;
+        eof = false;
+        RollingChecksum rolling = new RollingChecksum();
+        int position = 0;
+        int literal = 0;
+        int previous = NONE;
+        boolean fresh = true;
+        while (true) {
+            if (position + blockSize >= limit && !eof) {
+                // перед сдвигом буфера отправляется накопленная вставка
+                sink.literal(buffer, literal, position - literal);
+                compact(position);
+                position = 0;
+                literal = 0;
+                fill(file);
+            }
+            if (position + blockSize > limit) {
+                break;
+            }
+            if (fresh) {
+                rolling.reset(buffer, position, blockSize);
+                fresh = false;
+            }
+            int block = find(rolling.value(), position, previous);
+            if (block != NONE) {
+                sink.literal(buffer, literal, position - literal);
+                sink.copy(block);
+                position += blockSize;
+                literal = position;
+                previous = block;
+                fresh = true;
+                continue;
+            }
+            if (position + blockSize == limit) {
+                break;
+            }
+            rolling.roll(buffer[position], buffer[position + blockSize]);
+            position++;
+        }
+        int rest = limit - position;
+        if (tail != NONE && rest == base.blockLength(tail)
+            && RollingChecksum.of(buffer, position, rest) == base.weak(tail)
+            && base.strongEquals(tail, Delta.strong(buffer, position, rest))) {
+            sink.literal(buffer, literal, position - literal);
+            sink.copy(tail);
+        } else {
+            sink.literal(buffer, literal, limit - literal);
+        }
+        return content.digest();
+    }
+
+    /**
+     * Номер блока с тем же содержимым, что и окно; следующий за предыдущим совпавшим
+     * выбирается в первую очередь, чтобы команды COPY сливались
+     */
+    private int find(int weak, int position, int previous) {
+        byte[] strong = null;
+        int found = NONE;
+        for (int block = heads[weak & mask]; block != NONE; block = next[block]) {
+            if (base.weak(block) != weak) {
+                continue;
+            }
+            if (strong == null) {
+                strong = Delta.strong(buffer, position, blockSize);
+            }
+            if (base.strongEquals(block, strong)) {
+                if (block == previous + 1) {
+                    return block;
+                }
+                if (found == NONE) {
+                    found = block;
+                }
+            }
+        }
+        return found;
+    }
+
+    private void compact(int from) {
+        System.arraycopy(buffer, from, buffer, 0, limit - from);
+        limit -= from;
+    }
+
+    private void fill(FileChannel file) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, limit, buffer.length - limit);
+        while (target.hasRemaining()) {
+            if (file.read(target) < 0) {
+                eof = true;
+                break;
+            }
+        }
+        content.update(buffer, limit, target.position() - limit);
+        limit = target.position();
+    }
+}
@@ -0,0 +1,40 @@
+package lesson1.client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import lesson1.common.Delta;
+
+/**
+ * Синхронизация измененного файла: сервер присылает подписи блоков своей копии,
+ * по сети уходят только отличия. Если копии нет или подписей для нее нет (сжата при хранении),
+ * файл загружается обычным способом.
+ */
+public class DeltaSync {
+    private final StorageClient client;
+
+    public DeltaSync(StorageClient client) {
+        this.client = client;
+    }
+
+    public CompletableFuture<String> upload(Path source, String name, Supplier<CompletableFuture<String>> fallback) {
+        return upload(source, name, null, fallback);
+    }
+
+    public CompletableFuture<String> upload(Path source, String name, Progress progress,
+                                            Supplier<CompletableFuture<String>> fallback) {
+        long size;
+        try {
+            size = Files.size(source);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return client.signatures(name, Delta.blockSize(size))
+            .thenCompose(base -> base == null || base.count() == 0
+                ? fallback.get()
+                : client.putDelta(source, name, base, progress));
+    }
+}
@@ -0,0 +1,280 @@
+package lesson1.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lesson1.common.Batch;
+import lesson1.common.FileInfo;
+import lesson1.common.Protocol;
+
+/**
+ * Синхронизация каталога с сервером. Локальное дерево сравнивается со списком сервера
+ * по размеру, времени изменения и хешу; в каждую сторону уходят только отличия, побеждает
+ * более новая версия. Удаления не переносятся: файл, которого нет на одной стороне, копируется на нее.
+ * <p>
+ * Мелкие файлы идут пакетами BATCH_PUT/BATCH_GET, пакеты отправляются сразу, не дожидаясь ответов
+ * на предыдущие, поэтому время зависит от объема, а не от числа файлов. Большие файлы передаются
+ * по отдельности, не больше {@link #LARGE_STREAMS} одновременно.
+ */
+public class DirectorySync implements Closeable {
+    private static final long SMALL_FILE = 1024 * 1024;
+    private static final long BATCH_BYTES = 16 * 1024 * 1024;
+    // имена BATCH_GET помещаются в один кадр запроса
+    private static final int BATCH_NAMES = Protocol.MAX_PAYLOAD - Integer.BYTES;
+    private static final int LARGE_STREAMS = 4;
+
+    private final StorageClient client;
+    private final DeltaSync delta;
+    private final ExecutorService workers = Executors.newFixedThreadPool(LARGE_STREAMS, runnable -> {
+        Thread thread = new Thread(runnable, "directory-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public DirectorySync(StorageClient client) {
+        this.client = client;
+        this.delta = new DeltaSync(client);
+    }
+
+    /**
+     * @param prefix каталог на сервере: пустая строка или имя на '/'
+     */
+    public CompletableFuture<String> sync(Path root, String prefix) {
+        return sync(root, prefix, null);
+    }
+
+    /**
+     * @param progress объем - сумма размеров файлов, которые нужно передать; пакеты засчитываются по ходу
+     */
+    public CompletableFuture<String> sync(Path root, String prefix, Progress progress) {
+        return client.list(prefix)
+            .thenApplyAsync(remote -> plan(root, prefix, remote, progress), workers)
+            .thenCompose(this::run);
+    }
+
+    private Plan plan(Path root, String prefix, List<FileInfo> remoteFiles, Progress progress) {
+        try {
+            Files.createDirectories(root);
+            Plan plan = new Plan(root, prefix, new LocalHashes(root), progress);
+            Map<String, FileInfo> remote = new HashMap<>();
+            for (FileInfo info : remoteFiles) {
+                if (!info.isDirectory()) {
+                    remote.put(info.getName().substring(prefix.length()), info);
+                }
+            }
+            for (String name : localNames(root)) {
+                Path file = plan.local(name);
+                long size = Files.size(file);
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                FileInfo other = remote.remove(name);
+                byte[] hash = plan.hashes.hash(name);
+                if (other != null && isSame(size, modified, hash, other)) {
+                    plan.unchanged++;
+                } else if (other == null || modified > other.getModified()) {
+                    plan.push(new Batch(prefix + name, size, modified, hash));
+                } else {
+                    plan.pull(other);
+                }
+            }
+            for (FileInfo other : remote.values()) {
+                plan.pull(other);
+            }
+            if (progress != null) {
+                progress.expect(plan.bytes);
+            }
+            return plan;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Без хеша на сервере файлы считаются одинаковыми по размеру и времени изменения:
+     * после синхронизации оно совпадает
+     */
+    private static boolean isSame(long size, long modified, byte[] hash, FileInfo remote) {
+        if (remote.hasHash()) {
+            return Arrays.equals(remote.getHash(), hash);
+        }
+        return remote.getSize() == size && remote.getModified() == modified;
+    }
+
+    // файлы и каталоги на '.' служебные (.hashes, недокачанные файлы)
+    private static List<String> localNames(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files
+                .filter(Files::isRegularFile)
+                .map(path -> root.relativize(path).toString().replace(File.separatorChar, '/'))
+                .filter(name -> !name.startsWith(".") && !name.contains("/."))
+                .collect(Collectors.toList());
+        }
+    }
+
+    private CompletableFuture<String> run(Plan plan) {
+        List<CompletableFuture<?>> transfers = new ArrayList<>();
+        for (List<Batch> batch : plan.pushBatches) {
+            transfers.add(client.putBatch(batch, name -> plan.local(name.substring(plan.prefix.length())), plan.progress)
+                .thenApply(DirectorySync::requireDone)
+                .thenAccept(status -> plan.pushed.addAndGet(batch.size())));
+        }
+        for (List<String> batch : plan.pullBatches) {
+            transfers.add(client.getBatch(batch, name -> plan.local(name.substring(plan.prefix.length())),
+                    plan.progress)
+                .thenAccept(received -> {
+                    for (Map.Entry<String, byte[]> file : received.entrySet()) {
+                        plan.received(file.getKey(), file.getValue());
+                    }
+                }));
+        }
+        for (Batch file : plan.largePushes) {
+            transfers.add(CompletableFuture.runAsync(() -> pushLarge(plan, file), workers));
+        }
+        for (FileInfo file : plan.largePulls) {
+            transfers.add(CompletableFuture.runAsync(() -> pullLarge(plan, file), workers));
+        }
+        return CompletableFuture.allOf(transfers.toArray(new CompletableFuture<?>[0]))
+            .thenApply(ignored -> {
+                try {
+                    plan.hashes.save();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                return "DONE (pushed " + plan.pushed + ", pulled " + plan.pulled
+                    + ", unchanged " + plan.unchanged + ")";
+            });
+    }
+
+    // поток пула занят, пока файл не передан: так пул ограничивает число одновременных передач
+    private void pushLarge(Plan plan, Batch file) {
+        plan.checkCancelled();
+        Path source = plan.local(file.getName().substring(plan.prefix.length()));
+        requireDone(delta.upload(source, file.getName(), plan.progress,
+            () -> client.upload(source, file.getName(), plan.progress)).join());
+        plan.pushed.incrementAndGet();
+    }
+
+    private void pullLarge(Plan plan, FileInfo file) {
+        plan.checkCancelled();
+        Path target = plan.local(file.getName().substring(plan.prefix.length()));
+        Path temp = target.resolveSibling("." + target.getFileName() + ".sync");
+        try {
+            Files.createDirectories(target.getParent());
+            requireDone(client.download(file.getName(), temp, plan.progress).join());
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.setLastModifiedTime(target, FileTime.fromMillis(file.getModified()));
+            plan.received(file.getName(), file.hasHash() ? file.getHash() : plan.hashes.hash(
+                file.getName().substring(plan.prefix.length())));
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static String requireDone(String status) {
+        if (!status.startsWith("DONE")) {
+            throw new CompletionException(new IOException(status));
+        }
+        return status;
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Что передать в каждую сторону; мелкие файлы сразу собираются в пакеты
+     */
+    private static final class Plan {
+        final Path root;
+        final String prefix;
+        final LocalHashes hashes;
+        final Progress progress;
+        final List<List<Batch>> pushBatches = new ArrayList<>();
+        final List<List<String>> pullBatches = new ArrayList<>();
+        final List<Batch> largePushes = new ArrayList<>();
+        final List<FileInfo> largePulls = new ArrayList<>();
+        final AtomicInteger pushed = new AtomicInteger();
+        final AtomicInteger pulled = new AtomicInteger();
+        int unchanged;
+        long bytes;
+        private long pushBytes = BATCH_BYTES;
+        private long pullBytes = BATCH_BYTES;
+        private int pullNames;
+
+        Plan(Path root, String prefix, LocalHashes hashes, Progress progress) {
+            this.root = root;
+            this.prefix = prefix;
+            this.hashes = hashes;
+            this.progress = progress;
+        }
+
+        // передачи больших файлов, которые еще ждут поток пула, после отмены не начинаются
+        void checkCancelled() {
+            if (progress != null && progress.isCancelled()) {
+                throw new CancellationException("Sync was cancelled");
+            }
+        }
+
+        Path local(String name) {
+            return root.resolve(name.replace('/', File.separatorChar));
+        }
+
+        void push(Batch file) {
+            bytes += file.getSize();
+            if (file.getSize() >= SMALL_FILE) {
+                largePushes.add(file);
+                return;
+            }
+            if (pushBytes + file.getSize() >= BATCH_BYTES) {
+                pushBatches.add(new ArrayList<>());
+                pushBytes = 0;
+            }
+            pushBatches.get(pushBatches.size() - 1).add(file);
+            pushBytes += file.getSize();
+        }
+
+        void pull(FileInfo file) {
+            bytes += file.getSize();
+            if (file.getSize() >= SMALL_FILE) {
+                largePulls.add(file);
+                return;
+            }
+            int nameSize = Protocol.stringSize(file.getName());
+            if (pullBytes + file.getSize() >= BATCH_BYTES || pullNames + nameSize > BATCH_NAMES) {
+                pullBatches.add(new ArrayList<>());
+                pullBytes = 0;
+                pullNames = 0;
+            }
+            pullBatches.get(pullBatches.size() - 1).add(file.getName());
+            pullBytes += file.getSize();
+            pullNames += nameSize;
+        }
+
+        void received(String name, byte[] hash) {
+            try {
+                hashes.put(name.substring(prefix.length()), hash);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            pulled.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package lesson1.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Список файлов локального каталога без повторных обходов: дерево обходится один раз при запуске,
+ * дальше изменения приходят из {@link WatchService} и передаются слушателю по одному файлу.
+ * Полный обход повторяется только после OVERFLOW, когда события потеряны.
+ * Имена относительные, через '/'; служебные файлы и каталоги на '.' не показываются.
+ */
+public class FolderWatcher implements Closeable {
+    /**
+     * Вызывается из потока наблюдения
+     */
+    public interface Listener {
+        void added(String name);
+
+        void removed(String name);
+    }
+
+    private final Path root;
+    private final Listener listener;
+    private final WatchService watcher;
+    // дальше - только поток наблюдения
+    private final Map<WatchKey, Path> dirs = new HashMap<>();
+    // отсортированы, чтобы файлы каталога шли одним диапазоном
+    private final TreeSet<String> files = new TreeSet<>();
+    private final Thread thread;
+
+    public FolderWatcher(Path root, Listener listener) throws IOException {
+        this.root = Files.createDirectories(root);
+        this.listener = listener;
+        this.watcher = root.getFileSystem().newWatchService();
+        thread = new Thread(this::run, "folder-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            rescan();
+            while (true) {
+                handle(watcher.take());
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // закрыт
+        }
+    }
+
+    private void handle(WatchKey key) {
+        Path dir = dirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescan();
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            String name = name(path);
+            if (isHidden(name)) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                removeTree(name);
+            } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // файлы могли появиться в новом каталоге раньше, чем он встал на наблюдение
+                scan(path, files);
+            } else if (Files.isRegularFile(path) && files.add(name)) {
+                listener.added(name);
+            }
+        }
+        if (!key.reset()) {
+            dirs.remove(key);
+        }
+    }
+
+    /**
+     * Полный обход: слушатель получает разницу с тем, что уже известно
+     */
+    private void rescan() {
+        Set<String> found = new HashSet<>();
+        scan(root, found);
+        for (String name : new HashSet<>(files)) {
+            if (!found.contains(name)) {
+                files.remove(name);
+                listener.removed(name);
+            }
+        }
+        for (String name : found) {
+            if (files.add(name)) {
+                listener.added(name);
+            }
+        }
+    }
+
+    /**
+     * Каталоги встают на наблюдение, файлы добавляются в target; если это files, слушатель о них узнает.
+     * Ошибка не останавливает наблюдение: уже найденное остается в списке.
+     */
+    private void scan(Path start, Set<String> target) {
+        try {
+            walk(start, target);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void walk(Path start, Set<String> target) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (!dir.equals(root) && isHidden(name(dir))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                try {
+                    dirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                } catch (NoSuchFileException e) {
+                    // удален во время обхода
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String name = name(file);
+                if (attributes.isRegularFile() && !isHidden(name) && target.add(name) && target == files) {
+                    listener.added(name);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // удален во время обхода
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // удаленный каталог убирает все файлы под ним
+    private void removeTree(String name) {
+        if (files.remove(name)) {
+            listener.removed(name);
+        }
+        SortedSet<String> nested = files.subSet(name + "/", name + "/" + Character.MAX_VALUE);
+        for (String file : nested) {
+            listener.removed(file);
+        }
+        nested.clear();
+    }
+
+    private String name(Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private static boolean isHidden(String name) {
+        return name.startsWith(".") || name.contains("/.");
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watcher.close();
+    }
+}
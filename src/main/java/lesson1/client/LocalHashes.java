@@ -0,0 +1,127 @@
+package lesson1.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lesson1.common.ChunkRef;
+import lesson1.common.ContentChunker;
+
+/**
+ * Хеши скачанных файлов каталога, сохраненные в файле .hashes рядом с ними.
+ * Хеш записывается после проверенного скачивания и действует, пока у файла те же размер
+ * и время изменения, поэтому проверка перед повторным скачиванием не читает файл.
+ */
+public class LocalHashes {
+    private static final String FILE_NAME = ".hashes";
+
+    private final Path dir;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public LocalHashes(Path dir) throws IOException {
+        this.dir = dir;
+        Path file = dir.resolve(FILE_NAME);
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t");
+                if (fields.length == 4) {
+                    entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Локальный файл уже совпадает с файлом на сервере. Пустой хеш сервера - не известно, совпадает ли.
+     */
+    public synchronized boolean matches(String name, byte[] hash) throws IOException {
+        Entry entry = entries.get(name);
+        Path file = dir.resolve(name);
+        return hash.length > 0 && entry != null && Files.exists(file)
+            && entry.size == Files.size(file)
+            && entry.modified == Files.getLastModifiedTime(file).toMillis()
+            && entry.hex.equals(ChunkRef.toHex(hash));
+    }
+
+    /**
+     * Хеш локального файла: сохраненный, если файл с тех пор не менялся, иначе посчитанный заново.
+     * Новый хеш запоминается, но в .hashes попадает только при {@link #save()}.
+     */
+    public synchronized byte[] hash(String name) throws IOException {
+        Entry entry = entries.get(name);
+        Path file = dir.resolve(name);
+        if (entry != null && entry.size == Files.size(file)
+            && entry.modified == Files.getLastModifiedTime(file).toMillis()) {
+            return fromHex(entry.hex);
+        }
+        MessageDigest digest = ContentChunker.sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) >= 0) {
+                digest.update(buffer.flip());
+            }
+        }
+        byte[] hash = digest.digest();
+        put(name, hash);
+        return hash;
+    }
+
+    public synchronized void record(String name, byte[] hash) throws IOException {
+        put(name, hash);
+        save();
+    }
+
+    /**
+     * Запоминание хеша без записи .hashes: при синхронизации каталога файл пишется один раз в конце
+     */
+    public synchronized void put(String name, byte[] hash) throws IOException {
+        if (hash.length == 0) {
+            entries.remove(name);
+        } else {
+            Path file = dir.resolve(name);
+            entries.put(name, new Entry(Files.size(file), Files.getLastModifiedTime(file).toMillis(),
+                ChunkRef.toHex(hash)));
+        }
+    }
+
+    public synchronized void save() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            lines.add(entry.getKey() + "\t" + value.size + "\t" + value.modified + "\t" + value.hex);
+        }
+        Path tmp = dir.resolve(FILE_NAME + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, dir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static final class Entry {
+        final long size;
+        final long modified;
+        final String hex;
+
+        Entry(long size, long modified, String hex) {
+            this.size = size;
+            this.modified = modified;
+            this.hex = hex;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package lesson1.client;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ход одной передачи: сколько байт из ожидаемых уже прошло и признак отмены.
+ * Запросы {@link StorageClient}, запущенные с этим объектом, при отмене снимаются,
+ * а сервер получает CANCEL. Байты добавляют потоки отправки и поток чтения ответов.
+ */
+public class Progress {
+    private final AtomicLong done = new AtomicLong();
+    private final Set<Runnable> cancellers = ConcurrentHashMap.newKeySet();
+    private volatile long total = -1;
+    private volatile boolean cancelled;
+
+    public long done() {
+        return done.get();
+    }
+
+    /**
+     * @return ожидаемый объем или -1, если он еще неизвестен
+     */
+    public long total() {
+        return total;
+    }
+
+    public void expect(long total) {
+        this.total = total;
+    }
+
+    public void add(long bytes) {
+        done.addAndGet(bytes);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void cancel() {
+        cancelled = true;
+        for (Runnable canceller : cancellers) {
+            if (cancellers.remove(canceller)) {
+                canceller.run();
+            }
+        }
+    }
+
+    /**
+     * Действие при отмене; если отмена уже была, выполняется сразу
+     */
+    void onCancel(Runnable canceller) {
+        cancellers.add(canceller);
+        if (cancelled && cancellers.remove(canceller)) {
+            canceller.run();
+        }
+    }
+
+    void forget(Runnable canceller) {
+        cancellers.remove(canceller);
+    }
+}
@@ -0,0 +1,1197 @@
+package lesson1.client;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+
+import lesson1.common.Batch;
+import lesson1.common.ChunkRef;
+import lesson1.common.ChunkState;
+import lesson1.common.Checksum;
+import lesson1.common.ClusterMap;
+import lesson1.common.Codec;
+import lesson1.common.CodecPipeline;
+import lesson1.common.ContentChunker;
+import lesson1.common.Delta;
+import lesson1.common.FileInfo;
+import lesson1.common.FileTransfer;
+import lesson1.common.Protocol;
+
+/**
+ * Клиент кадрового протокола. Запросы не ждут друг друга: каждый получает свой id,
+ * ответы разбирает отдельный поток чтения и передает нужному обработчику.
+ * Если сервер согласился сверять суммы, после данных загрузки уходит CHECKSUM,
+ * а скачанное сверяется с хешем из FILE и CRC32C из END.
+ * Запросы с данными принимают {@link Progress} (или null): в него идут переданные байты,
+ * а его отмена снимает запрос и отправляет серверу CANCEL.
+ */
+public class StorageClient implements Closeable {
+    private final SocketChannel channel;
+    private final Object writeLock = new Object();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Map<Integer, ResponseHandler> pending = new ConcurrentHashMap<>();
+    private final FileTransfer transfer = FileTransfer.defaultTransfer();
+    // отправители больших тел запросов; кадры разных отправителей чередуются в сокете
+    private final ExecutorService senders = Executors.newFixedThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "storage-client-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Thread reader;
+    private final CompletableFuture<Integer> codecs;
+
+    public StorageClient(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).putInt(Protocol.MAGIC).flip();
+        writeFully(magic);
+        reader = new Thread(this::readLoop, "storage-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+        codecs = hello();
+    }
+
+    /**
+     * Кодеки и {@link Protocol#CHECKSUMS}, которые понимают обе стороны.
+     * Сервер без поддержки HELLO отвечает ошибкой - тогда 0.
+     */
+    public CompletableFuture<Integer> codecs() {
+        return codecs;
+    }
+
+    private CompletableFuture<Integer> hello() {
+        int id = ids.incrementAndGet();
+        ByteBuffer frame = Protocol.allocate(Protocol.HELLO, id, Integer.BYTES);
+        CodecsHandler handler = new CodecsHandler();
+        return request(id, handler, frame.putInt(Codec.supported() | Protocol.CHECKSUMS).flip(), handler.future);
+    }
+
+    private boolean checksums() {
+        return (codecs.join() & Protocol.CHECKSUMS) != 0;
+    }
+
+    public CompletableFuture<String> upload(Path source, String name) {
+        return upload(source, name, (Progress) null);
+    }
+
+    public CompletableFuture<String> upload(Path source, String name, Progress progress) {
+        int id = ids.incrementAndGet();
+        return upload(id, source, size -> Protocol.frame(Protocol.UPLOAD, id, name, size), progress);
+    }
+
+    /**
+     * Копия файла для недоступного узла кластера owner: узел, которому она отправлена,
+     * хранит ее подсказкой и сам передаст владельцу, когда тот вернется
+     */
+    public CompletableFuture<String> hintUpload(Path source, String name, String owner, Progress progress) {
+        int id = ids.incrementAndGet();
+        return upload(id, source, size -> {
+            ByteBuffer frame = Protocol.allocate(Protocol.HINT_PUT, id,
+                Protocol.stringSize(owner) + Protocol.stringSize(name) + Long.BYTES);
+            Protocol.putString(frame, owner);
+            Protocol.putString(frame, name);
+            return frame.putLong(size).flip();
+        }, progress);
+    }
+
+    private CompletableFuture<String> upload(int id, Path source, LongFunction<ByteBuffer> header,
+                                             Progress progress) {
+        StatusHandler handler = new StatusHandler();
+        pending.put(id, handler);
+        watch(id, handler.future, progress);
+        senders.execute(() -> {
+            try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+                long size = file.size();
+                send(header.apply(size));
+                sendData(id, file, 0, size, handler.future, checksums() ? Checksum.full() : null, progress);
+            } catch (IOException e) {
+                fail(id, e);
+            }
+        });
+        return handler.future;
+    }
+
+    /**
+     * Загрузка со сжатием: кодек сжимает файл в своем потоке, пока отправляются предыдущие куски.
+     * На сервере файл так и хранится сжатым. Если сервер кодек не принимает, файл уходит как есть.
+     */
+    public CompletableFuture<String> upload(Path source, String name, Codec codec) {
+        if (codec == Codec.NONE || !codec.isAccepted(codecs.join())) {
+            return upload(source, name);
+        }
+        int id = ids.incrementAndGet();
+        StatusHandler handler = new StatusHandler();
+        pending.put(id, handler);
+        senders.execute(() -> {
+            Checksum checksum = checksums() ? Checksum.crc() : null;
+            MessageDigest content = checksum != null ? ContentChunker.sha256() : null;
+            try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ);
+                 CodecPipeline.Compressor compressor =
+                     CodecPipeline.compress(file, codec, Protocol.DATA_CHUNK, content)) {
+                ByteBuffer frame = Protocol.allocate(Protocol.UPLOAD, id, Protocol.stringSize(name) + Long.BYTES + 1);
+                Protocol.putString(frame, name);
+                send(frame.putLong(file.size()).put((byte) codec.id()).flip());
+                ByteBuffer chunk;
+                while (!handler.future.isDone() && (chunk = compressor.next()) != null) {
+                    if (checksum != null) {
+                        checksum.update(chunk);
+                    }
+                    synchronized (writeLock) {
+                        writeFully(Protocol.header(Protocol.DATA, id, chunk.remaining()));
+                        writeFully(chunk);
+                    }
+                }
+                if (checksum != null && !handler.future.isDone()) {
+                    // CRC32C сжатых байт, хеш - исходного содержимого
+                    send(checksumFrame(id, checksum.crcValue(), content.digest()));
+                }
+                send(Protocol.frame(Protocol.END, id));
+            } catch (IOException e) {
+                fail(id, e);
+            }
+        });
+        return handler.future;
+    }
+
+    public CompletableFuture<ChunkState> openChunked(String name, long size, int chunkSize) {
+        int id = ids.incrementAndGet();
+        ByteBuffer frame = Protocol.allocate(Protocol.CHUNK_OPEN, id,
+            Protocol.stringSize(name) + Long.BYTES + Integer.BYTES);
+        Protocol.putString(frame, name);
+        frame.putLong(size).putInt(chunkSize);
+        ChunkStateHandler handler = new ChunkStateHandler();
+        return request(id, handler, frame.flip(), handler.future);
+    }
+
+    /**
+     * Отправка одной части файла. Ответ DONE означает, что сервер сохранил часть на диск.
+     */
+    public CompletableFuture<String> putChunk(String name, int chunk, FileChannel file, long offset, int length) {
+        return putChunk(name, chunk, file, offset, length, null);
+    }
+
+    public CompletableFuture<String> putChunk(String name, int chunk, FileChannel file, long offset, int length,
+                                              Progress progress) {
+        int id = ids.incrementAndGet();
+        StatusHandler handler = new StatusHandler();
+        pending.put(id, handler);
+        watch(id, handler.future, progress);
+        senders.execute(() -> {
+            try {
+                ByteBuffer frame = Protocol.allocate(Protocol.CHUNK_PUT, id, Protocol.stringSize(name) + Integer.BYTES);
+                Protocol.putString(frame, name);
+                send(frame.putInt(chunk).flip());
+                sendData(id, file, offset, length, handler.future, checksums() ? Checksum.crc() : null, progress);
+            } catch (IOException e) {
+                fail(id, e);
+            }
+        });
+        return handler.future;
+    }
+
+    public CompletableFuture<String> commitChunked(String name) {
+        int id = ids.incrementAndGet();
+        StatusHandler handler = new StatusHandler();
+        return request(id, handler, Protocol.frame(Protocol.CHUNK_COMMIT, id, name), handler.future);
+    }
+
+    /**
+     * Чтение диапазона файла с сервера в target с позиции targetOffset.
+     * Результат - полный размер файла на сервере.
+     */
+    public CompletableFuture<Long> read(String name, long offset, long length, FileChannel target, long targetOffset) {
+        return read(name, offset, length, target, targetOffset, null);
+    }
+
+    public CompletableFuture<Long> read(String name, long offset, long length, FileChannel target, long targetOffset,
+                                        Progress progress) {
+        int id = ids.incrementAndGet();
+        ByteBuffer frame = Protocol.allocate(Protocol.READ, id, Protocol.stringSize(name) + Long.BYTES * 2);
+        Protocol.putString(frame, name);
+        frame.putLong(offset).putLong(length);
+        RangeHandler handler = new RangeHandler(target, targetOffset, progress);
+        return watch(id, request(id, handler, frame.flip(), handler.future), progress);
+    }
+
+    /**
+     * Какие из частей отсутствуют на сервере. Результат - номера в переданном списке.
+     */
+    public CompletableFuture<BitSet> queryChunks(List<ChunkRef> chunks) {
+        int id = ids.incrementAndGet();
+        ByteBuffer frame = Protocol.allocate(Protocol.CHUNK_QUERY, id, Integer.BYTES + chunks.size() * ChunkRef.HASH_SIZE);
+        frame.putInt(chunks.size());
+        for (ChunkRef chunk : chunks) {
+            frame.put(chunk.getHash());
+        }
+        MissingHandler handler = new MissingHandler();
+        return request(id, handler, frame.flip(), handler.future);
+    }
+
+    public CompletableFuture<String> putBlob(ChunkRef chunk, FileChannel file, Progress progress) {
+        int id = ids.incrementAndGet();
+        StatusHandler handler = new StatusHandler();
+        pending.put(id, handler);
+        watch(id, handler.future, progress);
+        senders.execute(() -> {
+            try {
+                ByteBuffer frame = Protocol.allocate(Protocol.BLOB_PUT, id, ChunkRef.HASH_SIZE + Integer.BYTES);
+                send(frame.put(chunk.getHash()).putInt(chunk.getLength()).flip());
+                // часть сервер сверяет по ее SHA-256
+                sendData(id, file, chunk.getOffset(), chunk.getLength(), handler.future, null, progress);
+            } catch (IOException e) {
+                fail(id, e);
+            }
+        });
+        return handler.future;
+    }
+
+    public CompletableFuture<String> putManifest(String name, List<ChunkRef> chunks) {
+        return putManifest(name, chunks, null);
+    }
+
+    /**
+     * @param hash SHA-256 всего файла или null; сервер хранит его в индексе
+     */
+    public CompletableFuture<String> putManifest(String name, List<ChunkRef> chunks, byte[] hash) {
+        int id = ids.incrementAndGet();
+        StatusHandler handler = new StatusHandler();
+        pending.put(id, handler);
+        try {
+            int hashSize = hash == null ? 0 : hash.length;
+            ByteBuffer frame = Protocol.allocate(Protocol.MANIFEST_PUT, id,
+                Protocol.stringSize(name) + Integer.BYTES + hashSize);
+            Protocol.putString(frame, name);
+            frame.putInt(chunks.size());
+            if (hash != null) {
+                frame.put(hash);
+            }
+            send(frame.flip());
+            int perFrame = Protocol.DATA_CHUNK / ChunkRef.ENCODED_SIZE;
+            for (int from = 0; from < chunks.size(); from += perFrame) {
+                int to = Math.min(chunks.size(), from + perFrame);
+                ByteBuffer data = Protocol.allocate(Protocol.DATA, id, (to - from) * ChunkRef.ENCODED_SIZE);
+                for (int i = from; i < to; i++) {
+                    chunks.get(i).writeTo(data);
+                }
+                send(data.flip());
+            }
+        } catch (IOException e) {
+            fail(id, e);
+        }
+        return handler.future;
+    }
+
+    /**
+     * Подписи блоков копии файла на сервере или null, если файла нет
+     */
+    public CompletableFuture<BlockSignatures> signatures(String name, int blockSize) {
+        int id = ids.incrementAndGet();
+        ByteBuffer frame = Protocol.allocate(Protocol.SIGNATURE, id, Protocol.stringSize(name) + Integer.BYTES);
+        Protocol.putString(frame, name);
+        SignaturesHandler handler = new SignaturesHandler(blockSize);
+        return request(id, handler, frame.putInt(blockSize).flip(), handler.future);
+    }
+
+    /**
+     * Загрузка новой версии файла по отличиям от копии сервера: блоки, которые у сервера есть,
+     * уходят командами COPY, остальное - байтами. Сервер собирает файл заново во временном файле.
+     */
+    public CompletableFuture<String> putDelta(Path source, String name, BlockSignatures base, Progress progress) {
+        int id = ids.incrementAndGet();
+        StatusHandler handler = new StatusHandler();
+        DeltaFrames frames = new DeltaFrames(id, base.getBlockSize(), handler.future, progress);
+        pending.put(id, handler);
+        watch(id, handler.future, progress);
+        senders.execute(() -> {
+            try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+                ByteBuffer frame = Protocol.allocate(Protocol.DELTA_PUT, id,
+                    Protocol.stringSize(name) + Long.BYTES + Integer.BYTES);
+                Protocol.putString(frame, name);
+                send(frame.putLong(file.size()).putInt(base.getBlockSize()).flip());
+                byte[] hash = new DeltaEncoder(base).encode(file, frames);
+                frames.flush();
+                if (checksums() && !handler.future.isDone()) {
+                    send(checksumFrame(id, frames.checksum.crcValue(), hash));
+                }
+            } catch (IOException e) {
+                fail(id, e);
+            }
+            cancelSent(id, handler.future);
+        });
+        return handler.future.thenApply(status -> "DONE".equals(status)
+            ? "DONE (sent " + frames.sent + " bytes of delta)"
+            : status);
+    }
+
+    /**
+     * Пакет мелких файлов одним запросом: записи с содержимым идут подряд кадрами DATA,
+     * ответ один на весь пакет. Хеш каждого файла сервер сверяет сам.
+     *
+     * @param local локальный файл по имени на сервере
+     */
+    public CompletableFuture<String> putBatch(List<Batch> files, Function<String, Path> local, Progress progress) {
+        int id = ids.incrementAndGet();
+        StatusHandler handler = new StatusHandler();
+        pending.put(id, handler);
+        watch(id, handler.future, progress);
+        senders.execute(() -> {
+            try {
+                send(Protocol.allocate(Protocol.BATCH_PUT, id, Integer.BYTES).putInt(files.size()).flip());
+                Checksum checksum = Checksum.crc();
+                ByteBuffer payload = ByteBuffer.allocate(Protocol.DATA_CHUNK);
+                for (Batch entry : files) {
+                    if (entry.headerSize() > payload.remaining()) {
+                        sendPayload(id, payload, checksum, progress);
+                    }
+                    entry.writeTo(payload);
+                    try (FileChannel file = FileChannel.open(local.apply(entry.getName()), StandardOpenOption.READ)) {
+                        long position = 0;
+                        while (position < entry.getSize()) {
+                            if (!payload.hasRemaining()) {
+                                sendPayload(id, payload, checksum, progress);
+                            }
+                            int limit = payload.limit();
+                            payload.limit((int) Math.min(limit, payload.position() + entry.getSize() - position));
+                            int read = file.read(payload, position);
+                            payload.limit(limit);
+                            if (read < 0) {
+                                throw new EOFException("File was truncated during upload: " + entry.getName());
+                            }
+                            position += read;
+                        }
+                    }
+                    if (handler.future.isDone()) {
+                        break;
+                    }
+                }
+                if (handler.future.isDone()) {
+                    cancelSent(id, handler.future);
+                    return;
+                }
+                if (payload.position() > 0) {
+                    sendPayload(id, payload, checksum, progress);
+                }
+                if (checksums()) {
+                    send(checksumFrame(id, checksum.crcValue(), null));
+                }
+            } catch (IOException e) {
+                fail(id, e);
+            }
+        });
+        return handler.future;
+    }
+
+    /**
+     * Пакет файлов с сервера одним потоком. Каждый файл пишется рядом с местом назначения
+     * и переносится на место после сверки хеша, с временем изменения с сервера.
+     *
+     * @return SHA-256 полученных файлов; файлов, которых на сервере нет, в ответе нет
+     */
+    public CompletableFuture<Map<String, byte[]>> getBatch(List<String> names, Function<String, Path> local,
+                                                            Progress progress) {
+        int id = ids.incrementAndGet();
+        int size = Integer.BYTES;
+        for (String name : names) {
+            size += Protocol.stringSize(name);
+        }
+        ByteBuffer frame = Protocol.allocate(Protocol.BATCH_GET, id, size).putInt(names.size());
+        for (String name : names) {
+            Protocol.putString(frame, name);
+        }
+        BatchHandler handler = new BatchHandler(local, progress);
+        return watch(id, request(id, handler, frame.flip(), handler.future), progress);
+    }
+
+    public CompletableFuture<String> download(String name, Path target) {
+        return download(name, target, null);
+    }
+
+    public CompletableFuture<String> download(String name, Path target, Progress progress) {
+        int id = ids.incrementAndGet();
+        DownloadHandler handler = new DownloadHandler(target, progress);
+        return watch(id, request(id, handler, Protocol.frame(Protocol.DOWNLOAD, id, name), handler.future), progress);
+    }
+
+    public CompletableFuture<String> remove(String name) {
+        int id = ids.incrementAndGet();
+        StatusHandler handler = new StatusHandler();
+        return request(id, handler, Protocol.frame(Protocol.REMOVE, id, name), handler.future);
+    }
+
+    /**
+     * Удаление для недоступного узла кластера owner, подсказкой на этом узле
+     */
+    public CompletableFuture<String> hintRemove(String name, String owner) {
+        int id = ids.incrementAndGet();
+        ByteBuffer frame = Protocol.allocate(Protocol.HINT_REMOVE, id,
+            Protocol.stringSize(owner) + Protocol.stringSize(name));
+        Protocol.putString(frame, owner);
+        Protocol.putString(frame, name);
+        StatusHandler handler = new StatusHandler();
+        return request(id, handler, frame.flip(), handler.future);
+    }
+
+    /**
+     * Карта кластера, в который входит сервер; null, если сервер работает один
+     */
+    public CompletableFuture<ClusterMap> cluster() {
+        int id = ids.incrementAndGet();
+        ClusterHandler handler = new ClusterHandler();
+        return request(id, handler, Protocol.frame(Protocol.CLUSTER, id), handler.future);
+    }
+
+    public CompletableFuture<List<FileInfo>> list(String prefix) {
+        int id = ids.incrementAndGet();
+        ListHandler handler = new ListHandler();
+        return request(id, handler, Protocol.frame(Protocol.LIST, id, prefix), handler.future);
+    }
+
+    private <T> CompletableFuture<T> request(int id, ResponseHandler handler, ByteBuffer frame,
+                                             CompletableFuture<T> future) {
+        pending.put(id, handler);
+        try {
+            send(frame);
+        } catch (IOException e) {
+            fail(id, e);
+        }
+        return future;
+    }
+
+    /**
+     * Отмена через progress снимает обработчик запроса с CancellationException
+     * и просит сервер бросить прием или отправку данных запроса
+     */
+    private <T> CompletableFuture<T> watch(int id, CompletableFuture<T> future, Progress progress) {
+        if (progress == null) {
+            return future;
+        }
+        Runnable canceller = () -> {
+            fail(id, new CancellationException("Transfer was cancelled"));
+            sendCancel(id);
+        };
+        future.whenComplete((result, error) -> progress.forget(canceller));
+        progress.onCancel(canceller);
+        return future;
+    }
+
+    /**
+     * Отправитель повторяет CANCEL после своих кадров: отмена могла прийти на сервер раньше заголовка запроса
+     */
+    private void cancelSent(int id, CompletableFuture<?> future) {
+        if (future.isCancelled()) {
+            sendCancel(id);
+        }
+    }
+
+    private void sendCancel(int id) {
+        try {
+            send(Protocol.frame(Protocol.CANCEL, id));
+        } catch (IOException ignored) {
+            // соединение закрыто - отменять на сервере нечего
+        }
+    }
+
+    /**
+     * Кадры DATA с диапазоном файла. С контрольной суммой кадр читается в буфер, сумма считается
+     * по нему, и из него же данные уходят в сокет - файл читается один раз; в конце идет CHECKSUM.
+     * Без суммы данные идут через transfer, минуя процесс.
+     */
+    private void sendData(int id, FileChannel file, long offset, long length,
+                          CompletableFuture<?> future, Checksum checksum, Progress progress) throws IOException {
+        ByteBuffer buffer = checksum == null ? null : ByteBuffer.allocateDirect(Protocol.DATA_CHUNK);
+        long position = offset;
+        long end = offset + length;
+        while (position < end && !future.isDone()) {
+            int frameLength = (int) Math.min(Protocol.DATA_CHUNK, end - position);
+            if (buffer != null) {
+                buffer.clear().limit(frameLength);
+                while (buffer.hasRemaining()) {
+                    if (file.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("File was truncated during upload");
+                    }
+                }
+                checksum.update(buffer.flip());
+            }
+            // кадр пишется целиком под блокировкой, между кадрами могут пройти другие запросы
+            synchronized (writeLock) {
+                writeFully(Protocol.header(Protocol.DATA, id, frameLength));
+                if (buffer != null) {
+                    writeFully(buffer);
+                } else {
+                    transfer.sendFully(file, position, frameLength, channel);
+                }
+            }
+            position += frameLength;
+            if (progress != null) {
+                progress.add(frameLength);
+            }
+        }
+        if (checksum != null && !future.isDone()) {
+            send(checksumFrame(id, checksum.crcValue(), checksum.hash()));
+        }
+        cancelSent(id, future);
+    }
+
+    /**
+     * Команды Delta кадрами DATA: подряд идущие блоки сливаются в одну команду COPY,
+     * команды не разрываются между кадрами, а копирование по одному кадру
+     * не превышает {@link Delta#MAX_FRAME_COPY}, чтобы не задерживать реактор сервера
+     */
+    private final class DeltaFrames implements DeltaEncoder.Sink {
+        private final int id;
+        private final int blockSize;
+        private final CompletableFuture<?> future;
+        private final Progress progress;
+        private final Checksum checksum = Checksum.crc();
+        private final ByteBuffer payload = ByteBuffer.allocate(Protocol.DATA_CHUNK);
+        private int first = -1;
+        private int count;
+        private long copied;
+        private volatile long sent;
+
+        DeltaFrames(int id, int blockSize, CompletableFuture<?> future, Progress progress) {
+            this.id = id;
+            this.blockSize = blockSize;
+            this.future = future;
+            this.progress = progress;
+        }
+
+        // ход считается по пройденной части нового файла, а не по байтам в сети
+        private void advance(long bytes) {
+            if (progress != null) {
+                progress.add(bytes);
+            }
+        }
+
+        @Override
+        public void copy(int block) throws IOException {
+            advance(blockSize);
+            if (first >= 0 && block == first + count && copied + blockSize <= Delta.MAX_FRAME_COPY) {
+                count++;
+                copied += blockSize;
+                return;
+            }
+            putCopy();
+            if (copied + blockSize > Delta.MAX_FRAME_COPY) {
+                sendFrame();
+            }
+            first = block;
+            count = 1;
+            copied += blockSize;
+        }
+
+        @Override
+        public void literal(byte[] data, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            advance(length);
+            putCopy();
+            while (length > 0) {
+                if (payload.remaining() <= Delta.LITERAL_HEADER) {
+                    sendFrame();
+                }
+                int part = Math.min(length, payload.remaining() - Delta.LITERAL_HEADER);
+                payload.put(Delta.LITERAL).putInt(part).put(data, offset, part);
+                offset += part;
+                length -= part;
+            }
+        }
+
+        void flush() throws IOException {
+            putCopy();
+            if (payload.position() > 0) {
+                sendFrame();
+            }
+        }
+
+        private void putCopy() throws IOException {
+            if (first < 0) {
+                return;
+            }
+            if (payload.remaining() < Delta.COPY_SIZE) {
+                // блоки этой команды уходят уже в следующем кадре
+                sendFrame();
+                copied = (long) count * blockSize;
+            }
+            payload.put(Delta.COPY).putInt(first).putInt(count);
+            first = -1;
+        }
+
+        private void sendFrame() throws IOException {
+            if (future.isDone()) {
+                throw new IOException("Upload was cancelled");
+            }
+            payload.flip();
+            checksum.update(payload);
+            synchronized (writeLock) {
+                writeFully(Protocol.header(Protocol.DATA, id, payload.remaining()));
+                writeFully(payload);
+            }
+            sent += payload.limit();
+            payload.clear();
+            copied = 0;
+        }
+    }
+
+    private void sendPayload(int id, ByteBuffer payload, Checksum checksum, Progress progress) throws IOException {
+        payload.flip();
+        checksum.update(payload);
+        synchronized (writeLock) {
+            writeFully(Protocol.header(Protocol.DATA, id, payload.remaining()));
+            writeFully(payload);
+        }
+        if (progress != null) {
+            progress.add(payload.limit());
+        }
+        payload.clear();
+    }
+
+    private static ByteBuffer checksumFrame(int id, int crc, byte[] hash) {
+        int hashSize = hash == null ? 0 : hash.length;
+        ByteBuffer frame = Protocol.allocate(Protocol.CHECKSUM, id, Integer.BYTES + hashSize);
+        frame.putInt(crc);
+        if (hash != null) {
+            frame.put(hash);
+        }
+        return frame.flip();
+    }
+
+    private void send(ByteBuffer frame) throws IOException {
+        synchronized (writeLock) {
+            writeFully(frame);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void fail(int id, Throwable error) {
+        ResponseHandler handler = pending.remove(id);
+        if (handler != null) {
+            handler.fail(error);
+        }
+    }
+
+    private void readLoop() {
+        ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(Protocol.MAX_PAYLOAD);
+        try {
+            while (true) {
+                header.clear();
+                readFully(header);
+                header.flip();
+                int length = header.getInt();
+                byte op = header.get();
+                int id = header.getInt();
+                payload.clear();
+                payload.limit(length - (Protocol.HEADER_SIZE - Integer.BYTES));
+                readFully(payload);
+                payload.flip();
+                ResponseHandler handler = pending.get(id);
+                if (handler == null) {
+                    continue;
+                }
+                try {
+                    if (handler.onFrame(op, payload)) {
+                        pending.remove(id);
+                    }
+                } catch (IOException e) {
+                    fail(id, e);
+                }
+            }
+        } catch (IOException e) {
+            // сначала закрытие: запрос, который не попал в этот обход, получит ошибку при отправке
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // уже закрыт
+            }
+            for (Integer id : pending.keySet()) {
+                fail(id, e);
+            }
+        }
+    }
+
+    /**
+     * false после разрыва соединения или {@link #close()}
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        senders.shutdownNow();
+        channel.close();
+    }
+
+    private interface ResponseHandler {
+        /**
+         * @return true, если запрос завершен
+         */
+        boolean onFrame(byte op, ByteBuffer payload) throws IOException;
+
+        void fail(Throwable error);
+    }
+
+    private static String status(byte op, ByteBuffer payload) {
+        switch (op) {
+            case Protocol.OK:
+                return "DONE";
+            case Protocol.NOT_FOUND:
+                return "FILE NOT FOUND";
+            case Protocol.ERROR:
+                return "ERROR: " + Protocol.getString(payload);
+            default:
+                return "Unexpected answer: " + op;
+        }
+    }
+
+    private static class ClusterHandler implements ResponseHandler {
+        private final CompletableFuture<ClusterMap> future = new CompletableFuture<>();
+
+        @Override
+        public boolean onFrame(byte op, ByteBuffer payload) {
+            future.complete(op == Protocol.CLUSTER_MAP ? ClusterMap.readFrom(payload) : null);
+            return true;
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private static class StatusHandler implements ResponseHandler {
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        @Override
+        public boolean onFrame(byte op, ByteBuffer payload) {
+            future.complete(status(op, payload));
+            return true;
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Сохранение скачанного файла. Если сервер прислал файл сжатым, данные распаковываются
+     * в отдельном потоке, и поток чтения не ждет кодек. Если в FILE есть хеш, содержимое
+     * сверяется с ним по ходу записи; при расхождении файл удаляется.
+     */
+    private static class DownloadHandler implements ResponseHandler {
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+        private final Path target;
+        private final Progress progress;
+        private FileChannel file;
+        private CodecPipeline.Decompressor decompressor;
+        private MessageDigest content;
+        private byte[] expected;
+        private long position;
+
+        DownloadHandler(Path target, Progress progress) {
+            this.target = target;
+            this.progress = progress;
+        }
+
+        @Override
+        public boolean onFrame(byte op, ByteBuffer payload) throws IOException {
+            switch (op) {
+                case Protocol.FILE:
+                    file = FileChannel.open(target,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    payload.getLong();
+                    Codec codec = payload.hasRemaining() ? Codec.byId(payload.get()) : Codec.NONE;
+                    if (payload.remaining() >= Checksum.HASH_SIZE) {
+                        expected = new byte[Checksum.HASH_SIZE];
+                        payload.get(expected);
+                        content = ContentChunker.sha256();
+                    }
+                    if (codec != Codec.NONE) {
+                        decompressor = CodecPipeline.decompress(file, 0, codec, content);
+                    }
+                    return false;
+                case Protocol.DATA:
+                    if (progress != null) {
+                        // со сжатием считаются сжатые байты
+                        progress.add(payload.remaining());
+                    }
+                    if (decompressor != null) {
+                        decompressor.accept(payload);
+                        return false;
+                    }
+                    if (content != null) {
+                        content.update(payload.duplicate());
+                    }
+                    while (payload.hasRemaining()) {
+                        position += file.write(payload, position);
+                    }
+                    return false;
+                case Protocol.END:
+                    if (decompressor == null) {
+                        finish(null);
+                        return true;
+                    }
+                    decompressor.finish().whenComplete((size, error) -> finish(error));
+                    return true;
+                default:
+                    future.complete(status(op, payload));
+                    return true;
+            }
+        }
+
+        private void finish(Throwable error) {
+            try {
+                file.close();
+                if (error == null && content != null) {
+                    Checksum.verifyHash(expected, content.digest());
+                }
+            } catch (IOException e) {
+                error = error == null ? e : error;
+            }
+            if (error == null) {
+                future.complete("DONE");
+                return;
+            }
+            try {
+                // поврежденный файл не оставляем
+                Files.deleteIfExists(target);
+            } catch (IOException ignored) {
+            }
+            future.completeExceptionally(error);
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            if (decompressor != null) {
+                decompressor.abort();
+            }
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+            future.completeExceptionally(error);
+        }
+    }
+
+    private static class CodecsHandler implements ResponseHandler {
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        @Override
+        public boolean onFrame(byte op, ByteBuffer payload) {
+            future.complete(op == Protocol.HELLO ? payload.getInt() : 0);
+            return true;
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private static class ChunkStateHandler implements ResponseHandler {
+        private final CompletableFuture<ChunkState> future = new CompletableFuture<>();
+
+        @Override
+        public boolean onFrame(byte op, ByteBuffer payload) {
+            if (op == Protocol.CHUNK_STATE) {
+                future.complete(ChunkState.readFrom(payload));
+            } else {
+                future.completeExceptionally(new IOException(status(op, payload)));
+            }
+            return true;
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Прием диапазона; CRC32C считается по ходу записи и сверяется с суммой из END, если она есть
+     */
+    private static class RangeHandler implements ResponseHandler {
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        private final Checksum checksum = Checksum.crc();
+        private final FileChannel target;
+        private final Progress progress;
+        private long position;
+        private long size;
+
+        RangeHandler(FileChannel target, long position, Progress progress) {
+            this.target = target;
+            this.position = position;
+            this.progress = progress;
+        }
+
+        @Override
+        public boolean onFrame(byte op, ByteBuffer payload) throws IOException {
+            switch (op) {
+                case Protocol.FILE:
+                    size = payload.getLong();
+                    return false;
+                case Protocol.DATA:
+                    checksum.update(payload);
+                    if (progress != null) {
+                        progress.add(payload.remaining());
+                    }
+                    while (payload.hasRemaining()) {
+                        position += target.write(payload, position);
+                    }
+                    return false;
+                case Protocol.END:
+                    if (payload.remaining() >= Integer.BYTES) {
+                        Checksum.verifyCrc(payload.getInt(), checksum.crcValue());
+                    }
+                    future.complete(size);
+                    return true;
+                default:
+                    future.completeExceptionally(new IOException(status(op, payload)));
+                    return true;
+            }
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private static class MissingHandler implements ResponseHandler {
+        private final CompletableFuture<BitSet> future = new CompletableFuture<>();
+
+        @Override
+        public boolean onFrame(byte op, ByteBuffer payload) {
+            if (op == Protocol.CHUNK_MISSING) {
+                byte[] bits = new byte[payload.getInt()];
+                payload.get(bits);
+                future.complete(BitSet.valueOf(bits));
+            } else {
+                future.completeExceptionally(new IOException(status(op, payload)));
+            }
+            return true;
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private static class SignaturesHandler implements ResponseHandler {
+        private final CompletableFuture<BlockSignatures> future = new CompletableFuture<>();
+        private final int blockSize;
+        private final byte[] strong = new byte[Delta.STRONG_SIZE];
+        private BlockSignatures signatures;
+
+        SignaturesHandler(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public boolean onFrame(byte op, ByteBuffer payload) throws IOException {
+            switch (op) {
+                case Protocol.FILE:
+                    long size = payload.getLong();
+                    byte[] hash = null;
+                    if (payload.remaining() > Checksum.HASH_SIZE) {
+                        payload.get();
+                        hash = new byte[Checksum.HASH_SIZE];
+                        payload.get(hash);
+                    }
+                    signatures = new BlockSignatures(size, hash, blockSize);
+                    return false;
+                case Protocol.BLOCKS:
+                    int count = payload.getInt();
+                    if (count > signatures.capacity() - signatures.count()) {
+                        throw new IOException("Too many block signatures");
+                    }
+                    for (int i = 0; i < count; i++) {
+                        int weak = payload.getInt();
+                        payload.get(strong);
+                        signatures.add(weak, strong);
+                    }
+                    return false;
+                case Protocol.END:
+                    future.complete(signatures);
+                    return true;
+                case Protocol.NOT_FOUND:
+                    future.complete(null);
+                    return true;
+                default:
+                    future.completeExceptionally(new IOException(status(op, payload)));
+                    return true;
+            }
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private static class BatchHandler implements ResponseHandler {
+        private final CompletableFuture<Map<String, byte[]>> future = new CompletableFuture<>();
+        private final Function<String, Path> local;
+        private final Progress progress;
+        private final Map<String, byte[]> received = new HashMap<>();
+        private final Checksum checksum = Checksum.crc();
+        private Batch entry;
+        private Path target;
+        private Path temp;
+        private FileChannel file;
+        private MessageDigest content;
+        private long position;
+
+        BatchHandler(Function<String, Path> local, Progress progress) {
+            this.local = local;
+            this.progress = progress;
+        }
+
+        @Override
+        public boolean onFrame(byte op, ByteBuffer payload) throws IOException {
+            if (op == Protocol.DATA) {
+                checksum.update(payload);
+                while (payload.hasRemaining()) {
+                    if (entry == null) {
+                        open(Batch.readFrom(payload));
+                    } else {
+                        ByteBuffer data = payload.slice();
+                        data.limit((int) Math.min(data.remaining(), entry.getSize() - position));
+                        payload.position(payload.position() + data.remaining());
+                        content.update(data.duplicate());
+                        if (progress != null) {
+                            progress.add(data.remaining());
+                        }
+                        while (data.hasRemaining()) {
+                            position += file.write(data, position);
+                        }
+                    }
+                    if (entry != null && position == entry.getSize()) {
+                        store();
+                    }
+                }
+                return false;
+            }
+            if (op == Protocol.END) {
+                if (payload.remaining() >= Integer.BYTES) {
+                    Checksum.verifyCrc(payload.getInt(), checksum.crcValue());
+                }
+                future.complete(received);
+            } else {
+                future.completeExceptionally(new IOException(status(op, payload)));
+            }
+            return true;
+        }
+
+        private void open(Batch next) throws IOException {
+            if (next.getSize() == Batch.MISSING) {
+                return;
+            }
+            entry = next;
+            target = local.apply(entry.getName());
+            Files.createDirectories(target.getParent());
+            temp = target.resolveSibling("." + target.getFileName() + ".sync");
+            file = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            content = ContentChunker.sha256();
+            position = 0;
+        }
+
+        private void store() throws IOException {
+            file.close();
+            byte[] hash = content.digest();
+            if (entry.getHash().length > 0) {
+                try {
+                    Checksum.verifyHash(entry.getHash(), hash);
+                } catch (IOException e) {
+                    Files.deleteIfExists(temp);
+                    throw e;
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getModified()));
+            received.put(entry.getName(), hash);
+            entry = null;
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            if (entry != null) {
+                try {
+                    file.close();
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+            future.completeExceptionally(error);
+        }
+    }
+
+    private static class ListHandler implements ResponseHandler {
+        private final CompletableFuture<List<FileInfo>> future = new CompletableFuture<>();
+        private final List<FileInfo> files = new ArrayList<>();
+
+        @Override
+        public boolean onFrame(byte op, ByteBuffer payload) {
+            if (op == Protocol.LIST_PAGE) {
+                int count = payload.getInt();
+                for (int i = 0; i < count; i++) {
+                    files.add(FileInfo.readFrom(payload));
+                }
+                return false;
+            }
+            if (op == Protocol.END) {
+                future.complete(files);
+            } else {
+                future.completeExceptionally(new IOException(status(op, payload)));
+            }
+            return true;
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+}
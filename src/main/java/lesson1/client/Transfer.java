@@ -0,0 +1,139 @@
+package lesson1.client;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Передача в {@link TransferManager}: состояние, ход, скорость и итог.
+ * Состояние и байты меняют потоки очереди и клиента, читать их можно из любого потока.
+ */
+public class Transfer {
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    // скорость пересчитывается не чаще, чем раз в это время
+    private static final long RATE_INTERVAL = 500_000_000L;
+
+    private final String title;
+    private final Function<Progress, CompletableFuture<String>> task;
+    private final Progress progress = new Progress();
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    private volatile State state = State.QUEUED;
+    private volatile String status = "";
+    private volatile long started;
+    private volatile long finished;
+    private long sampleTime;
+    private long sampleBytes;
+    private double rate;
+
+    Transfer(String title, Function<Progress, CompletableFuture<String>> task) {
+        this.title = title;
+        this.task = task;
+    }
+
+    public String title() {
+        return title;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    /**
+     * Итог передачи: ответ сервера или текст ошибки
+     */
+    public String status() {
+        return status;
+    }
+
+    public Progress progress() {
+        return progress;
+    }
+
+    public CompletableFuture<String> result() {
+        return result;
+    }
+
+    public boolean isFinished() {
+        return result.isDone();
+    }
+
+    /**
+     * Байт в секунду: во время передачи - за последние полсекунды, после - в среднем за всю передачу
+     */
+    public synchronized double rate() {
+        long now = System.nanoTime();
+        if (started == 0) {
+            return 0;
+        }
+        if (finished != 0) {
+            return progress.done() * 1e9 / Math.max(1, finished - started);
+        }
+        if (now - sampleTime >= RATE_INTERVAL) {
+            long done = progress.done();
+            rate = (done - sampleBytes) * 1e9 / (now - sampleTime);
+            sampleTime = now;
+            sampleBytes = done;
+        }
+        return rate;
+    }
+
+    /**
+     * Ожидающая передача снимается с очереди, идущая - отменяет свои запросы
+     */
+    public void cancel() {
+        progress.cancel();
+        synchronized (this) {
+            if (state != State.QUEUED) {
+                return;
+            }
+            finish(null, new CancellationException("Transfer was cancelled"));
+        }
+    }
+
+    /**
+     * Запуск в потоке очереди: подготовка передачи (чтение и хеширование файла) идет в нем
+     *
+     * @return false, если передачу отменили, пока она ждала
+     */
+    synchronized boolean start(Executor executor, Runnable onFinish) {
+        if (state != State.QUEUED) {
+            return false;
+        }
+        state = State.RUNNING;
+        started = System.nanoTime();
+        sampleTime = started;
+        CompletableFuture.supplyAsync(() -> task.apply(progress), executor)
+            .thenCompose(Function.identity())
+            .whenComplete((status, error) -> {
+                synchronized (this) {
+                    finish(status, error);
+                }
+                onFinish.run();
+            });
+        return true;
+    }
+
+    private void finish(String status, Throwable error) {
+        finished = System.nanoTime();
+        if (error == null) {
+            this.status = status;
+            state = State.DONE;
+            result.complete(status);
+            return;
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (progress.isCancelled()) {
+            state = State.CANCELLED;
+            this.status = "CANCELLED";
+        } else {
+            state = State.FAILED;
+            this.status = "ERROR: " + cause.getMessage();
+        }
+        result.completeExceptionally(cause);
+    }
+}
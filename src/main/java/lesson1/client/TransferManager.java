@@ -0,0 +1,91 @@
+package lesson1.client;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Очередь передач: одновременно идут не больше parallel передач, остальные ждут своей очереди.
+ * Передача запускается в потоке очереди, так что вызывающий поток (например, поток интерфейса)
+ * не ждет ни сети, ни чтения файла. Соединения общие: запросы разных передач чередуются в них кадрами.
+ */
+public class TransferManager implements Closeable {
+    private final int parallel;
+    private final ExecutorService starters;
+    private final Queue<Transfer> waiting = new ArrayDeque<>();
+    private final List<Transfer> transfers = new CopyOnWriteArrayList<>();
+    private int running;
+
+    public TransferManager(int parallel) {
+        this.parallel = parallel;
+        this.starters = Executors.newFixedThreadPool(parallel, runnable -> {
+            Thread thread = new Thread(runnable, "transfer-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param task запускает передачу; байты и отмену она берет из переданного {@link Progress}
+     */
+    public Transfer submit(String title, Function<Progress, CompletableFuture<String>> task) {
+        Transfer transfer = new Transfer(title, task);
+        transfers.add(transfer);
+        synchronized (this) {
+            waiting.add(transfer);
+        }
+        startNext();
+        return transfer;
+    }
+
+    /**
+     * Все передачи в порядке добавления, включая завершенные
+     */
+    public List<Transfer> transfers() {
+        return transfers;
+    }
+
+    public void removeFinished() {
+        transfers.removeIf(Transfer::isFinished);
+    }
+
+    private void startNext() {
+        while (true) {
+            Transfer next;
+            synchronized (this) {
+                if (running >= parallel || waiting.isEmpty()) {
+                    return;
+                }
+                next = waiting.poll();
+                running++;
+            }
+            if (!next.start(starters, this::finished)) {
+                // отменена, пока ждала
+                synchronized (this) {
+                    running--;
+                }
+            }
+        }
+    }
+
+    private void finished() {
+        synchronized (this) {
+            running--;
+        }
+        startNext();
+    }
+
+    @Override
+    public void close() {
+        for (Transfer transfer : transfers) {
+            transfer.cancel();
+        }
+        starters.shutdownNow();
+    }
+}
@@ -0,0 +1,115 @@
+package lesson1.client;
+
+import java.awt.Component;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.JProgressBar;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableCellRenderer;
+
+/**
+ * Таблица передач очереди. Таймер интерфейса вызывает {@link #refresh()}: ход передач
+ * читается раз в такт, а не по каждому кадру, и поток интерфейса не заваливается событиями.
+ */
+class TransferTable extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMNS = {"File", "State", "Progress", "Speed", "Status"};
+    static final int PROGRESS_COLUMN = 2;
+
+    private final TransferManager queue;
+    private List<Transfer> rows = new ArrayList<>();
+
+    TransferTable(TransferManager queue) {
+        this.queue = queue;
+    }
+
+    void refresh() {
+        List<Transfer> current = new ArrayList<>(queue.transfers());
+        if (current.equals(rows)) {
+            // строки те же: выделение в таблице сохраняется
+            if (!rows.isEmpty()) {
+                fireTableRowsUpdated(0, rows.size() - 1);
+            }
+            return;
+        }
+        rows = current;
+        fireTableDataChanged();
+    }
+
+    Transfer transfer(int row) {
+        return rows.get(row);
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Transfer transfer = rows.get(row);
+        switch (column) {
+            case 0:
+                return transfer.title();
+            case 1:
+                return transfer.state();
+            case PROGRESS_COLUMN:
+                return transfer;
+            case 3:
+                return transfer.state() == Transfer.State.QUEUED ? "" : speed(transfer.rate());
+            default:
+                return transfer.status();
+        }
+    }
+
+    static String speed(double bytesPerSecond) {
+        if (bytesPerSecond >= 1024 * 1024) {
+            return String.format("%.1f MB/s", bytesPerSecond / (1024 * 1024));
+        }
+        return String.format("%.0f KB/s", bytesPerSecond / 1024);
+    }
+
+    /**
+     * Полоса хода: доля от ожидаемого объема; пока объем неизвестен - только переданные байты
+     */
+    static class ProgressRenderer extends JProgressBar implements TableCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        ProgressRenderer() {
+            super(0, 1000);
+            setStringPainted(true);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean selected,
+                                                       boolean focused, int row, int column) {
+            Transfer transfer = (Transfer) value;
+            Progress progress = transfer.progress();
+            long total = progress.total();
+            long done = progress.done();
+            if (transfer.state() == Transfer.State.DONE) {
+                setValue(getMaximum());
+                setString("100%");
+            } else if (total > 0) {
+                int permille = (int) Math.min(1000, done * 1000 / total);
+                setValue(permille);
+                setString(permille / 10 + "%");
+            } else {
+                setValue(0);
+                setString(done / 1024 + " KB");
+            }
+            return this;
+        }
+    }
+}
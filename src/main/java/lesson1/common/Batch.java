@@ -0,0 +1,63 @@
+package lesson1.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Запись пакета файлов (BATCH_PUT, ответ на BATCH_GET): имя, long размер, long время изменения,
+ * byte длина хеша, SHA-256; за ней - содержимое. Заголовок записи не разрывается между кадрами DATA,
+ * содержимое может продолжаться в следующих кадрах. Так тысячи мелких файлов идут одним потоком
+ * без ожидания ответа на каждый.
+ */
+public final class Batch {
+    // размер в ответе на BATCH_GET, если файла нет
+    public static final long MISSING = -1;
+
+    private final String name;
+    private final long size;
+    private final long modified;
+    private final byte[] hash;
+
+    public Batch(String name, long size, long modified, byte[] hash) {
+        this.name = name;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash == null ? new byte[0] : hash;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    /**
+     * SHA-256 содержимого или пустой массив, если он не известен
+     */
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public int headerSize() {
+        return Protocol.stringSize(name) + Long.BYTES * 2 + 1 + hash.length;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        Protocol.putString(buffer, name);
+        buffer.putLong(size).putLong(modified).put((byte) hash.length).put(hash);
+    }
+
+    public static Batch readFrom(ByteBuffer buffer) {
+        String name = Protocol.getString(buffer);
+        long size = buffer.getLong();
+        long modified = buffer.getLong();
+        byte[] hash = new byte[buffer.get()];
+        buffer.get(hash);
+        return new Batch(name, size, modified, hash);
+    }
+}
@@ -0,0 +1,81 @@
+package lesson1.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Контрольные суммы передачи, которые считаются по ходу потока, без повторного чтения файла:
+ * CRC32C байт, прошедших в кадрах DATA, и SHA-256 содержимого файла.
+ * Обе стороны считают их одинаково и сверяют в кадре {@link Protocol#CHECKSUM} или в END.
+ */
+public final class Checksum {
+    public static final int HASH_SIZE = 32;
+
+    private final CRC32C crc = new CRC32C();
+    private final MessageDigest digest;
+
+    private Checksum(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Только CRC32C - для части файла или диапазона
+     */
+    public static Checksum crc() {
+        return new Checksum(null);
+    }
+
+    /**
+     * CRC32C и SHA-256 - для файла целиком
+     */
+    public static Checksum full() {
+        return new Checksum(ContentChunker.sha256());
+    }
+
+    /**
+     * Учет данных буфера; позиция буфера не меняется
+     */
+    public void update(ByteBuffer data) {
+        crc.update(data.duplicate());
+        if (digest != null) {
+            digest.update(data.duplicate());
+        }
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        crc.update(data, offset, length);
+        if (digest != null) {
+            digest.update(data, offset, length);
+        }
+    }
+
+    public int crcValue() {
+        return (int) crc.getValue();
+    }
+
+    /**
+     * SHA-256 всего учтенного; после вызова счет хеша начинается заново
+     */
+    public byte[] hash() {
+        return digest == null ? null : digest.digest();
+    }
+
+    public static void verifyCrc(int expected, int actual) throws IOException {
+        if (expected != actual) {
+            throw new IOException(String.format("Checksum mismatch: CRC32C %08x, expected %08x", actual, expected));
+        }
+    }
+
+    /**
+     * Пустой ожидаемый хеш - сумма неизвестна, сверять нечего
+     */
+    public static void verifyHash(byte[] expected, byte[] actual) throws IOException {
+        if (expected != null && expected.length > 0 && !Arrays.equals(expected, actual)) {
+            throw new IOException("Checksum mismatch: SHA-256 " + ChunkRef.toHex(actual)
+                + ", expected " + ChunkRef.toHex(expected));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package lesson1.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Часть файла, выделенная по содержимому: смещение, длина и SHA-256 данных
+ */
+public class ChunkRef {
+    public static final int HASH_SIZE = 32;
+    public static final int ENCODED_SIZE = HASH_SIZE + Integer.BYTES;
+
+    private final byte[] hash;
+    private final long offset;
+    private final int length;
+
+    public ChunkRef(byte[] hash, long offset, int length) {
+        this.hash = hash;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public String hex() {
+        return toHex(hash);
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    // в манифесте и на проводе часть описывается хешем и длиной, смещение вычисляется по порядку
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(hash).putInt(length);
+    }
+
+    public static ChunkRef readFrom(ByteBuffer buffer, long offset) {
+        byte[] hash = new byte[HASH_SIZE];
+        buffer.get(hash);
+        return new ChunkRef(hash, offset, buffer.getInt());
+    }
+}
@@ -0,0 +1,110 @@
+package lesson1.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+/**
+ * Какие части файла уже переданы. Файл делится на части по chunkSize байт,
+ * состояние сохраняется рядом с частичным файлом, чтобы продолжить передачу после обрыва.
+ */
+public class ChunkState {
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final long size;
+    private final int chunkSize;
+    private final BitSet done;
+
+    public ChunkState(long size, int chunkSize) {
+        this(size, chunkSize, new BitSet());
+    }
+
+    private ChunkState(long size, int chunkSize, BitSet done) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.done = done;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int chunkCount() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    public long offset(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    public int length(int chunk) {
+        return (int) Math.min(chunkSize, size - offset(chunk));
+    }
+
+    public synchronized boolean isDone(int chunk) {
+        return done.get(chunk);
+    }
+
+    public synchronized void markDone(int chunk) {
+        if (chunk < 0 || chunk >= chunkCount()) {
+            throw new IllegalArgumentException("Invalid chunk: " + chunk);
+        }
+        done.set(chunk);
+    }
+
+    public synchronized boolean isComplete() {
+        return done.cardinality() == chunkCount();
+    }
+
+    public synchronized int doneCount() {
+        return done.cardinality();
+    }
+
+    public boolean sameLayout(long size, int chunkSize) {
+        return this.size == size && this.chunkSize == chunkSize;
+    }
+
+    // формат: long размер, int размер части, int длина битовой маски, маска
+
+    public synchronized int encodedSize() {
+        return Long.BYTES + Integer.BYTES * 2 + done.toByteArray().length;
+    }
+
+    public synchronized void writeTo(ByteBuffer buffer) {
+        byte[] bits = done.toByteArray();
+        buffer.putLong(size).putInt(chunkSize).putInt(bits.length).put(bits);
+    }
+
+    public static ChunkState readFrom(ByteBuffer buffer) {
+        long size = buffer.getLong();
+        int chunkSize = buffer.getInt();
+        byte[] bits = new byte[buffer.getInt()];
+        buffer.get(bits);
+        return new ChunkState(size, chunkSize, BitSet.valueOf(bits));
+    }
+
+    /**
+     * Сохранение через временный файл, чтобы при сбое не остался наполовину записанный файл состояния
+     */
+    public synchronized void save(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+        writeTo(buffer);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, buffer.array());
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static ChunkState load(Path path) throws IOException {
+        return readFrom(ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+}
@@ -0,0 +1,96 @@
+package lesson1.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Состав кластера: адреса узлов "host:port", число копий каждого файла и виртуальных узлов на кольце.
+ * Узлы отдают карту в ответ на CLUSTER, по ней клиент сам находит владельцев файла.
+ */
+public class ClusterMap {
+    public static final int DEFAULT_REPLICAS = 2;
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final List<String> nodes;
+    private final int replicas;
+    private final int virtualNodes;
+    private final HashRing ring;
+
+    public ClusterMap(List<String> nodes, int replicas, int virtualNodes) {
+        if (replicas <= 0) {
+            throw new IllegalArgumentException("Invalid replica count: " + replicas);
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.replicas = Math.min(replicas, nodes.size());
+        this.virtualNodes = virtualNodes;
+        this.ring = new HashRing(nodes, virtualNodes);
+    }
+
+    /**
+     * Карта из строки "host:port,host:port,..."
+     */
+    public static ClusterMap parse(String nodes, int replicas, int virtualNodes) {
+        List<String> list = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            if (!node.isBlank()) {
+                list.add(node.trim());
+            }
+        }
+        return new ClusterMap(list, replicas, virtualNodes);
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    public int replicas() {
+        return replicas;
+    }
+
+    public HashRing ring() {
+        return ring;
+    }
+
+    /**
+     * Узлы, на которых хранятся копии файла
+     */
+    public List<String> owners(String name) {
+        return ring.owners(name, replicas);
+    }
+
+    public static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    public static int port(String node) {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+
+    public int encodedSize() {
+        int size = Integer.BYTES * 3;
+        for (String node : nodes) {
+            size += Protocol.stringSize(node);
+        }
+        return size;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(replicas).putInt(virtualNodes).putInt(nodes.size());
+        for (String node : nodes) {
+            Protocol.putString(buffer, node);
+        }
+    }
+
+    public static ClusterMap readFrom(ByteBuffer buffer) {
+        int replicas = buffer.getInt();
+        int virtualNodes = buffer.getInt();
+        int count = buffer.getInt();
+        List<String> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            nodes.add(Protocol.getString(buffer));
+        }
+        return new ClusterMap(nodes, replicas, virtualNodes);
+    }
+}
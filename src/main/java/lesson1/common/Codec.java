@@ -0,0 +1,63 @@
+package lesson1.common;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сжатие при передаче и хранении. FAST - быстрый режим для передачи по сети,
+ * HIGH - сильное сжатие для файлов, которые долго хранятся. Оба режима - поток zlib,
+ * распаковка у них одна. Поддерживаемые кодеки передаются битовой маской по id.
+ */
+public enum Codec {
+    NONE(0, Deflater.NO_COMPRESSION),
+    FAST(1, Deflater.BEST_SPEED),
+    HIGH(2, Deflater.BEST_COMPRESSION);
+
+    private final int id;
+    private final int level;
+
+    Codec(int id, int level) {
+        this.id = id;
+        this.level = level;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public int bit() {
+        return 1 << id;
+    }
+
+    public Deflater deflater() {
+        return new Deflater(level);
+    }
+
+    public Inflater inflater() {
+        return new Inflater();
+    }
+
+    public static Codec byId(int id) {
+        for (Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec: " + id);
+    }
+
+    /**
+     * Маска всех кодеков, которые умеет эта сторона
+     */
+    public static int supported() {
+        int mask = 0;
+        for (Codec codec : values()) {
+            mask |= codec.bit();
+        }
+        return mask;
+    }
+
+    public boolean isAccepted(int mask) {
+        return this == NONE || (mask & bit()) != 0;
+    }
+}
@@ -0,0 +1,236 @@
+package lesson1.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сжатие и распаковка отдельной стадией конвейера: кодек работает в своем потоке
+ * и обменивается с сетевым потоком кусками через короткую очередь. Пока в сокет уходит
+ * один кусок, следующий уже сжимается; если сеть не успевает, очередь останавливает кодек.
+ */
+public final class CodecPipeline {
+    // сколько готовых кусков может ждать отправки или распаковки
+    private static final int DEPTH = 8;
+    private static final int INPUT_SIZE = 256 * 1024;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "codec-pipeline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private CodecPipeline() {
+    }
+
+    public static Compressor compress(ReadableByteChannel source, Codec codec, int chunkSize) {
+        return new Compressor(source, codec, chunkSize, null);
+    }
+
+    /**
+     * @param content хеш исходных данных, считается в потоке кодека; готов, когда {@link Compressor#next} вернул null
+     */
+    public static Compressor compress(ReadableByteChannel source, Codec codec, int chunkSize, MessageDigest content) {
+        return new Compressor(source, codec, chunkSize, content);
+    }
+
+    public static Decompressor decompress(FileChannel target, long position, Codec codec) {
+        return new Decompressor(target, position, codec, null);
+    }
+
+    /**
+     * @param content хеш распакованных данных; готов, когда завершилось {@link Decompressor#finish}
+     */
+    public static Decompressor decompress(FileChannel target, long position, Codec codec, MessageDigest content) {
+        return new Decompressor(target, position, codec, content);
+    }
+
+    /**
+     * Сжатие источника в куски по chunkSize байт (последний может быть короче)
+     */
+    public static final class Compressor implements AutoCloseable {
+        private final BlockingQueue<ByteBuffer> ready = new ArrayBlockingQueue<>(DEPTH);
+        private final Future<?> task;
+        private volatile IOException error;
+
+        private Compressor(ReadableByteChannel source, Codec codec, int chunkSize, MessageDigest content) {
+            task = EXECUTOR.submit(() -> run(source, codec, chunkSize, content));
+        }
+
+        /**
+         * Следующий кусок сжатого потока или null, если поток закончился
+         */
+        public ByteBuffer next() throws IOException {
+            ByteBuffer chunk;
+            try {
+                chunk = ready.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Compression interrupted");
+            }
+            if (chunk == END) {
+                if (error != null) {
+                    throw error;
+                }
+                return null;
+            }
+            return chunk;
+        }
+
+        private void run(ReadableByteChannel source, Codec codec, int chunkSize, MessageDigest content) {
+            Deflater deflater = codec.deflater();
+            ByteBuffer input = ByteBuffer.allocate(INPUT_SIZE);
+            ByteBuffer output = ByteBuffer.allocate(chunkSize);
+            try {
+                int read;
+                while ((read = source.read(input.clear())) >= 0) {
+                    // вход массивом: буфер кодек не запоминает, и его можно заполнять заново
+                    deflater.setInput(input.array(), 0, read);
+                    if (content != null) {
+                        content.update(input.array(), 0, read);
+                    }
+                    while (!deflater.needsInput()) {
+                        output = drain(deflater, output, chunkSize);
+                    }
+                }
+                deflater.finish();
+                while (!deflater.finished()) {
+                    output = drain(deflater, output, chunkSize);
+                }
+                if (output.position() > 0) {
+                    ready.put(output.flip());
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                // передачу отменили
+                return;
+            } finally {
+                deflater.end();
+            }
+            try {
+                ready.put(END);
+            } catch (InterruptedException e) {
+                // передачу отменили
+            }
+        }
+
+        private ByteBuffer drain(Deflater deflater, ByteBuffer output, int chunkSize) throws InterruptedException {
+            deflater.deflate(output);
+            if (output.hasRemaining()) {
+                return output;
+            }
+            ready.put(output.flip());
+            return ByteBuffer.allocate(chunkSize);
+        }
+
+        @Override
+        public void close() {
+            task.cancel(true);
+            ready.clear();
+        }
+    }
+
+    /**
+     * Распаковка принятых кусков в файл с заданной позиции
+     */
+    public static final class Decompressor {
+        private final BlockingQueue<ByteBuffer> received = new ArrayBlockingQueue<>(DEPTH);
+        private final CompletableFuture<Long> done = new CompletableFuture<>();
+        private final Future<?> task;
+
+        private Decompressor(FileChannel target, long position, Codec codec, MessageDigest content) {
+            task = EXECUTOR.submit(() -> run(target, position, codec, content));
+        }
+
+        /**
+         * Передача куска сжатого потока; данные копируются, буфер можно сразу переиспользовать
+         */
+        public void accept(ByteBuffer compressed) throws IOException {
+            ByteBuffer copy = ByteBuffer.allocate(compressed.remaining());
+            copy.put(compressed).flip();
+            put(copy);
+        }
+
+        /**
+         * Конец сжатого потока
+         *
+         * @return число распакованных байт, когда все они записаны в файл
+         */
+        public CompletableFuture<Long> finish() throws IOException {
+            put(END);
+            return done;
+        }
+
+        public void abort() {
+            task.cancel(true);
+            received.clear();
+            done.completeExceptionally(new IOException("Transfer aborted"));
+        }
+
+        private void put(ByteBuffer chunk) throws IOException {
+            try {
+                // ждем, только пока распаковка жива
+                while (!done.isDone() && !received.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    // очередь полна: распаковка отстает от сети
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Decompression interrupted");
+            }
+        }
+
+        private void run(FileChannel target, long position, Codec codec, MessageDigest content) {
+            Inflater inflater = codec.inflater();
+            ByteBuffer output = ByteBuffer.allocate(INPUT_SIZE);
+            long written = 0;
+            try {
+                while (true) {
+                    ByteBuffer chunk = received.take();
+                    if (chunk == END) {
+                        if (!inflater.finished()) {
+                            throw new EOFException("Compressed stream is truncated");
+                        }
+                        done.complete(written);
+                        return;
+                    }
+                    inflater.setInput(chunk);
+                    while (!inflater.needsInput() && !inflater.finished()) {
+                        if (inflater.needsDictionary()) {
+                            throw new DataFormatException("Preset dictionary is not supported");
+                        }
+                        inflater.inflate(output.clear());
+                        output.flip();
+                        if (content != null) {
+                            content.update(output.duplicate());
+                        }
+                        while (output.hasRemaining()) {
+                            written += target.write(output, position + written);
+                        }
+                    }
+                }
+            } catch (IOException | DataFormatException e) {
+                done.completeExceptionally(e);
+            } catch (InterruptedException e) {
+                done.completeExceptionally(new InterruptedIOException("Decompression interrupted"));
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package lesson1.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Разбиение файла на части по содержимому (Gear rolling hash, как в FastCDC).
+ * Граница ставится там, где старшие биты хеша последних байт равны нулю,
+ * поэтому вставка в начало файла сдвигает только соседние границы, а не все части.
+ * SHA-256 каждой части и, если нужно, всего файла считается в том же проходе.
+ */
+public class ContentChunker {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVERAGE_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // таблица фиксирована: одинаковые данные всегда режутся одинаково
+        Random random = new Random(0x5EED_C0DEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+
+    public ContentChunker() {
+        this(MIN_SIZE, AVERAGE_SIZE, MAX_SIZE);
+    }
+
+    public ContentChunker(int minSize, int averageSize, int maxSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+        this.mask = ((1L << bits) - 1) << (64 - bits);
+    }
+
+    public List<ChunkRef> split(FileChannel file) throws IOException {
+        return split(file, null);
+    }
+
+    /**
+     * @param content хеш всего файла или null
+     */
+    public List<ChunkRef> split(FileChannel file, MessageDigest content) throws IOException {
+        List<ChunkRef> chunks = new ArrayList<>();
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        byte[] bytes = buffer.array();
+        long chunkStart = 0;
+        long position = 0;
+        int length = 0;
+        long hash = 0;
+        while (true) {
+            buffer.clear();
+            int read = file.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            if (content != null) {
+                content.update(bytes, 0, read);
+            }
+            int digested = 0;
+            for (int i = 0; i < read; i++) {
+                // хеш зависит только от последних 64 байт, до них от начала части можно не считать
+                int skip = Math.min(minSize - Long.SIZE - length, read - i);
+                if (skip > 0) {
+                    length += skip;
+                    i += skip - 1;
+                    continue;
+                }
+                hash = (hash << 1) + GEAR[bytes[i] & 0xFF];
+                length++;
+                if ((length >= minSize && (hash & mask) == 0) || length >= maxSize) {
+                    digest.update(bytes, digested, i + 1 - digested);
+                    digested = i + 1;
+                    chunks.add(new ChunkRef(digest.digest(), chunkStart, length));
+                    chunkStart += length;
+                    length = 0;
+                    hash = 0;
+                }
+            }
+            digest.update(bytes, digested, read - digested);
+            position += read;
+        }
+        if (length > 0) {
+            chunks.add(new ChunkRef(digest.digest(), chunkStart, length));
+        }
+        return chunks;
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
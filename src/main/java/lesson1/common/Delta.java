@@ -0,0 +1,44 @@
+package lesson1.common;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Синхронизация измененного файла по отличиям, как в rsync. Сервер присылает подписи блоков
+ * своей копии: слабую {@link RollingChecksum} и сильную (начало SHA-256). Клиент находит
+ * совпадающие блоки в новом файле и отправляет команды: взять блоки старой копии или вставить байты.
+ * Команды кадра DATA не разрываются между кадрами.
+ */
+public final class Delta {
+    public static final int STRONG_SIZE = 16;
+    public static final int SIGNATURE_SIZE = Integer.BYTES + STRONG_SIZE;
+
+    // команды: COPY int номер блока, int число блоков; LITERAL int длина, байты
+    public static final byte COPY = 1;
+    public static final byte LITERAL = 2;
+    public static final int COPY_SIZE = 1 + Integer.BYTES * 2;
+    public static final int LITERAL_HEADER = 1 + Integer.BYTES;
+
+    public static final int MIN_BLOCK = 2 * 1024;
+    public static final int MAX_BLOCK = 64 * 1024;
+    // сколько байт старой копии сервер копирует по командам одного кадра
+    public static final int MAX_FRAME_COPY = 4 * 1024 * 1024;
+
+    private Delta() {
+    }
+
+    /**
+     * Размер блока около корня из размера файла: для больших файлов подписей немного,
+     * для маленьких изменение задевает мало байт
+     */
+    public static int blockSize(long size) {
+        int root = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(size)));
+        return Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, root));
+    }
+
+    public static byte[] strong(byte[] data, int offset, int length) {
+        MessageDigest digest = ContentChunker.sha256();
+        digest.update(data, offset, length);
+        return Arrays.copyOf(digest.digest(), STRONG_SIZE);
+    }
+}
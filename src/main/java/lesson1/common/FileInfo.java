@@ -0,0 +1,107 @@
+package lesson1.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Описание файла в хранилище: имя, размер, время изменения и хеш содержимого.
+ * Хеш пустой, если сервер его еще не знает.
+ */
+public class FileInfo {
+    private static final byte[] NO_HASH = new byte[0];
+
+    private final String name;
+    private final long size;
+    private final long modified;
+    private final byte[] hash;
+    private final boolean chunked;
+    private final Codec codec;
+
+    public FileInfo(String name, long size) {
+        this(name, size, 0, NO_HASH, false);
+    }
+
+    public FileInfo(String name, long size, long modified, byte[] hash, boolean chunked) {
+        this(name, size, modified, hash, chunked, Codec.NONE);
+    }
+
+    /**
+     * @param size  исходный размер файла, для сжатого при хранении - размер до сжатия
+     * @param codec кодек, которым файл сжат при хранении
+     */
+    public FileInfo(String name, long size, long modified, byte[] hash, boolean chunked, Codec codec) {
+        this.name = name;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash == null ? NO_HASH : hash;
+        this.chunked = chunked;
+        this.codec = codec;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public boolean hasHash() {
+        return hash.length > 0;
+    }
+
+    /**
+     * Запись каталога: имя заканчивается на '/'
+     */
+    public boolean isDirectory() {
+        return name.endsWith("/");
+    }
+
+    /**
+     * Файл собран из частей хранилища частей, а не лежит целиком в каталоге
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * Файл хранится сжатым, см. {@link #getCodec()}
+     */
+    public boolean isCompressed() {
+        return codec != Codec.NONE;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public int encodedSize() {
+        return Protocol.stringSize(name) + Long.BYTES * 2 + 1 + hash.length;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        Protocol.putString(buffer, name);
+        buffer.putLong(size).putLong(modified).put((byte) hash.length).put(hash);
+    }
+
+    public static FileInfo readFrom(ByteBuffer buffer) {
+        String name = Protocol.getString(buffer);
+        long size = buffer.getLong();
+        long modified = buffer.getLong();
+        byte[] hash = new byte[buffer.get() & 0xFF];
+        buffer.get(hash);
+        return new FileInfo(name, size, modified, hash, false);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + size + ")";
+    }
+}
@@ -0,0 +1,147 @@
+package lesson1.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Передача содержимого файлов между файловым каналом и сокетом.
+ * ZERO_COPY использует FileChannel.transferTo/transferFrom (sendfile),
+ * POOLED_BUFFER - копирование через большие direct-буферы из {@link BufferPool}.
+ */
+public final class FileTransfer {
+    public enum Mode {
+        ZERO_COPY,
+        POOLED_BUFFER
+    }
+
+    // ограничение одного вызова, чтобы длинная передача не занимала поток надолго
+    private static final long MAX_STEP = 8L * 1024 * 1024;
+
+    private static final FileTransfer DEFAULT = new FileTransfer(
+        "pooled".equals(System.getProperty("storage.transfer")) ? Mode.POOLED_BUFFER : Mode.ZERO_COPY,
+        BufferPool.shared()
+    );
+
+    private final Mode mode;
+    private final BufferPool pool;
+
+    public FileTransfer(Mode mode, BufferPool pool) {
+        this.mode = mode;
+        this.pool = pool;
+    }
+
+    public static FileTransfer defaultTransfer() {
+        return DEFAULT;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Один шаг отправки файла в канал.
+     * Для неблокирующего канала может вернуть 0, если буфер сокета заполнен.
+     */
+    public long send(FileChannel src, long position, long count, WritableByteChannel dst) throws IOException {
+        long step = Math.min(count, MAX_STEP);
+        if (step <= 0) {
+            return 0;
+        }
+        if (mode == Mode.ZERO_COPY && supportsZeroCopy(dst)) {
+            return src.transferTo(position, step, dst);
+        }
+        ByteBuffer buffer = pool.acquire();
+        try {
+            long sent = 0;
+            while (sent < step) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), step - sent));
+                int read = src.read(buffer, position + sent);
+                if (read <= 0) {
+                    break;
+                }
+                buffer.flip();
+                int written = dst.write(buffer);
+                sent += written;
+                if (buffer.hasRemaining()) {
+                    // неблокирующий сокет заполнен, остаток отправим на следующем шаге
+                    break;
+                }
+            }
+            return sent;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Один шаг приема данных в файл с заданной позиции.
+     * Возвращает -1, если источник закрыт.
+     */
+    public long receive(ReadableByteChannel src, FileChannel dst, long position, long count) throws IOException {
+        long step = Math.min(count, MAX_STEP);
+        if (step <= 0) {
+            return 0;
+        }
+        // transferFrom не отличает конец потока от отсутствия данных,
+        // поэтому для неблокирующих каналов всегда читаем через буфер
+        if (mode == Mode.ZERO_COPY && isBlocking(src)) {
+            long received = dst.transferFrom(src, position, step);
+            return received == 0 ? -1 : received;
+        }
+        ByteBuffer buffer = pool.acquire();
+        try {
+            buffer.limit((int) Math.min(buffer.capacity(), step));
+            int read = src.read(buffer);
+            if (read <= 0) {
+                return read;
+            }
+            buffer.flip();
+            long written = 0;
+            while (buffer.hasRemaining()) {
+                written += dst.write(buffer, position + written);
+            }
+            return written;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    public void sendFully(FileChannel src, long position, long count, WritableByteChannel dst) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long step = send(src, position + sent, count - sent, dst);
+            if (step <= 0 && position + sent >= src.size()) {
+                throw new EOFException("File is shorter than expected");
+            }
+            sent += step;
+        }
+    }
+
+    public void receiveFully(ReadableByteChannel src, FileChannel dst, long position, long count) throws IOException {
+        long received = 0;
+        while (received < count) {
+            long step = receive(src, dst, position + received, count - received);
+            if (step < 0) {
+                throw new EOFException("Connection closed after " + received + " of " + count + " bytes");
+            }
+            received += step;
+        }
+    }
+
+    private static boolean supportsZeroCopy(WritableByteChannel dst) {
+        return dst instanceof SelectableChannel || dst instanceof FileChannel;
+    }
+
+    private static boolean isBlocking(ReadableByteChannel src) {
+        if (src instanceof SelectableChannel) {
+            return ((SelectableChannel) src).isBlocking();
+        }
+        return src instanceof FileChannel;
+    }
+}
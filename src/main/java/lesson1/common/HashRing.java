@@ -0,0 +1,94 @@
+package lesson1.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Согласованное хеширование с виртуальными узлами. Каждый узел ставит на кольцо virtualNodes точек;
+ * ключ принадлежит узлам, чьи точки идут первыми по часовой стрелке от хеша ключа.
+ * При добавлении или удалении узла переезжает только его доля ключей, а не все ключи.
+ */
+public class HashRing {
+    private final List<String> nodes;
+    // точки кольца по возрастанию и номер узла каждой точки
+    private final long[] points;
+    private final int[] owners;
+
+    public HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("Ring needs nodes and virtual nodes");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        int count = nodes.size() * virtualNodes;
+        long[] hashes = new long[count];
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                int point = node * virtualNodes + i;
+                hashes[point] = hash(nodes.get(node) + "#" + i);
+            }
+        }
+        // точки сортируются вместе с номерами их узлов
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        points = new long[count];
+        owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Все узлы в порядке обхода кольца от ключа: первые count - владельцы ключа,
+     * следующие - замена для недоступных владельцев
+     */
+    public List<String> preferenceList(String key) {
+        List<String> result = new ArrayList<>(nodes.size());
+        boolean[] taken = new boolean[nodes.size()];
+        int start = Arrays.binarySearch(points, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int i = 0; i < points.length && result.size() < nodes.size(); i++) {
+            int owner = owners[(start + i) % points.length];
+            if (!taken[owner]) {
+                taken[owner] = true;
+                result.add(nodes.get(owner));
+            }
+        }
+        return result;
+    }
+
+    public List<String> owners(String key, int count) {
+        List<String> list = preferenceList(key);
+        return list.subList(0, Math.min(count, list.size()));
+    }
+
+    /**
+     * 64-битный FNV-1a с перемешиванием fmix64 из MurmurHash3: у близких имен ("a#1", "a#2")
+     * точки должны расходиться по всему кольцу
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,124 @@
+package lesson1.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Бинарный протокол хранилища с кадрами: [int длина][byte операция][int id запроса][данные].
+ * Длина учитывает операцию, id и данные. Строки передаются как short длина + UTF-8.
+ * Клиент начинает соединение с {@link #MAGIC}, без него сервер работает по старому протоколу writeUTF.
+ * Ответы на разные запросы могут чередоваться, их различают по id.
+ */
+public final class Protocol {
+    public static final int MAGIC = 0x43534631; // "CSF1"
+    public static final int HEADER_SIZE = 9;
+    public static final int DATA_CHUNK = 64 * 1024;
+    public static final int MAX_PAYLOAD = 128 * 1024;
+    // бит маски HELLO сверх кодеков: стороны сверяют контрольные суммы {@link Checksum}
+    public static final int CHECKSUMS = 1 << 16;
+
+    // запросы клиента
+    public static final byte UPLOAD = 1;      // имя, long размер[, byte кодек]; далее кадры DATA (со сжатием - и END)
+    public static final byte DATA = 2;        // часть файла (в обе стороны)
+    public static final byte DOWNLOAD = 3;    // имя
+    public static final byte REMOVE = 4;      // имя
+    public static final byte LIST = 5;        // префикс имени
+    public static final byte CANCEL = 6;      // без данных, id отменяемого запроса
+    public static final byte CHUNK_OPEN = 7;  // имя, long размер, int размер части; ответ CHUNK_STATE
+    public static final byte CHUNK_PUT = 8;   // имя, int номер части; далее кадры DATA
+    public static final byte CHUNK_COMMIT = 9; // имя
+    public static final byte READ = 10;       // имя, long смещение, long длина; ответ как на DOWNLOAD
+    public static final byte CHUNK_QUERY = 11; // int количество, хеши частей; ответ CHUNK_MISSING
+    public static final byte BLOB_PUT = 12;   // хеш, int длина; далее кадры DATA с содержимым части
+    public static final byte MANIFEST_PUT = 13; // имя, int количество частей; далее кадры DATA с ChunkRef
+    public static final byte HELLO = 14;      // int маска кодеков и CHECKSUMS; ответ HELLO с общей маской
+    public static final byte CHECKSUM = 15;   // int CRC32C данных, хеш файла или пусто; после последнего DATA
+    public static final byte SIGNATURE = 16;  // имя, int размер блока; ответ FILE, кадры BLOCKS и END
+    public static final byte DELTA_PUT = 17;  // имя, long новый размер, int размер блока; далее кадры DATA с командами Delta
+    public static final byte BATCH_PUT = 18;  // int количество файлов; далее кадры DATA с записями Batch и содержимым
+    public static final byte BATCH_GET = 19;  // int количество, имена; ответ кадры DATA с записями Batch и END
+    // кластер: коды после ответов, 20-29 уже заняты
+    public static final byte CLUSTER = 30;    // без данных; ответ CLUSTER_MAP или ERROR, если узел не в кластере
+    public static final byte HINT_PUT = 31;   // узел-владелец, имя, long размер; далее как UPLOAD, файл ждет владельца
+    public static final byte HINT_REMOVE = 32; // узел-владелец, имя; удаление ждет владельца
+
+    // ответы сервера
+    public static final byte OK = 20;
+    public static final byte ERROR = 21;      // текст ошибки
+    public static final byte NOT_FOUND = 22;
+    public static final byte FILE = 23;       // long размер[, byte кодек[, хеш]]; далее кадры DATA и END
+    public static final byte LIST_PAGE = 24;  // int количество, записи FileInfo
+    public static final byte END = 25;        // [int CRC32C данных ответа на READ]
+    public static final byte CHUNK_STATE = 26; // ChunkState: какие части уже есть на сервере
+    public static final byte CHUNK_MISSING = 27; // int длина маски, битовая маска отсутствующих частей
+    public static final byte BLOCKS = 28;     // int количество, подписи блоков Delta по порядку
+    public static final byte CLUSTER_MAP = 29; // ClusterMap
+
+    private Protocol() {
+    }
+
+    public static void putHeader(ByteBuffer buffer, byte op, int requestId, int payloadLength) {
+        buffer.putInt(payloadLength + HEADER_SIZE - Integer.BYTES);
+        buffer.put(op);
+        buffer.putInt(requestId);
+    }
+
+    public static ByteBuffer header(byte op, int requestId, int payloadLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        putHeader(buffer, op, requestId, payloadLength);
+        return buffer.flip();
+    }
+
+    /**
+     * Буфер под кадр с уже записанным заголовком; данные дописывает вызывающий и делает flip
+     */
+    public static ByteBuffer allocate(byte op, int requestId, int payloadLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        putHeader(buffer, op, requestId, payloadLength);
+        return buffer;
+    }
+
+    public static ByteBuffer frame(byte op, int requestId) {
+        return header(op, requestId, 0);
+    }
+
+    public static ByteBuffer frame(byte op, int requestId, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + Short.BYTES + bytes.length);
+        putHeader(buffer, op, requestId, Short.BYTES + bytes.length);
+        buffer.putShort((short) bytes.length).put(bytes);
+        return buffer.flip();
+    }
+
+    public static ByteBuffer frame(byte op, int requestId, String value, long number) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int payload = Short.BYTES + bytes.length + Long.BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload);
+        putHeader(buffer, op, requestId, payload);
+        buffer.putShort((short) bytes.length).put(bytes).putLong(number);
+        return buffer.flip();
+    }
+
+    public static ByteBuffer frame(byte op, int requestId, long number) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + Long.BYTES);
+        putHeader(buffer, op, requestId, Long.BYTES);
+        buffer.putLong(number);
+        return buffer.flip();
+    }
+
+    public static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static int stringSize(String value) {
+        return Short.BYTES + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
@@ -0,0 +1,42 @@
+package lesson1.common;
+
+/**
+ * Слабая скользящая сумма блока, как в rsync: a - сумма байт, b - сумма байт с весами по позиции.
+ * Сдвиг окна на байт пересчитывает сумму за O(1), поэтому клиент проверяет совпадение
+ * с блоками сервера на каждом смещении файла.
+ */
+public final class RollingChecksum {
+    private int a;
+    private int b;
+    private int length;
+
+    public static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, offset, length);
+        return checksum.value();
+    }
+
+    public void reset(byte[] data, int offset, int length) {
+        this.length = length;
+        a = 0;
+        b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+    }
+
+    /**
+     * Сдвиг окна: out уходит из начала, in добавляется в конец
+     */
+    public void roll(byte out, byte in) {
+        int x = out & 0xFF;
+        a += (in & 0xFF) - x;
+        b += a - length * x;
+    }
+
+    public int value() {
+        return (a & 0xFFFF) | (b << 16);
+    }
+}
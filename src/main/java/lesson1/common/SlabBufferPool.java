@@ -0,0 +1,133 @@
+package lesson1.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Пул небольших direct-буферов по классам размеров. Буферы нарезаются из крупных блоков (slab),
+ * свободные хранятся в стеке на массиве, поэтому выдача и возврат не создают мусора.
+ * Запрос больше самого крупного класса или сверх лимита блоков обслуживается без пула.
+ */
+public final class SlabBufferPool {
+    private static final int[] SIZE_CLASSES = {512, 2 * 1024, 8 * 1024, 32 * 1024};
+    private static final int SLAB_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_SLABS = 64;
+
+    private static final SlabBufferPool SHARED = new SlabBufferPool(DEFAULT_MAX_SLABS);
+
+    private final SizeClass[] classes = new SizeClass[SIZE_CLASSES.length];
+
+    /**
+     * @param maxSlabs сколько блоков можно выделить на каждый класс размеров
+     */
+    public SlabBufferPool(int maxSlabs) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            classes[i] = new SizeClass(SIZE_CLASSES[i], maxSlabs);
+        }
+    }
+
+    public static SlabBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Буфер емкостью не меньше size, готовый к записи
+     */
+    public ByteBuffer acquire(int size) {
+        SizeClass sizeClass = classFor(size);
+        if (sizeClass == null) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        return sizeClass.acquire();
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        SizeClass sizeClass = classFor(buffer.capacity());
+        if (sizeClass != null && sizeClass.size == buffer.capacity()) {
+            sizeClass.release(buffer);
+        }
+    }
+
+    /**
+     * Сколько байт в буферах из блоков сейчас выдано; буферы без пула не учитываются
+     */
+    public long bytesInUse() {
+        long total = 0;
+        for (SizeClass sizeClass : classes) {
+            total += (long) sizeClass.inUse() * sizeClass.size;
+        }
+        return total;
+    }
+
+    private SizeClass classFor(int size) {
+        for (SizeClass sizeClass : classes) {
+            if (size <= sizeClass.size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    private static final class SizeClass {
+        private final int size;
+        private final int perSlab;
+        private final int maxSlabs;
+        // буферы из блоков и выданы ли они сейчас; ключи добавляются только вместе с блоком
+        private final Map<ByteBuffer, Boolean> issued = new IdentityHashMap<>();
+        private ByteBuffer[] free = new ByteBuffer[0];
+        private int freeCount;
+        private int slabs;
+        private int inUse;
+
+        SizeClass(int size, int maxSlabs) {
+            this.size = size;
+            this.perSlab = SLAB_SIZE / size;
+            this.maxSlabs = maxSlabs;
+        }
+
+        synchronized ByteBuffer acquire() {
+            if (freeCount == 0) {
+                if (slabs == maxSlabs) {
+                    return ByteBuffer.allocateDirect(size);
+                }
+                addSlab();
+            }
+            ByteBuffer buffer = free[--freeCount];
+            free[freeCount] = null;
+            issued.put(buffer, Boolean.TRUE);
+            inUse++;
+            return buffer.clear();
+        }
+
+        synchronized void release(ByteBuffer buffer) {
+            // буферы не из блоков (выданные сверх лимита) просто отдаются сборщику, повторный возврат не считается
+            if (issued.get(buffer) != Boolean.TRUE) {
+                return;
+            }
+            issued.put(buffer, Boolean.FALSE);
+            free[freeCount++] = buffer;
+            inUse--;
+        }
+
+        synchronized int inUse() {
+            return inUse;
+        }
+
+        private void addSlab() {
+            ByteBuffer slab = ByteBuffer.allocateDirect(perSlab * size);
+            free = Arrays.copyOf(free, (slabs + 1) * perSlab);
+            for (int i = 0; i < perSlab; i++) {
+                slab.limit((i + 1) * size).position(i * size);
+                ByteBuffer buffer = slab.slice();
+                issued.put(buffer, Boolean.FALSE);
+                free[freeCount++] = buffer;
+            }
+            slabs++;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package lesson1.metrics;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Журнал сервера. Потоки реакторов только кладут запись в ограниченную очередь и не ждут
+ * вывода: строку с временем и стек исключения формирует и печатает отдельный поток.
+ * Если очередь полна, запись отбрасывается и учитывается в {@link #dropped()}.
+ */
+public final class Log {
+    private static final int CAPACITY = 8192;
+    private static final BlockingQueue<Record> QUEUE = new ArrayBlockingQueue<>(CAPACITY);
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final PrintStream OUT = System.out;
+
+    static {
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // при остановке сервера допечатываем то, что осталось в очереди
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void info(String message) {
+        offer(new Record(System.currentTimeMillis(), Thread.currentThread().getName(), message, null));
+    }
+
+    public static void error(String message, Throwable error) {
+        offer(new Record(System.currentTimeMillis(), Thread.currentThread().getName(), message, error));
+    }
+
+    public static long dropped() {
+        return DROPPED.sum();
+    }
+
+    private static void offer(Record record) {
+        if (!QUEUE.offer(record)) {
+            DROPPED.increment();
+        }
+    }
+
+    private static void drain() {
+        List<Record> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Record first = QUEUE.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                QUEUE.drainTo(batch);
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static synchronized void write(List<Record> records) {
+        for (Record record : records) {
+            OUT.println(Instant.ofEpochMilli(record.time) + " [" + record.thread + "] " + record.message);
+            if (record.error != null) {
+                record.error.printStackTrace(OUT);
+            }
+        }
+        OUT.flush();
+    }
+
+    private static void flush() {
+        List<Record> rest = new ArrayList<>();
+        QUEUE.drainTo(rest);
+        write(rest);
+    }
+
+    private static final class Record {
+        final long time;
+        final String thread;
+        final String message;
+        final Throwable error;
+
+        Record(long time, String thread, String message, Throwable error) {
+            this.time = time;
+            this.thread = thread;
+            this.message = message;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package lesson1.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Выдача метрик наружу: MBean lesson1:type=Metrics,name=&lt;имя&gt; в JMX и страница /metrics
+ * на локальном HTTP-порту. Обе читают реестр по запросу, в потоки серверов не вмешиваются.
+ */
+public final class MetricsEndpoint {
+    private MetricsEndpoint() {
+    }
+
+    /**
+     * @param port порт страницы /metrics на 127.0.0.1; 0 или меньше - без нее
+     */
+    public static void start(String name, MetricsRegistry registry, int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new RegistryMBean(registry),
+                new ObjectName("lesson1:type=Metrics,name=" + name));
+        } catch (JMException e) {
+            Log.error("Cannot register metrics MBean " + name, e);
+        }
+        if (port <= 0) {
+            return;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name + "-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+            Log.info("Metrics for " + name + " at http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            Log.error("Cannot start metrics endpoint on port " + port, e);
+        }
+    }
+
+    /**
+     * Атрибуты только для чтения, по одному на значение {@link MetricsRegistry#values()}
+     */
+    private static final class RegistryMBean implements DynamicMBean {
+        private final MetricsRegistry registry;
+
+        RegistryMBean(MetricsRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = registry.values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = registry.values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(action);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> values = registry.values();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> value : values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey(), true, false, false);
+            }
+            return new MBeanInfo(RegistryMBean.class.getName(), "Server metrics", attributes, null, null, null);
+        }
+    }
+}
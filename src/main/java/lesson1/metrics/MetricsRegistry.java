@@ -0,0 +1,137 @@
+package lesson1.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Метрики сервера по именам. Счетчики и гистограммы создаются при запуске и дальше
+ * только записываются; чтение (страница /metrics, JMX) проходит по всем без остановки записи.
+ * Имя может содержать метки в формате Prometheus: storage_command_seconds{op="upload"}.
+ */
+public class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p99_9"};
+
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+    public synchronized LongAdder counter(String name, String help) {
+        LongAdder counter = new LongAdder();
+        add(name, help, "counter", counter, null, null);
+        return counter;
+    }
+
+    /**
+     * Счетчик, который ведет сам объект, например число попаданий в кэш
+     */
+    public synchronized void counter(String name, String help, LongSupplier value) {
+        add(name, help, "counter", null, value, null);
+    }
+
+    public synchronized void gauge(String name, String help, LongSupplier value) {
+        add(name, help, "gauge", null, value, null);
+    }
+
+    public synchronized Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram();
+        add(name, help, "summary", null, null, histogram);
+        return histogram;
+    }
+
+    private void add(String name, String help, String type, LongAdder counter, LongSupplier gauge,
+                     Histogram histogram) {
+        if (metrics.containsKey(name)) {
+            throw new IllegalArgumentException("Metric is already registered: " + name);
+        }
+        metrics.put(name, new Metric(name, help, type, counter, gauge, histogram));
+    }
+
+    /**
+     * Текущие значения: для гистограмм - число, сумма, максимум и процентили в секундах
+     */
+    public synchronized Map<String, Number> values() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Metric metric : metrics.values()) {
+            if (metric.histogram == null) {
+                values.put(metric.name, metric.value());
+                continue;
+            }
+            Histogram.Snapshot snapshot = metric.histogram.snapshot();
+            values.put(metric.name + ".count", snapshot.count());
+            values.put(metric.name + ".sum", seconds(snapshot.sum()));
+            values.put(metric.name + ".max", seconds(snapshot.max()));
+            for (int i = 0; i < QUANTILES.length; i++) {
+                values.put(metric.name + "." + QUANTILE_NAMES[i], seconds(snapshot.percentile(QUANTILES[i])));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Текстовый формат Prometheus: HELP и TYPE один раз на семейство с общим именем
+     */
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder();
+        String family = null;
+        for (Metric metric : metrics.values()) {
+            if (!metric.family.equals(family)) {
+                family = metric.family;
+                out.append("# HELP ").append(family).append(' ').append(metric.help).append('\n');
+                out.append("# TYPE ").append(family).append(' ').append(metric.type).append('\n');
+            }
+            if (metric.histogram == null) {
+                out.append(metric.name).append(' ').append(metric.value()).append('\n');
+                continue;
+            }
+            Histogram.Snapshot snapshot = metric.histogram.snapshot();
+            for (double quantile : QUANTILES) {
+                out.append(metric.withLabel("quantile=\"" + quantile + "\"")).append(' ')
+                    .append(seconds(snapshot.percentile(quantile))).append('\n');
+            }
+            out.append(metric.suffixed("_max")).append(' ').append(seconds(snapshot.max())).append('\n');
+            out.append(metric.suffixed("_sum")).append(' ').append(seconds(snapshot.sum())).append('\n');
+            out.append(metric.suffixed("_count")).append(' ').append(snapshot.count()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static final class Metric {
+        final String name;
+        final String family;
+        final String labels;
+        final String help;
+        final String type;
+        final LongAdder counter;
+        final LongSupplier gauge;
+        final Histogram histogram;
+
+        Metric(String name, String help, String type, LongAdder counter, LongSupplier gauge, Histogram histogram) {
+            this.name = name;
+            int brace = name.indexOf('{');
+            this.family = brace < 0 ? name : name.substring(0, brace);
+            this.labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1);
+            this.help = help;
+            this.type = type;
+            this.counter = counter;
+            this.gauge = gauge;
+            this.histogram = histogram;
+        }
+
+        long value() {
+            return counter != null ? counter.sum() : gauge.getAsLong();
+        }
+
+        String withLabel(String label) {
+            return family + "{" + (labels.isEmpty() ? label : labels + "," + label) + "}";
+        }
+
+        String suffixed(String suffix) {
+            return family + suffix + (labels.isEmpty() ? "" : "{" + labels + "}");
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+import lesson1.common.Batch;
+import lesson1.common.Checksum;
+import lesson1.common.FileInfo;
+import lesson1.common.Protocol;
+import lesson1.metrics.Log;
+
+/**
+ * Ответ на BATCH_GET: файлы по списку одним потоком кадров DATA с записями {@link Batch}, затем END.
+ * Кадр собирается, когда сокет готов его принять, и может вместить заголовки и содержимое
+ * многих мелких файлов; открыт всегда только текущий файл.
+ */
+class BatchStream implements Outbound {
+    private final int requestId;
+    private final Storage storage;
+    private final List<String> names;
+    private final Checksum checksum;
+    private final Runnable onRelease;
+    private final TransferTimer timer = new TransferTimer();
+    private final ByteBuffer frame = ByteBuffer.allocate(Protocol.HEADER_SIZE + Protocol.DATA_CHUNK);
+    private int next;
+    private StoredFile current;
+    private StoredFileReader reader;
+    private InflatingReader inflating;
+    private long position;
+    private boolean finished;
+    private volatile boolean cancelled;
+
+    BatchStream(int requestId, Storage storage, List<String> names, Checksum checksum, Runnable onRelease) {
+        this.requestId = requestId;
+        this.storage = storage;
+        this.names = names;
+        this.checksum = checksum;
+        this.onRelease = onRelease;
+        frame.flip();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        if (!frame.hasRemaining()) {
+            long start = System.nanoTime();
+            fill();
+            timer.disk(start);
+        }
+        StorageMetrics.BYTES_OUT.add(channel.write(frame));
+        return !frame.hasRemaining();
+    }
+
+    private void fill() throws IOException {
+        frame.clear().position(Protocol.HEADER_SIZE);
+        while (frame.hasRemaining() && !cancelled) {
+            if (current == null) {
+                if (next == names.size() || !openNext()) {
+                    break;
+                }
+                continue;
+            }
+            long remaining = current.size() - position;
+            if (remaining == 0) {
+                closeCurrent();
+                continue;
+            }
+            ByteBuffer content = frame.slice();
+            content.limit((int) Math.min(content.remaining(), remaining));
+            if (inflating != null) {
+                while (content.hasRemaining() && inflating.read(content) >= 0) {
+                    // распаковываем, пока не заполнится кадр или не кончится файл
+                }
+                if (content.hasRemaining()) {
+                    throw new IOException("Compressed file is shorter than declared: " + names.get(next - 1));
+                }
+            } else {
+                reader.read(position, content);
+            }
+            position += content.position();
+            frame.position(frame.position() + content.position());
+        }
+        int length = frame.position() - Protocol.HEADER_SIZE;
+        ByteBuffer header = frame.duplicate().clear();
+        if (length > 0) {
+            Protocol.putHeader(header, Protocol.DATA, requestId, length);
+            if (checksum != null) {
+                checksum.update(frame.duplicate().flip().position(Protocol.HEADER_SIZE));
+            }
+            frame.flip();
+            return;
+        }
+        finished = true;
+        if (checksum != null && !cancelled) {
+            Protocol.putHeader(header, Protocol.END, requestId, Integer.BYTES);
+            frame.putInt(checksum.crcValue());
+        } else {
+            Protocol.putHeader(header, Protocol.END, requestId, 0);
+        }
+        frame.flip();
+    }
+
+    /**
+     * Заголовок следующего файла, если он помещается в кадр
+     *
+     * @return false, если кадр пора отправить
+     */
+    private boolean openNext() throws IOException {
+        String name = names.get(next);
+        StoredFile file = null;
+        FileInfo info = null;
+        try {
+            file = storage.open(name);
+            info = storage.info(name);
+        } catch (IOException e) {
+            // недопустимое имя - то же, что отсутствующий файл
+        }
+        Batch entry = file == null || info == null
+            ? new Batch(name, Batch.MISSING, 0, null)
+            : new Batch(name, file.size(), info.getModified(), info.getHash());
+        if (entry.headerSize() > frame.remaining()) {
+            if (frame.position() == Protocol.HEADER_SIZE) {
+                throw new IOException("Name is too long: " + name);
+            }
+            return false;
+        }
+        entry.writeTo(frame);
+        next++;
+        if (entry.getSize() != Batch.MISSING) {
+            current = file;
+            position = 0;
+            if (file.isCompressed()) {
+                inflating = new InflatingReader(file);
+            } else {
+                reader = new StoredFileReader(file);
+            }
+        }
+        return true;
+    }
+
+    private void closeCurrent() throws IOException {
+        if (inflating != null) {
+            inflating.close();
+            inflating = null;
+        }
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        current = null;
+    }
+
+    @Override
+    public boolean hasMore() {
+        return !finished;
+    }
+
+    @Override
+    public void release() {
+        onRelease.run();
+        timer.finish();
+        try {
+            closeCurrent();
+        } catch (IOException e) {
+            Log.error("Cannot close batch file", e);
+        }
+    }
+}
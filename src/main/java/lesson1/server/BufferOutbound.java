@@ -0,0 +1,42 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Готовые буферы; несколько буферов уходят одной записью со сбором (gathering write)
+ */
+class BufferOutbound implements Outbound {
+    private final ByteBuffer[] buffers;
+    private final HotFileCache.Lease lease;
+
+    BufferOutbound(ByteBuffer... buffers) {
+        this(null, buffers);
+    }
+
+    /**
+     * @param lease содержимое из кэша горячих файлов, возвращается после отправки
+     */
+    BufferOutbound(HotFileCache.Lease lease, ByteBuffer... buffers) {
+        this.lease = lease;
+        this.buffers = buffers;
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        if (buffers.length == 1) {
+            StorageMetrics.BYTES_OUT.add(channel.write(buffers[0]));
+        } else {
+            StorageMetrics.BYTES_OUT.add(channel.write(buffers));
+        }
+        return !buffers[buffers.length - 1].hasRemaining();
+    }
+
+    @Override
+    public void release() {
+        if (lease != null) {
+            lease.release();
+        }
+    }
+}
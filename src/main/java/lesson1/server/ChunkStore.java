@@ -0,0 +1,244 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lesson1.common.ChunkRef;
+import lesson1.common.ContentChunker;
+import lesson1.metrics.Log;
+
+/**
+ * Хранилище частей по содержимому: каждая часть лежит один раз в .chunks/xx/<sha256>,
+ * файл описывается манифестом в .manifests - списком хешей по порядку.
+ * Часть удаляется, когда на нее не ссылается ни один манифест. Часть, на которую так и не сослался
+ * манифест (загрузка брошена), удаляется через storage.chunksGrace мс после последней записи:
+ * проверка идет при запуске и при записи манифеста.
+ */
+public class ChunkStore {
+    private static final long GRACE = Long.getLong("storage.chunksGrace", TimeUnit.HOURS.toMillis(24));
+
+    private final Path chunksDir;
+    private final Path manifestsDir;
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicInteger> references = new ConcurrentHashMap<>();
+    // части без ссылок и время их последней записи
+    private final Map<String, Long> unreferenced = new ConcurrentHashMap<>();
+
+    public ChunkStore(Storage storage) throws IOException {
+        this.chunksDir = storage.serviceDir("chunks");
+        this.manifestsDir = storage.serviceDir("manifests");
+        load();
+    }
+
+    private void load() throws IOException {
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(chunksDir)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> chunks = Files.newDirectoryStream(prefix)) {
+                    for (Path chunk : chunks) {
+                        String file = chunk.getFileName().toString();
+                        if (!file.endsWith(".tmp")) {
+                            known.add(file);
+                            unreferenced.put(file, Files.getLastModifiedTime(chunk).toMillis());
+                        } else if (Files.getLastModifiedTime(chunk).toMillis() < System.currentTimeMillis() - GRACE) {
+                            // недописанная часть от сбоя сервера
+                            Files.deleteIfExists(chunk);
+                        }
+                    }
+                }
+            }
+        }
+        try (DirectoryStream<Path> manifests = Files.newDirectoryStream(manifestsDir)) {
+            for (Path manifest : manifests) {
+                for (ChunkRef chunk : readManifest(manifest)) {
+                    references.computeIfAbsent(chunk.hex(), key -> new AtomicInteger()).incrementAndGet();
+                    unreferenced.remove(chunk.hex());
+                }
+            }
+        }
+        sweep();
+    }
+
+    public boolean has(byte[] hash) {
+        return known.contains(ChunkRef.toHex(hash));
+    }
+
+    /**
+     * Сохранение части. Хеш проверяется, чтобы испорченные данные не попали под чужим именем.
+     */
+    public void put(byte[] hash, byte[] data, int length) throws IOException {
+        MessageDigest digest = ContentChunker.sha256();
+        digest.update(data, 0, length);
+        if (!Arrays.equals(hash, digest.digest())) {
+            throw new IOException("Chunk hash mismatch");
+        }
+        String hex = ChunkRef.toHex(hash);
+        synchronized (this) {
+            if (known.contains(hex)) {
+                // повторная загрузка продлевает срок части без ссылок
+                unreferenced.computeIfPresent(hex, (key, time) -> System.currentTimeMillis());
+                return;
+            }
+        }
+        Path path = chunkPath(hex);
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(hex + "." + Thread.currentThread().getId() + ".tmp");
+        Files.write(tmp, length == data.length ? data : Arrays.copyOf(data, length));
+        synchronized (this) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            known.add(hex);
+            if (!references.containsKey(hex)) {
+                unreferenced.put(hex, System.currentTimeMillis());
+            }
+        }
+    }
+
+    public Path chunkPath(String hex) {
+        return chunksDir.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    /**
+     * Запись манифеста. Все части уже должны быть в хранилище.
+     *
+     * @return число отсутствующих частей; манифест записывается, только если их нет
+     */
+    public synchronized int putManifest(String name, List<ChunkRef> chunks) throws IOException {
+        int missing = 0;
+        for (ChunkRef chunk : chunks) {
+            if (!known.contains(chunk.hex())) {
+                missing++;
+            }
+        }
+        if (missing > 0) {
+            return missing;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + chunks.size() * ChunkRef.ENCODED_SIZE);
+        buffer.putInt(chunks.size());
+        for (ChunkRef chunk : chunks) {
+            chunk.writeTo(buffer);
+            references.computeIfAbsent(chunk.hex(), key -> new AtomicInteger()).incrementAndGet();
+            unreferenced.remove(chunk.hex());
+        }
+        List<ChunkRef> previous = manifest(name);
+        Path path = manifestPath(name);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, buffer.array());
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (previous != null) {
+            release(previous);
+        }
+        sweep();
+        return 0;
+    }
+
+    public List<ChunkRef> manifest(String name) throws IOException {
+        Path path = manifestPath(name);
+        return Files.exists(path) ? readManifest(path) : null;
+    }
+
+    public synchronized boolean removeManifest(String name) throws IOException {
+        List<ChunkRef> chunks = manifest(name);
+        if (chunks == null) {
+            return false;
+        }
+        Files.deleteIfExists(manifestPath(name));
+        release(chunks);
+        return true;
+    }
+
+    public List<String> manifestNames() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> manifests = Files.newDirectoryStream(manifestsDir, "*.manifest")) {
+            for (Path manifest : manifests) {
+                String file = manifest.getFileName().toString();
+                names.add(decodeName(file.substring(0, file.length() - ".manifest".length())));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Файл, собранный из частей по манифесту, или null
+     */
+    public StoredFile open(String name) throws IOException {
+        List<ChunkRef> chunks = manifest(name);
+        if (chunks == null) {
+            return null;
+        }
+        List<StoredFile.Segment> segments = new ArrayList<>(chunks.size());
+        long size = 0;
+        for (ChunkRef chunk : chunks) {
+            segments.add(new StoredFile.Segment(chunkPath(chunk.hex()), 0, chunk.getLength()));
+            size += chunk.getLength();
+        }
+        return new StoredFile(size, segments);
+    }
+
+    /**
+     * Удаление частей, на которые не сослался ни один манифест за время GRACE
+     */
+    private synchronized void sweep() {
+        long cutoff = System.currentTimeMillis() - GRACE;
+        for (Map.Entry<String, Long> entry : unreferenced.entrySet()) {
+            String hex = entry.getKey();
+            if (entry.getValue() < cutoff && !references.containsKey(hex)) {
+                unreferenced.remove(hex);
+                known.remove(hex);
+                try {
+                    Files.deleteIfExists(chunkPath(hex));
+                } catch (IOException e) {
+                    Log.error("Cannot delete unreferenced chunk " + hex, e);
+                }
+            }
+        }
+    }
+
+    private void release(List<ChunkRef> chunks) throws IOException {
+        for (ChunkRef chunk : chunks) {
+            AtomicInteger count = references.get(chunk.hex());
+            if (count != null && count.decrementAndGet() <= 0) {
+                references.remove(chunk.hex(), count);
+                known.remove(chunk.hex());
+                Files.deleteIfExists(chunkPath(chunk.hex()));
+            }
+        }
+    }
+
+    private Path manifestPath(String name) {
+        return manifestsDir.resolve(encodeName(name) + ".manifest");
+    }
+
+    private static List<ChunkRef> readManifest(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        int count = buffer.getInt();
+        List<ChunkRef> chunks = new ArrayList<>(count);
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            ChunkRef chunk = ChunkRef.readFrom(buffer, offset);
+            chunks.add(chunk);
+            offset += chunk.getLength();
+        }
+        return chunks;
+    }
+
+    // имя файла может содержать '/', в имени манифеста заменяем его на '%2F'
+    private static String encodeName(String name) {
+        return name.replace("%", "%25").replace("/", "%2F");
+    }
+
+    private static String decodeName(String name) {
+        return name.replace("%2F", "/").replace("%25", "%");
+    }
+}
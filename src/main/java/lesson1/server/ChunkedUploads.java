@@ -0,0 +1,248 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import lesson1.common.ChunkState;
+import lesson1.metrics.Log;
+
+/**
+ * Незавершенные загрузки по частям, общие для всех соединений и реакторов.
+ * Части пишутся позиционно в файл полного размера в .parts, после обрыва
+ * загрузка продолжается с последней подтвержденной части.
+ * Сброс частей на диск и перенос готового файла идут в общих для процесса потоках, не в реакторе.
+ * Загрузка, которую не продолжали storage.partsExpiry мс, удаляется вместе с файлами; проверка
+ * начинается с первой загрузки по частям в это хранилище.
+ */
+public class ChunkedUploads {
+    private static final long EXPIRY = Long.getLong("storage.partsExpiry", TimeUnit.HOURS.toMillis(24));
+    private static final int DISK_THREADS = Integer.getInteger("storage.diskThreads", 2);
+
+    private static final ScheduledExecutorService DISK = new ScheduledThreadPoolExecutor(DISK_THREADS, task -> {
+        Thread thread = new Thread(task, "chunk-disk");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Storage storage;
+    private final Map<String, Partial> partials = new ConcurrentHashMap<>();
+    private boolean expiryScheduled;
+
+    public ChunkedUploads(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Открытие загрузки. Если на диске есть незавершенная загрузка того же размера, она продолжается.
+     */
+    public Partial open(String name, long size, int chunkSize) throws IOException {
+        Path target = storage.resolve(name);
+        synchronized (partials) {
+            if (!expiryScheduled) {
+                long period = Math.min(EXPIRY, TimeUnit.HOURS.toMillis(1));
+                DISK.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+                expiryScheduled = true;
+            }
+            Partial partial = partials.get(name);
+            if (partial != null && partial.state.sameLayout(size, chunkSize)) {
+                partial.touch();
+                return partial;
+            }
+            if (partial != null) {
+                partials.remove(name);
+                partial.close();
+            }
+            partial = Partial.open(target, storage.serviceDir("parts"), size, chunkSize);
+            partials.put(name, partial);
+            return partial;
+        }
+    }
+
+    public Partial get(String name) {
+        Partial partial = partials.get(name);
+        if (partial != null) {
+            partial.touch();
+        }
+        return partial;
+    }
+
+    /**
+     * Подтверждение части в дисковом потоке
+     */
+    public CompletableFuture<Void> complete(Partial partial, int chunk) {
+        partial.touch();
+        return onDisk(() -> partial.complete(chunk));
+    }
+
+    /**
+     * Перенос собранного файла на место в дисковом потоке. Пока не пришли все части, завершается ошибкой.
+     */
+    public CompletableFuture<Void> commit(String name) {
+        Partial partial = partials.get(name);
+        boolean taken = false;
+        if (partial != null && partial.state.isComplete()) {
+            synchronized (partials) {
+                taken = partials.remove(name, partial);
+            }
+        }
+        if (!taken) {
+            return CompletableFuture.failedFuture(new IOException("Not all chunks received: " + name));
+        }
+        return onDisk(() -> {
+            try {
+                partial.commit();
+                storage.uploaded(name, null);
+            } catch (IOException e) {
+                throw new IOException("Cannot commit " + name, e);
+            }
+        });
+    }
+
+    /**
+     * Удаление загрузок, которые давно не продолжали, и брошенных файлов в .parts
+     */
+    void expire() {
+        long cutoff = System.currentTimeMillis() - EXPIRY;
+        try {
+            synchronized (partials) {
+                Set<Path> active = new HashSet<>();
+                for (Map.Entry<String, Partial> entry : partials.entrySet()) {
+                    Partial partial = entry.getValue();
+                    if (partial.lastUsed < cutoff) {
+                        partials.remove(entry.getKey(), partial);
+                        partial.close();
+                        Files.deleteIfExists(partial.data);
+                        Files.deleteIfExists(partial.stateFile);
+                        Log.info("Partial upload expired: " + entry.getKey());
+                    } else {
+                        active.add(partial.data);
+                        active.add(partial.stateFile);
+                    }
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(storage.serviceDir("parts"))) {
+                    for (Path file : files) {
+                        if (!active.contains(file) && Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Cannot expire partial uploads", e);
+        }
+    }
+
+    private interface DiskTask {
+        void run() throws IOException;
+    }
+
+    private CompletableFuture<Void> onDisk(DiskTask task) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, DISK);
+    }
+
+    public static final class Partial {
+        private final Path target;
+        private final Path data;
+        private final Path stateFile;
+        private final FileChannel file;
+        private final ChunkState state;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Partial(Path target, Path data, Path stateFile, FileChannel file, ChunkState state) {
+            this.target = target;
+            this.data = data;
+            this.stateFile = stateFile;
+            this.file = file;
+            this.state = state;
+        }
+
+        static Partial open(Path target, Path partsDir, long size, int chunkSize) throws IOException {
+            String base = target.getFileName() + "-" + Integer.toHexString(target.hashCode());
+            Path data = partsDir.resolve(base + ".part");
+            Path stateFile = partsDir.resolve(base + ".state");
+            ChunkState state = null;
+            if (Files.exists(stateFile) && Files.exists(data)) {
+                ChunkState saved = ChunkState.load(stateFile);
+                if (saved.sameLayout(size, chunkSize)) {
+                    state = saved;
+                }
+            }
+            FileChannel file;
+            if (state == null) {
+                state = new ChunkState(size, chunkSize);
+                file = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                // файл сразу получает полный размер, части пишутся в него в любом порядке.
+                // Файл разреженный: место на диске не резервируется, и нехватка места
+                // проявится ошибкой записи части
+                if (size > 0) {
+                    file.write(ByteBuffer.allocate(1), size - 1);
+                }
+                state.save(stateFile);
+            } else {
+                file = FileChannel.open(data, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return new Partial(target, data, stateFile, file, state);
+        }
+
+        public ChunkState state() {
+            return state;
+        }
+
+        public FileChannel file() {
+            return file;
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Подтверждение части: данные сбрасываются на диск до сохранения состояния,
+         * поэтому отмеченная часть не потеряется при сбое сервера
+         */
+        void complete(int chunk) throws IOException {
+            file.force(false);
+            state.markDone(chunk);
+            synchronized (this) {
+                state.save(stateFile);
+            }
+        }
+
+        void commit() throws IOException {
+            file.force(true);
+            file.close();
+            Files.move(data, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(stateFile);
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.error("Cannot close partial upload", e);
+            }
+        }
+    }
+}
@@ -1,87 +1,486 @@
 package lesson1.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import lesson1.common.FileTransfer;
+import lesson1.common.Protocol;
+import lesson1.metrics.Log;
 
 /**
- * Обработчик входящих клиентов
+ * Обработчик входящих клиентов.
+ * Состояние соединения хранится в объекте, привязанном к SelectionKey,
+ * поэтому команды и тело файла могут приходить любыми частями.
+ * Если клиент начал с {@link Protocol#MAGIC}, кадры разбирает {@link FrameSession},
+ * иначе работает старый протокол upload/download/read/remove на writeUTF.
  */
-public class ClientHandler implements Runnable {
-    private final Socket socket;
-
-    public ClientHandler(Socket socket) {
-        this.socket = socket;
-    }
-
-    @Override
-    public void run() {
-        System.out.println("Start new ClientHandler");
-        try (DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             DataInputStream in = new DataInputStream(socket.getInputStream())) {
-            while (true) {
-                String command = in.readUTF();
-                if ("upload".equals(command)) {
-                    try {
-                        File file = new File("server" + File.separator + in.readUTF());
-                        if (!file.exists()) {
-                            file.createNewFile();
-                        }
-                        long size = in.readLong();
-                        FileOutputStream fos = new FileOutputStream(file);
-                        byte[] buffer = new byte[256];
-                        for (int i = 0; i < (size + 255) / 256; i++) { // FIXME
-                            int read = in.read(buffer);
-                            fos.write(buffer, 0, read);
-                        }
-                        fos.close();
-                        out.writeUTF("DONE");
-                    } catch (Exception e) {
-                        out.writeUTF("ERROR");
+public class ClientHandler {
+    private static final int INPUT_BUFFER_SIZE = 2 * Protocol.MAX_PAYLOAD;
+
+    private enum State {
+        COMMAND,
+        NAME,
+        RANGE,
+        SIZE,
+        BODY
+    }
+
+    private final SocketChannel channel;
+    private final Storage storage;
+    private final Reactor reactor;
+    private final FileTransfer transfer = FileTransfer.defaultTransfer();
+    private final ByteBuffer in = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+    private final OutboundQueue outbound = new OutboundQueue();
+    private SelectionKey key;
+    private boolean closed;
+    private boolean protocolChosen;
+    private FrameSession frames;
+
+    private State state = State.COMMAND;
+    private String command;
+    private long commandStart;
+    private String readName;
+    private String uploadName;
+    private FileChannel upload;
+    // файл принимается во временный файл и переносится на место после приема, как при UPLOAD
+    private Path uploadTemp;
+    private long uploadPosition;
+    private long uploadRemaining;
+    private boolean uploadFailed;
+    private TransferTimer uploadTimer;
+
+    public ClientHandler(SocketChannel channel, Storage storage, Reactor reactor) {
+        this.channel = channel;
+        this.storage = storage;
+        this.reactor = reactor;
+    }
+
+    void attach(SelectionKey key) throws IOException {
+        this.key = key;
+        Log.info("Start new ClientHandler: " + channel.getRemoteAddress());
+    }
+
+    void onReadable() throws IOException {
+        if (state == State.BODY) {
+            // буфер пуст: тело файла читаем из сокета прямо в файл
+            if (receiveBody() < 0) {
+                close();
+                return;
+            }
+            if (state == State.BODY) {
+                return;
+            }
+        }
+        int read = channel.read(in);
+        if (read < 0) {
+            close();
+            return;
+        }
+        StorageMetrics.BYTES_IN.add(read);
+        in.flip();
+        try {
+            if (!protocolChosen && !chooseProtocol()) {
+                return;
+            }
+            if (frames != null) {
+                frames.process(in);
+            } else {
+                process();
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    /**
+     * Действие с соединением из другого потока: выполняется в потоке реактора,
+     * если соединение к тому времени не закрыто
+     */
+    void execute(Task task) {
+        reactor.execute(() -> {
+            if (closed) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (IOException e) {
+                Log.info("Connection error: " + e.getMessage());
+                close();
+            }
+        });
+    }
+
+    interface Task {
+        void run() throws IOException;
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    private boolean chooseProtocol() {
+        if (in.remaining() < Short.BYTES) {
+            return false;
+        }
+        // старые команды начинаются с короткой длины writeUTF, она не совпадает с началом MAGIC
+        if (in.getShort(in.position()) == (short) (Protocol.MAGIC >>> 16)) {
+            if (in.remaining() < Integer.BYTES) {
+                return false;
+            }
+            if (in.getInt(in.position()) == Protocol.MAGIC) {
+                in.getInt();
+                frames = new FrameSession(this, storage, transfer);
+            }
+        }
+        protocolChosen = true;
+        return true;
+    }
+
+    private void process() throws IOException {
+        while (true) {
+            switch (state) {
+                case COMMAND:
+                    command = readUtf();
+                    if (command == null) {
+                        return;
+                    }
+                    commandStart = System.nanoTime();
+                    if ("upload".equals(command) || "download".equals(command) || "read".equals(command)
+                        || "remove".equals(command)) {
+                        state = State.NAME;
+                    }
+                    break;
+                case NAME:
+                    String name = readUtf();
+                    if (name == null) {
+                        return;
                     }
-                } else if ("download".equals(command)) {
-                    try {
-                        File file = new File("server" + File.separator + in.readUTF());
-                        if (!file.exists()) {
-                            out.writeUTF("FILE NOT FOUND");
-                        } else {
-                            out.writeUTF("FILE");
-                            long size = file.length();
-                            out.writeLong(size);
-
-                            FileInputStream fis = new FileInputStream(file);
-
-                            byte[] buffer = new byte[256];
-                            for (int i = 0; i < (size + 255) / 256; i++) {
-                                int read = fis.read(buffer);
-                                out.write(buffer, 0, read);
-                            }
-                            fis.close();
-                        }
-                    } catch (Exception e) {
-                        out.writeUTF("ERROR");
+                    if ("upload".equals(command)) {
+                        openUpload(name);
+                        state = State.SIZE;
+                    } else if ("download".equals(command)) {
+                        download(name);
+                        commandDone();
+                        state = State.COMMAND;
+                    } else if ("read".equals(command)) {
+                        readName = name;
+                        state = State.RANGE;
+                    } else {
+                        remove(name);
+                        commandDone();
+                        state = State.COMMAND;
                     }
-                } else if ("remove".equals(command)) {
-                    try {
-                        File file = new File("server" + File.separator + in.readUTF());
-                        if (file.exists()) {
-                            file.delete();
-                            out.writeUTF("DONE");
-                        } else {
-                            out.writeUTF("FILE NOT FOUND");
-                        }
-                    } catch (IOException e) {
-                        out.writeUTF("ERROR");
+                    break;
+                case RANGE:
+                    if (in.remaining() < 2 * Long.BYTES) {
+                        return;
                     }
+                    read(readName, in.getLong(), in.getLong());
+                    commandDone();
+                    state = State.COMMAND;
+                    break;
+                case SIZE:
+                    if (in.remaining() < Long.BYTES) {
+                        return;
+                    }
+                    uploadRemaining = in.getLong();
+                    uploadPosition = 0;
+                    if (uploadRemaining < 0) {
+                        // тела нет: без размера его не дочитать, команда просто отклоняется
+                        rejectUpload();
+                        state = State.COMMAND;
+                        break;
+                    }
+                    state = State.BODY;
+                    if (uploadRemaining == 0) {
+                        finishUpload();
+                    }
+                    break;
+                case BODY:
+                    if (!in.hasRemaining()) {
+                        return;
+                    }
+                    int count = (int) Math.min(in.remaining(), uploadRemaining);
+                    ByteBuffer slice = in.slice();
+                    slice.limit(count);
+                    writeUpload(slice);
+                    in.position(in.position() + count);
+                    if (uploadRemaining == 0) {
+                        finishUpload();
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException(state.name());
+            }
+        }
+    }
+
+    private void openUpload(String name) {
+        uploadName = name;
+        uploadFailed = false;
+        uploadTimer = new TransferTimer();
+        long start = System.nanoTime();
+        try {
+            uploadTemp = storage.uploadTemp(name);
+            upload = FileChannel.open(uploadTemp, StandardOpenOption.WRITE);
+            uploadTimer.disk(start);
+        } catch (IOException e) {
+            // тело все равно нужно дочитать, чтобы не сбить протокол
+            uploadFailed = true;
+        }
+    }
+
+    private long receiveBody() throws IOException {
+        if (uploadFailed) {
+            ByteBuffer skip = ByteBuffer.allocate((int) Math.min(INPUT_BUFFER_SIZE, uploadRemaining));
+            int read = channel.read(skip);
+            if (read > 0) {
+                StorageMetrics.BYTES_IN.add(read);
+                uploadRemaining -= read;
+                if (uploadRemaining == 0) {
+                    finishUpload();
+                }
+            }
+            return read;
+        }
+        long total = 0;
+        while (uploadRemaining > 0) {
+            long received;
+            try {
+                received = transfer.receive(channel, upload, uploadPosition, uploadRemaining);
+            } catch (IOException e) {
+                if (!channel.isOpen()) {
+                    throw e;
+                }
+                uploadFailed = true;
+                return total;
+            }
+            if (received < 0) {
+                return -1;
+            }
+            if (received == 0) {
+                break;
+            }
+            StorageMetrics.BYTES_IN.add(received);
+            uploadPosition += received;
+            uploadRemaining -= received;
+            total += received;
+        }
+        if (uploadRemaining == 0) {
+            finishUpload();
+        }
+        return total;
+    }
+
+    private void writeUpload(ByteBuffer data) {
+        int count = data.remaining();
+        if (!uploadFailed) {
+            long start = System.nanoTime();
+            try {
+                while (data.hasRemaining()) {
+                    uploadPosition += upload.write(data, uploadPosition);
                 }
+                uploadTimer.disk(start);
+            } catch (IOException e) {
+                uploadFailed = true;
+            }
+        }
+        uploadRemaining -= count;
+    }
+
+    private void finishUpload() throws IOException {
+        if (!uploadFailed) {
+            try {
+                upload.close();
+                upload = null;
+                storage.uploaded(uploadName, uploadTemp, null);
+            } catch (IOException e) {
+                uploadFailed = true;
+            }
+        }
+        closeUpload();
+        state = State.COMMAND;
+        send(utf(uploadFailed ? "ERROR" : "DONE"));
+        if (!uploadFailed) {
+            uploadTimer.finish();
+        }
+        commandDone();
+    }
+
+    private void rejectUpload() throws IOException {
+        closeUpload();
+        uploadRemaining = 0;
+        send(utf("ERROR"));
+        commandDone();
+    }
+
+    // загрузка учитывается вместе с приемом тела, скачивание - до постановки в очередь
+    private void commandDone() {
+        StorageMetrics.legacy(command).recordSince(commandStart);
+    }
+
+    private void download(String name) throws IOException {
+        StoredFile file;
+        HotFileCache.Lease cached;
+        try {
+            cached = storage.cached(name);
+            file = cached == null ? storage.open(name) : null;
+            if (cached == null && file == null) {
+                send(utf("FILE NOT FOUND"));
+                return;
+            }
+        } catch (IOException e) {
+            send(utf("ERROR"));
+            return;
+        }
+        long size = cached != null ? cached.content().remaining() : file.size();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeUTF("FILE");
+        out.writeLong(size);
+        if (cached != null) {
+            // заголовок и содержимое из кэша - одной записью
+            send(new BufferOutbound(cached, ByteBuffer.wrap(header.toByteArray()), cached.content()));
+            return;
+        }
+        outbound.add(new BufferOutbound(ByteBuffer.wrap(header.toByteArray())));
+        // старый протокол сжатия не знает
+        send(file.isCompressed() ? new InflatingOutbound(file, 0, size) : new FileOutbound(file.range(0, size), transfer));
+    }
+
+    /**
+     * Чтение диапазона: "FILE", long длина диапазона, данные. Данные берутся
+     * из общих отображенных участков файла, поэтому частые чтения кусков одного файла
+     * не открывают его заново и идут из страничного кэша.
+     */
+    private void read(String name, long offset, long length) throws IOException {
+        StoredFile file;
+        try {
+            file = storage.open(name);
+            if (file == null) {
+                send(utf("FILE NOT FOUND"));
+                return;
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            send(utf("ERROR"));
+            return;
+        }
+        if (offset < 0 || offset > file.size() || length < 0) {
+            send(utf("ERROR"));
+            return;
+        }
+        long count = Math.min(length, file.size() - offset);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeUTF("FILE");
+        out.writeLong(count);
+        outbound.add(new BufferOutbound(ByteBuffer.wrap(header.toByteArray())));
+        send(file.isCompressed() ? new InflatingOutbound(file, offset, count)
+            : new FileOutbound(file.range(offset, count), transfer, storage.regions()));
+    }
+
+    private void remove(String name) throws IOException {
+        try {
+            send(utf(storage.remove(name) ? "DONE" : "FILE NOT FOUND"));
+        } catch (IOException e) {
+            send(utf("ERROR"));
+        }
+    }
+
+    private void send(ByteBuffer buffer) throws IOException {
+        send(new BufferOutbound(buffer));
+    }
+
+    void send(Outbound message) throws IOException {
+        outbound.add(message);
+        flush();
+    }
+
+    private void flush() throws IOException {
+        if (!outbound.flush(channel)) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Чтение строки в формате DataOutputStream.writeUTF, если она пришла целиком
+     */
+    private String readUtf() throws IOException {
+        if (in.remaining() < 2) {
+            return null;
+        }
+        int length = in.getShort(in.position()) & 0xFFFF;
+        if (2 + length > in.capacity()) {
+            throw new IOException("Command is too long: " + length);
+        }
+        if (in.remaining() < 2 + length) {
+            return null;
+        }
+        byte[] bytes = new byte[2 + length];
+        in.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    private static ByteBuffer utf(String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(value);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Закрытие файла загрузки; недоставленный временный файл удаляется
+     */
+    private void closeUpload() {
+        if (upload != null) {
+            try {
+                upload.close();
+            } catch (IOException e) {
+                uploadFailed = true;
+            }
+            upload = null;
+        }
+        if (uploadTemp != null) {
+            try {
+                Files.deleteIfExists(uploadTemp);
+            } catch (IOException e) {
+                Log.error("Cannot discard upload " + uploadName, e);
+            }
+            uploadTemp = null;
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeUpload();
+        if (frames != null) {
+            frames.close();
+        }
+        outbound.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error("Cannot close connection", e);
         }
-        System.out.println("ClientHandler stopped");
+        reactor.connectionClosed();
+        Log.info("ClientHandler stopped");
     }
 }
@@ -0,0 +1,31 @@
+package lesson1.server;
+
+import lesson1.common.ClusterMap;
+
+/**
+ * Настройки кластера из свойств: storage.cluster - адреса всех узлов "host:port" через запятую,
+ * storage.replicas - число копий файла, storage.vnodes - виртуальных узлов на кольце.
+ * Без storage.cluster сервер работает одиночным хранилищем.
+ */
+final class Cluster {
+    private static final ClusterMap MAP = load();
+
+    private Cluster() {
+    }
+
+    /**
+     * @return карта кластера или null, если сервер не в кластере
+     */
+    static ClusterMap map() {
+        return MAP;
+    }
+
+    private static ClusterMap load() {
+        String nodes = System.getProperty("storage.cluster");
+        if (nodes == null || nodes.isBlank()) {
+            return null;
+        }
+        return ClusterMap.parse(nodes, Integer.getInteger("storage.replicas", ClusterMap.DEFAULT_REPLICAS),
+            Integer.getInteger("storage.vnodes", ClusterMap.DEFAULT_VIRTUAL_NODES));
+    }
+}
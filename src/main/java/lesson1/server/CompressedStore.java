@@ -0,0 +1,118 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lesson1.common.Codec;
+
+/**
+ * Файлы, сжатые при хранении: .compressed/<имя>.z с заголовком [int MAGIC][byte кодек][long исходный размер],
+ * за которым идет поток кодека. Клиенту с тем же кодеком такой файл отдается как есть, без пересжатия.
+ * Заголовок позволяет восстановить индекс по каталогу.
+ */
+public class CompressedStore {
+    public static final int HEADER_SIZE = Integer.BYTES + 1 + Long.BYTES;
+    private static final int MAGIC = 0x43535A31; // "CSZ1"
+    private static final String SUFFIX = ".z";
+
+    private final Path dir;
+
+    public CompressedStore(Storage storage) throws IOException {
+        this.dir = storage.serviceDir("compressed");
+    }
+
+    public Path path(String name) {
+        return dir.resolve(encodeName(name) + SUFFIX);
+    }
+
+    /**
+     * Временный файл для приема; после приема переносится на место методом {@link #commit}
+     */
+    public FileChannel create(String name, Codec codec, long size) throws IOException {
+        FileChannel file = FileChannel.open(tempPath(name),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put((byte) codec.id()).putLong(size);
+        header.flip();
+        while (header.hasRemaining()) {
+            file.write(header);
+        }
+        return file;
+    }
+
+    public void commit(String name) throws IOException {
+        Files.move(tempPath(name), path(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void discard(String name) throws IOException {
+        Files.deleteIfExists(tempPath(name));
+    }
+
+    public boolean remove(String name) throws IOException {
+        return Files.deleteIfExists(path(name));
+    }
+
+    public void copy(String source, String target) throws IOException {
+        Files.copy(path(source), path(target), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Сжатый файл или null, если его нет
+     */
+    public StoredFile open(String name) throws IOException {
+        Path path = path(name);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long stored;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (file.read(header) < 0) {
+                    throw new IOException("Compressed file is truncated: " + name);
+                }
+            }
+            stored = file.size() - HEADER_SIZE;
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a compressed file: " + name);
+        }
+        Codec codec = Codec.byId(header.get());
+        long size = header.getLong();
+        return new StoredFile(size, Collections.singletonList(new StoredFile.Segment(path, HEADER_SIZE, stored)),
+            codec);
+    }
+
+    public List<String> names() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                names.add(decodeName(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        return names;
+    }
+
+    private Path tempPath(String name) {
+        return dir.resolve(encodeName(name) + SUFFIX + ".tmp");
+    }
+
+    // как и у манифестов, '/' в имени заменяется на '%2F'
+    private static String encodeName(String name) {
+        return name.replace("%", "%25").replace("/", "%2F");
+    }
+
+    private static String decodeName(String name) {
+        return name.replace("%2F", "/").replace("%25", "%");
+    }
+}
@@ -0,0 +1,43 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+import lesson1.common.FileTransfer;
+
+/**
+ * Содержимое файла хранилища, которое отправляется в сокет через {@link FileTransfer}
+ * или из отображенных участков {@link MappedRegionCache}
+ */
+class FileOutbound implements Outbound {
+    private final SegmentCursor cursor;
+    private final TransferTimer timer = new TransferTimer();
+
+    FileOutbound(List<StoredFile.Segment> segments, FileTransfer transfer) {
+        this(segments, transfer, null);
+    }
+
+    FileOutbound(List<StoredFile.Segment> segments, FileTransfer transfer, MappedRegionCache regions) {
+        this.cursor = new SegmentCursor(segments, transfer, regions);
+        cursor.time(timer);
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        while (cursor.remaining() > 0) {
+            long sent = cursor.send(channel, cursor.remaining());
+            if (sent <= 0) {
+                return false;
+            }
+            StorageMetrics.BYTES_OUT.add(sent);
+        }
+        return true;
+    }
+
+    @Override
+    public void release() {
+        cursor.close();
+        timer.finish();
+    }
+}
@@ -0,0 +1,105 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+import lesson1.common.Checksum;
+import lesson1.common.FileTransfer;
+import lesson1.common.Protocol;
+
+/**
+ * Скачивание в кадровом протоколе: файл уходит кадрами DATA по {@link Protocol#DATA_CHUNK},
+ * заголовок кадра пишется из буфера, данные - напрямую из файла. Кадр не пересекает
+ * границу участка {@link StoredFile}. В конце отправляется END, с контрольной суммой - с CRC32C
+ * отправленных данных.
+ */
+class FrameFileStream implements Outbound {
+    private final int requestId;
+    private final SegmentCursor cursor;
+    private final Runnable onRelease;
+    private final ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_SIZE + Integer.BYTES);
+    private final Checksum checksum;
+    private final TransferTimer timer = new TransferTimer();
+    private long frameRemaining;
+    private boolean inFrame;
+    private boolean finished;
+    private volatile boolean cancelled;
+
+    /**
+     * @param regions  кэш отображенных участков для чтения диапазонов или null - передача через transfer
+     * @param checksum сумма для кадра END или null; считается только при чтении через regions
+     */
+    FrameFileStream(int requestId, List<StoredFile.Segment> segments, FileTransfer transfer,
+                    MappedRegionCache regions, Checksum checksum, Runnable onRelease) {
+        this.requestId = requestId;
+        this.cursor = new SegmentCursor(segments, transfer, regions);
+        this.checksum = checksum;
+        this.onRelease = onRelease;
+        cursor.time(timer);
+        if (checksum != null) {
+            cursor.track(checksum);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        if (!inFrame) {
+            startFrame();
+        }
+        if (header.hasRemaining()) {
+            StorageMetrics.BYTES_OUT.add(channel.write(header));
+            if (header.hasRemaining()) {
+                return false;
+            }
+        }
+        while (frameRemaining > 0) {
+            long sent = cursor.send(channel, frameRemaining);
+            if (sent <= 0) {
+                return false;
+            }
+            frameRemaining -= sent;
+            StorageMetrics.BYTES_OUT.add(sent);
+        }
+        inFrame = false;
+        return true;
+    }
+
+    private void startFrame() {
+        header.clear();
+        if (cursor.remaining() <= 0 || cancelled) {
+            if (checksum != null && !cancelled) {
+                Protocol.putHeader(header, Protocol.END, requestId, Integer.BYTES);
+                header.putInt(checksum.crcValue());
+            } else {
+                Protocol.putHeader(header, Protocol.END, requestId, 0);
+            }
+            frameRemaining = 0;
+            finished = true;
+        } else {
+            int length = (int) Math.min(Protocol.DATA_CHUNK, cursor.segmentRemaining());
+            Protocol.putHeader(header, Protocol.DATA, requestId, length);
+            frameRemaining = length;
+        }
+        header.flip();
+        inFrame = true;
+    }
+
+    @Override
+    public boolean hasMore() {
+        return !finished;
+    }
+
+    @Override
+    public void release() {
+        onRelease.run();
+        cursor.close();
+        timer.finish();
+    }
+}
@@ -0,0 +1,1222 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import lesson1.common.Batch;
+import lesson1.common.ChunkRef;
+import lesson1.common.ChunkState;
+import lesson1.common.Checksum;
+import lesson1.common.ClusterMap;
+import lesson1.common.Codec;
+import lesson1.common.Delta;
+import lesson1.common.FileInfo;
+import lesson1.common.FileTransfer;
+import lesson1.common.Protocol;
+import lesson1.metrics.Log;
+
+/**
+ * Обработка кадрового протокола {@link Protocol} на стороне сервера.
+ * Несколько загрузок и скачиваний одного соединения идут одновременно, их различают по id запроса.
+ */
+class FrameSession {
+    // StorageClient шлет части из четырех потоков, каждую целиком; 16 частей - до 8 МБ памяти на соединение
+    private static final int MAX_BLOBS_IN_FLIGHT = 16;
+
+    private final ClientHandler connection;
+    private final Storage storage;
+    private final FileTransfer transfer;
+    private final Map<Integer, Inbound> inbound = new HashMap<>();
+    private final Map<Integer, Outbound> downloads = new HashMap<>();
+    // кодеки, которые клиент объявил в HELLO; без HELLO сжатые файлы отдаются распакованными
+    private int codecs;
+    // клиент присылает CHECKSUM после данных и сверяет суммы в ответах
+    private boolean checksums;
+    // части BLOB_PUT копятся в памяти до последнего кадра, поэтому их число на соединение ограничено
+    private int blobsInFlight;
+
+    FrameSession(ClientHandler connection, Storage storage, FileTransfer transfer) {
+        this.connection = connection;
+        this.storage = storage;
+        this.transfer = transfer;
+    }
+
+    /**
+     * Разбор всех полностью пришедших кадров. Неполный кадр остается в буфере.
+     */
+    void process(ByteBuffer in) throws IOException {
+        while (in.remaining() >= Integer.BYTES) {
+            int length = in.getInt(in.position());
+            if (length < Protocol.HEADER_SIZE - Integer.BYTES
+                || length > Protocol.MAX_PAYLOAD + Protocol.HEADER_SIZE - Integer.BYTES) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (in.remaining() < Integer.BYTES + length) {
+                return;
+            }
+            in.getInt();
+            byte op = in.get();
+            int requestId = in.getInt();
+            int payloadLength = length - (Protocol.HEADER_SIZE - Integer.BYTES);
+            ByteBuffer payload = in.slice();
+            payload.limit(payloadLength);
+            in.position(in.position() + payloadLength);
+            long start = System.nanoTime();
+            try {
+                handle(op, requestId, payload);
+            } catch (RuntimeException e) {
+                // некорректные данные кадра - ошибка только этого запроса
+                reply(Protocol.frame(Protocol.ERROR, requestId, String.valueOf(e.getMessage())));
+            } finally {
+                StorageMetrics.command(op).recordSince(start);
+            }
+        }
+    }
+
+    private void handle(byte op, int requestId, ByteBuffer payload) throws IOException {
+        if (inbound.containsKey(requestId) && !continuesRequest(op)) {
+            // новый запрос с id незавершенного приема смешал бы кадры DATA двух запросов
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Request id is already in use: " + requestId));
+            return;
+        }
+        switch (op) {
+            case Protocol.UPLOAD:
+                upload(requestId, Protocol.getString(payload), payload.getLong(),
+                    payload.hasRemaining() ? Codec.byId(payload.get()) : Codec.NONE);
+                break;
+            case Protocol.DATA:
+                data(requestId, payload);
+                break;
+            case Protocol.END:
+                end(requestId);
+                break;
+            case Protocol.DOWNLOAD:
+                read(requestId, Protocol.getString(payload), 0, Long.MAX_VALUE, null);
+                break;
+            case Protocol.REMOVE:
+                remove(requestId, Protocol.getString(payload));
+                break;
+            case Protocol.LIST:
+                list(requestId, payload.hasRemaining() ? Protocol.getString(payload) : "");
+                break;
+            case Protocol.CANCEL:
+                cancel(requestId);
+                break;
+            case Protocol.CHUNK_OPEN:
+                chunkOpen(requestId, Protocol.getString(payload), payload.getLong(), payload.getInt());
+                break;
+            case Protocol.CHUNK_PUT:
+                chunkPut(requestId, Protocol.getString(payload), payload.getInt());
+                break;
+            case Protocol.CHUNK_COMMIT:
+                chunkCommit(requestId, Protocol.getString(payload));
+                break;
+            case Protocol.READ:
+                read(requestId, Protocol.getString(payload), payload.getLong(), payload.getLong(), storage.regions());
+                break;
+            case Protocol.CHUNK_QUERY:
+                chunkQuery(requestId, payload);
+                break;
+            case Protocol.BLOB_PUT:
+                blobPut(requestId, payload);
+                break;
+            case Protocol.MANIFEST_PUT:
+                manifestPut(requestId, Protocol.getString(payload), payload.getInt(), hash(payload));
+                break;
+            case Protocol.HELLO:
+                hello(requestId, payload.getInt());
+                break;
+            case Protocol.CHECKSUM:
+                checksum(requestId, payload);
+                break;
+            case Protocol.SIGNATURE:
+                signature(requestId, Protocol.getString(payload), payload.getInt());
+                break;
+            case Protocol.DELTA_PUT:
+                deltaPut(requestId, Protocol.getString(payload), payload.getLong(), payload.getInt());
+                break;
+            case Protocol.BATCH_PUT:
+                receive(requestId, new BatchUpload(payload.getInt(), checksums));
+                break;
+            case Protocol.BATCH_GET:
+                batchGet(requestId, payload);
+                break;
+            case Protocol.CLUSTER:
+                cluster(requestId);
+                break;
+            case Protocol.HINT_PUT:
+                hintPut(requestId, Protocol.getString(payload), Protocol.getString(payload), payload.getLong());
+                break;
+            case Protocol.HINT_REMOVE:
+                hintRemove(requestId, Protocol.getString(payload), Protocol.getString(payload));
+                break;
+            default:
+                reply(Protocol.frame(Protocol.ERROR, requestId, "Unknown operation: " + op));
+        }
+    }
+
+    // кадры, которые продолжают уже начатый запрос
+    private static boolean continuesRequest(byte op) {
+        return op == Protocol.DATA || op == Protocol.END || op == Protocol.CHECKSUM || op == Protocol.CANCEL;
+    }
+
+    private void hello(int requestId, int mask) throws IOException {
+        codecs = mask & Codec.supported();
+        checksums = (mask & Protocol.CHECKSUMS) != 0;
+        ByteBuffer frame = Protocol.allocate(Protocol.HELLO, requestId, Integer.BYTES);
+        reply(frame.putInt(codecs | (checksums ? Protocol.CHECKSUMS : 0)).flip());
+    }
+
+    // необязательный хеш в конце данных кадра
+    private static byte[] hash(ByteBuffer payload) {
+        if (payload.remaining() < Checksum.HASH_SIZE) {
+            return null;
+        }
+        byte[] hash = new byte[Checksum.HASH_SIZE];
+        payload.get(hash);
+        return hash;
+    }
+
+    private void upload(int requestId, String name, long size, Codec codec) throws IOException {
+        // у сжатого потока size - размер до сжатия, на диске он займет меньше
+        if (!checkSize(requestId, size, codec == Codec.NONE)) {
+            return;
+        }
+        if (codec != Codec.NONE) {
+            uploadCompressed(requestId, name, size, codec);
+            return;
+        }
+        Path temp;
+        FileChannel file;
+        try {
+            temp = storage.uploadTemp(name);
+            file = FileChannel.open(temp, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Cannot write " + name));
+            return;
+        }
+        receive(requestId, new Upload(name, temp, file, size, checksums));
+    }
+
+    /**
+     * Сжатый поток сохраняется как есть, без распаковки; его длина заранее неизвестна, конец - кадр END
+     */
+    private void uploadCompressed(int requestId, String name, long size, Codec codec) throws IOException {
+        FileChannel file;
+        try {
+            storage.resolve(name);
+            file = storage.compressedStore().create(name, codec, size);
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Cannot write " + name));
+            return;
+        }
+        inbound.put(requestId, new CompressedUpload(name, file, codec, size, checksums));
+    }
+
+    /**
+     * Проверка объявленного размера до открытия временного файла, который иначе
+     * остался бы открытым до закрытия соединения
+     */
+    private boolean checkSize(int requestId, long size, boolean checkSpace) throws IOException {
+        if (size < 0) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Invalid size: " + size));
+            return false;
+        }
+        if (checkSpace && size > storage.usableSpace()) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Not enough space for " + size + " bytes"));
+            return false;
+        }
+        return true;
+    }
+
+    private void receive(int requestId, Inbound receiver) throws IOException {
+        if (receiver.isComplete()) {
+            complete(requestId, receiver);
+        } else {
+            inbound.put(requestId, receiver);
+        }
+    }
+
+    private void data(int requestId, ByteBuffer payload) throws IOException {
+        Inbound receiver = inbound.get(requestId);
+        if (receiver == null) {
+            // прием уже завершился ошибкой или отменен
+            return;
+        }
+        try {
+            receiver.accept(payload);
+        } catch (IOException | RuntimeException e) {
+            // в том числе обрезанная запись или команда внутри кадра
+            inbound.remove(requestId);
+            receiver.abort();
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Write failed: " + e.getMessage()));
+            return;
+        }
+        if (receiver.isComplete()) {
+            inbound.remove(requestId);
+            complete(requestId, receiver);
+        }
+    }
+
+    /**
+     * Сверка суммы после последнего DATA; при расхождении принятое отбрасывается
+     */
+    private void checksum(int requestId, ByteBuffer payload) throws IOException {
+        Inbound receiver = inbound.get(requestId);
+        if (receiver == null) {
+            return;
+        }
+        try {
+            receiver.checksum(payload.getInt(), hash(payload));
+        } catch (IOException e) {
+            inbound.remove(requestId);
+            receiver.abort();
+            reply(Protocol.frame(Protocol.ERROR, requestId, e.getMessage()));
+            return;
+        }
+        if (receiver.isComplete()) {
+            inbound.remove(requestId);
+            complete(requestId, receiver);
+        }
+    }
+
+    private void end(int requestId) throws IOException {
+        Inbound receiver = inbound.remove(requestId);
+        if (receiver instanceof CompressedUpload) {
+            ((CompressedUpload) receiver).ended = true;
+            complete(requestId, receiver);
+        } else if (receiver != null) {
+            receiver.abort();
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Unexpected end of data"));
+        }
+    }
+
+    private void complete(int requestId, Inbound receiver) throws IOException {
+        CompletableFuture<Void> done;
+        try {
+            done = receiver.completion();
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, String.valueOf(e.getMessage())));
+            return;
+        }
+        replyWhenDone(requestId, done);
+    }
+
+    /**
+     * Ответ OK или ERROR, когда закончится дисковая операция; если она идет в другом потоке,
+     * ответ уходит из потока реактора
+     */
+    private void replyWhenDone(int requestId, CompletableFuture<Void> done) throws IOException {
+        if (!done.isDone()) {
+            done.whenComplete((ignored, error) -> connection.execute(() -> replyWhenDone(requestId, done)));
+            return;
+        }
+        try {
+            done.join();
+            reply(Protocol.frame(Protocol.OK, requestId));
+        } catch (CompletionException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, String.valueOf(e.getCause().getMessage())));
+        }
+    }
+
+    private void chunkOpen(int requestId, String name, long size, int chunkSize) throws IOException {
+        ChunkState state;
+        try {
+            state = storage.chunkedUploads().open(name, size, chunkSize).state();
+        } catch (IOException | IllegalArgumentException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Cannot open " + name + ": " + e.getMessage()));
+            return;
+        }
+        ByteBuffer frame = Protocol.allocate(Protocol.CHUNK_STATE, requestId, state.encodedSize());
+        state.writeTo(frame);
+        reply(frame.flip());
+    }
+
+    private void chunkPut(int requestId, String name, int chunk) throws IOException {
+        ChunkedUploads.Partial partial = storage.chunkedUploads().get(name);
+        if (partial == null || chunk < 0 || chunk >= partial.state().chunkCount()) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Unknown chunk " + chunk + " of " + name));
+            return;
+        }
+        long offset = partial.state().offset(chunk);
+        receive(requestId, new Upload(partial, chunk, offset, offset + partial.state().length(chunk), checksums));
+    }
+
+    private void chunkCommit(int requestId, String name) throws IOException {
+        replyWhenDone(requestId, storage.chunkedUploads().commit(name));
+    }
+
+    /**
+     * Какие из перечисленных частей отсутствуют в хранилище частей
+     */
+    private void chunkQuery(int requestId, ByteBuffer payload) throws IOException {
+        int count = payload.getInt();
+        BitSet missing = new BitSet(count);
+        byte[] hash = new byte[ChunkRef.HASH_SIZE];
+        for (int i = 0; i < count; i++) {
+            payload.get(hash);
+            if (!storage.chunkStore().has(hash)) {
+                missing.set(i);
+            }
+        }
+        byte[] bits = missing.toByteArray();
+        ByteBuffer frame = Protocol.allocate(Protocol.CHUNK_MISSING, requestId, Integer.BYTES + bits.length);
+        frame.putInt(bits.length).put(bits);
+        reply(frame.flip());
+    }
+
+    private void blobPut(int requestId, ByteBuffer payload) throws IOException {
+        byte[] hash = new byte[ChunkRef.HASH_SIZE];
+        payload.get(hash);
+        int length = payload.getInt();
+        if (length <= 0 || length > Protocol.MAX_PAYLOAD * 4) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Invalid chunk length: " + length));
+            return;
+        }
+        if (blobsInFlight >= MAX_BLOBS_IN_FLIGHT) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Too many chunk uploads in flight"));
+            return;
+        }
+        blobsInFlight++;
+        receive(requestId, new BlobUpload(hash, length));
+    }
+
+    private void manifestPut(int requestId, String name, int count, byte[] hash) throws IOException {
+        try {
+            storage.resolve(name);
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, e.getMessage()));
+            return;
+        }
+        receive(requestId, new ManifestUpload(name, count, hash));
+    }
+
+    /**
+     * Отправка диапазона файла. В ответе FILE передается полный размер файла,
+     * поэтому READ с нулевой длиной работает как запрос размера.
+     * Диапазоны READ читаются из общих отображенных участков, целый файл DOWNLOAD - через transferTo.
+     * Сжатый файл клиенту с тем же кодеком уходит как есть, остальным - распакованным по ходу отправки.
+     * Клиенту, который сверяет суммы, FILE несет хеш файла из индекса, а END ответа на READ - CRC32C диапазона.
+     */
+    private void read(int requestId, String name, long offset, long length, MappedRegionCache regions)
+        throws IOException {
+        if (offset < 0 || length < 0) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Invalid range"));
+            return;
+        }
+        StoredFile file;
+        byte[] hash;
+        try {
+            FileInfo info = storage.info(name);
+            hash = info == null ? null : info.getHash();
+            HotFileCache.Lease cached = regions == null && offset == 0 ? storage.cached(name) : null;
+            if (cached != null) {
+                sendCached(requestId, cached, hash);
+                return;
+            }
+            file = storage.open(name);
+            if (file == null) {
+                reply(Protocol.frame(Protocol.NOT_FOUND, requestId));
+                return;
+            }
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Cannot read " + name));
+            return;
+        }
+        if (offset > file.size()) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Invalid range"));
+            return;
+        }
+        long count = Math.min(length, file.size() - offset);
+        Checksum checksum = checksums && regions != null ? Checksum.crc() : null;
+        Outbound stream;
+        if (!file.isCompressed()) {
+            reply(fileFrame(requestId, file.size(), Codec.NONE, hash));
+            stream = new FrameFileStream(requestId, file.range(offset, count), transfer, regions, checksum,
+                () -> downloads.remove(requestId));
+        } else if (regions == null && offset == 0 && file.codec().isAccepted(codecs)) {
+            reply(fileFrame(requestId, file.size(), file.codec(), hash));
+            stream = new FrameFileStream(requestId, file.range(0, file.storedSize()), transfer, null, null,
+                () -> downloads.remove(requestId));
+        } else {
+            reply(fileFrame(requestId, file.size(), Codec.NONE, hash));
+            stream = new InflatingOutbound(file, offset, count, requestId, checksum,
+                () -> downloads.remove(requestId));
+        }
+        downloads.put(requestId, stream);
+        connection.send(stream);
+    }
+
+    /**
+     * Ответ FILE: long размер, дальше кодек и хеш, если они нужны клиенту
+     */
+    private ByteBuffer fileFrame(int requestId, long size, Codec codec, byte[] hash) {
+        if (!checksums && codec == Codec.NONE) {
+            return Protocol.frame(Protocol.FILE, requestId, size);
+        }
+        int hashSize = checksums && hash != null ? hash.length : 0;
+        ByteBuffer frame = Protocol.allocate(Protocol.FILE, requestId, Long.BYTES + 1 + hashSize);
+        frame.putLong(size).put((byte) codec.id());
+        if (hashSize > 0) {
+            frame.put(hash);
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Файл из кэша горячих файлов: ответ FILE, кадры DATA и END уходят одной записью со сбором,
+     * данные кадров - срезы кэшированного буфера без копирования
+     */
+    private void sendCached(int requestId, HotFileCache.Lease cached, byte[] hash) throws IOException {
+        ByteBuffer content = cached.content();
+        int frames = (content.remaining() + Protocol.DATA_CHUNK - 1) / Protocol.DATA_CHUNK;
+        ByteBuffer[] buffers = new ByteBuffer[2 + 2 * frames];
+        buffers[0] = fileFrame(requestId, content.remaining(), Codec.NONE, hash);
+        for (int i = 0; i < frames; i++) {
+            int length = Math.min(Protocol.DATA_CHUNK, content.remaining());
+            buffers[1 + 2 * i] = Protocol.header(Protocol.DATA, requestId, length);
+            ByteBuffer data = content.slice();
+            data.limit(length);
+            buffers[2 + 2 * i] = data;
+            content.position(content.position() + length);
+        }
+        buffers[buffers.length - 1] = Protocol.frame(Protocol.END, requestId);
+        connection.send(new BufferOutbound(cached, buffers));
+    }
+
+    /**
+     * Подписи блоков текущей копии файла для синхронизации по отличиям
+     */
+    private void signature(int requestId, String name, int blockSize) throws IOException {
+        StoredFile file;
+        byte[] hash;
+        try {
+            file = storage.open(name);
+            FileInfo info = storage.info(name);
+            hash = info == null ? null : info.getHash();
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Cannot read " + name));
+            return;
+        }
+        if (file == null) {
+            reply(Protocol.frame(Protocol.NOT_FOUND, requestId));
+            return;
+        }
+        if (blockSize < Delta.MIN_BLOCK || blockSize > Delta.MAX_BLOCK) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Invalid block size: " + blockSize));
+            return;
+        }
+        reply(fileFrame(requestId, file.size(), Codec.NONE, hash));
+        SignatureStream stream = new SignatureStream(requestId, file, blockSize, () -> downloads.remove(requestId));
+        downloads.put(requestId, stream);
+        connection.send(stream);
+    }
+
+    /**
+     * Новый файл собирается во временном файле из блоков текущей копии и присланных байт,
+     * на место он переносится после приема всех команд (и сверки суммы)
+     */
+    private void deltaPut(int requestId, String name, long size, int blockSize) throws IOException {
+        if (blockSize < Delta.MIN_BLOCK || blockSize > Delta.MAX_BLOCK) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Invalid block size: " + blockSize));
+            return;
+        }
+        if (!checkSize(requestId, size, true)) {
+            return;
+        }
+        Path temp;
+        FileChannel file;
+        StoredFile base;
+        try {
+            base = storage.open(name);
+            temp = storage.uploadTemp(name);
+            file = FileChannel.open(temp, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Cannot write " + name));
+            return;
+        }
+        if (base == null || base.isCompressed()) {
+            // команд COPY для такого файла нет, только LITERAL
+            base = new StoredFile(0, List.of());
+        }
+        receive(requestId, new DeltaUpload(name, base, blockSize, temp, file, size, checksums));
+    }
+
+    private void batchGet(int requestId, ByteBuffer payload) throws IOException {
+        int count = payload.getInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(Protocol.getString(payload));
+        }
+        BatchStream stream = new BatchStream(requestId, storage, names, checksums ? Checksum.crc() : null,
+            () -> downloads.remove(requestId));
+        downloads.put(requestId, stream);
+        connection.send(stream);
+    }
+
+    private void remove(int requestId, String name) throws IOException {
+        try {
+            reply(Protocol.frame(storage.remove(name) ? Protocol.OK : Protocol.NOT_FOUND, requestId));
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Cannot remove " + name));
+        }
+    }
+
+    private void list(int requestId, String prefix) throws IOException {
+        Collection<FileInfo> files;
+        try {
+            files = storage.list(prefix);
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Cannot list files"));
+            return;
+        }
+        List<FileInfo> page = new ArrayList<>();
+        int pageSize = 0;
+        for (FileInfo info : files) {
+            if (pageSize + info.encodedSize() > Protocol.DATA_CHUNK) {
+                sendPage(requestId, page, pageSize);
+                page.clear();
+                pageSize = 0;
+            }
+            page.add(info);
+            pageSize += info.encodedSize();
+        }
+        if (!page.isEmpty()) {
+            sendPage(requestId, page, pageSize);
+        }
+        reply(Protocol.frame(Protocol.END, requestId));
+    }
+
+    private void sendPage(int requestId, List<FileInfo> page, int pageSize) throws IOException {
+        ByteBuffer buffer = Protocol.allocate(Protocol.LIST_PAGE, requestId, Integer.BYTES + pageSize);
+        buffer.putInt(page.size());
+        for (FileInfo info : page) {
+            info.writeTo(buffer);
+        }
+        reply(buffer.flip());
+    }
+
+    private void cluster(int requestId) throws IOException {
+        ClusterMap map = Cluster.map();
+        if (map == null) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Not a cluster node"));
+            return;
+        }
+        ByteBuffer frame = Protocol.allocate(Protocol.CLUSTER_MAP, requestId, map.encodedSize());
+        map.writeTo(frame);
+        reply(frame.flip());
+    }
+
+    /**
+     * Файл для недоступного владельца node принимается как обычная загрузка, но остается подсказкой
+     */
+    private void hintPut(int requestId, String node, String name, long size) throws IOException {
+        if (!checkSize(requestId, size, true)) {
+            return;
+        }
+        Path temp;
+        FileChannel file;
+        try {
+            checkHint(node, name);
+            temp = storage.hints().temp();
+            file = FileChannel.open(temp, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Cannot write hint " + name + ": " + e.getMessage()));
+            return;
+        }
+        receive(requestId, new Upload(node, name, temp, file, size, checksums));
+    }
+
+    private void hintRemove(int requestId, String node, String name) throws IOException {
+        try {
+            checkHint(node, name);
+            storage.hints().remove(node, name);
+            reply(Protocol.frame(Protocol.OK, requestId));
+        } catch (IOException e) {
+            reply(Protocol.frame(Protocol.ERROR, requestId, "Cannot write hint " + name + ": " + e.getMessage()));
+        }
+    }
+
+    private void checkHint(String node, String name) throws IOException {
+        ClusterMap map = Cluster.map();
+        if (map == null || !map.nodes().contains(node)) {
+            throw new IOException("Unknown cluster node: " + node);
+        }
+        storage.resolve(name);
+    }
+
+    private void cancel(int requestId) {
+        Inbound receiver = inbound.remove(requestId);
+        if (receiver != null) {
+            receiver.abort();
+        }
+        Outbound stream = downloads.get(requestId);
+        if (stream != null) {
+            stream.cancel();
+        }
+    }
+
+    private void reply(ByteBuffer frame) throws IOException {
+        connection.send(new BufferOutbound(frame));
+    }
+
+    void close() {
+        inbound.values().forEach(Inbound::abort);
+        inbound.clear();
+    }
+
+    /**
+     * Прием данных запроса из кадров DATA
+     */
+    private interface Inbound {
+        void accept(ByteBuffer payload) throws IOException;
+
+        boolean isComplete();
+
+        /**
+         * Завершение после приема всех данных; исключение превращается в ответ ERROR
+         */
+        void complete() throws IOException;
+
+        /**
+         * Завершение, которое может закончиться позже в другом потоке; по умолчанию - {@link #complete()}
+         */
+        default CompletableFuture<Void> completion() throws IOException {
+            complete();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        void abort();
+
+        /**
+         * Контрольная сумма от клиента после последнего DATA
+         */
+        default void checksum(int crc, byte[] hash) throws IOException {
+            throw new IOException("Unexpected checksum");
+        }
+    }
+
+    /**
+     * Прием файла целиком при UPLOAD (во временный файл, на место - после приема и сверки),
+     * подсказки для другого узла при HINT_PUT или одной части общего файла при CHUNK_PUT
+     */
+    private final class Upload implements Inbound {
+        // узел, для которого файл остается подсказкой; null - файл этого хранилища
+        private final String hintFor;
+        private final String name;
+        private final Path temp;
+        private final FileChannel file;
+        private final ChunkedUploads.Partial partial;
+        private final Checksum checksum;
+        private final boolean awaitChecksum;
+        private final int chunk;
+        private final long end;
+        private final TransferTimer timer = new TransferTimer();
+        private long position;
+        private byte[] hash;
+        private boolean verified;
+
+        Upload(String name, Path temp, FileChannel file, long end, boolean awaitChecksum) {
+            this(null, name, temp, file, end, awaitChecksum);
+        }
+
+        Upload(String hintFor, String name, Path temp, FileChannel file, long end, boolean awaitChecksum) {
+            this.hintFor = hintFor;
+            this.name = name;
+            this.temp = temp;
+            this.file = file;
+            this.partial = null;
+            // файл приходит по порядку, поэтому хеш считается по ходу приема
+            this.checksum = Checksum.full();
+            this.awaitChecksum = awaitChecksum;
+            this.chunk = -1;
+            this.end = end;
+        }
+
+        Upload(ChunkedUploads.Partial partial, int chunk, long position, long end, boolean awaitChecksum) {
+            this.hintFor = null;
+            this.name = null;
+            this.temp = null;
+            this.file = partial.file();
+            this.partial = partial;
+            this.checksum = Checksum.crc();
+            this.awaitChecksum = awaitChecksum;
+            this.chunk = chunk;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public void accept(ByteBuffer payload) throws IOException {
+            if (payload.remaining() > end - position) {
+                throw new IOException("More data than declared");
+            }
+            checksum.update(payload);
+            long start = System.nanoTime();
+            while (payload.hasRemaining()) {
+                position += file.write(payload, position);
+            }
+            timer.disk(start);
+        }
+
+        @Override
+        public boolean isComplete() {
+            return position == end && (verified || !awaitChecksum);
+        }
+
+        @Override
+        public void checksum(int crc, byte[] expected) throws IOException {
+            if (position != end) {
+                throw new IOException("Checksum before end of data");
+            }
+            Checksum.verifyCrc(crc, checksum.crcValue());
+            hash = checksum.hash();
+            if (hash != null) {
+                Checksum.verifyHash(expected, hash);
+            }
+            verified = true;
+        }
+
+        @Override
+        public void complete() throws IOException {
+            file.close();
+            if (hintFor != null) {
+                storage.hints().put(hintFor, name, temp);
+            } else {
+                storage.uploaded(name, temp, verified ? hash : checksum.hash());
+            }
+            timer.finish();
+        }
+
+        /**
+         * Общий файл частей не закрывается, часть только подтверждается - со сбросом на диск
+         * в потоке {@link ChunkedUploads}
+         */
+        @Override
+        public CompletableFuture<Void> completion() throws IOException {
+            if (partial == null) {
+                return Inbound.super.completion();
+            }
+            return storage.chunkedUploads().complete(partial, chunk).thenRun(timer::finish);
+        }
+
+        @Override
+        public void abort() {
+            if (partial == null) {
+                try {
+                    file.close();
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    Log.error("Cannot discard upload " + name, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Прием сжатого потока в {@link CompressedStore}; завершается кадром END от клиента
+     */
+    private final class CompressedUpload implements Inbound {
+        private final String name;
+        private final FileChannel file;
+        private final Codec codec;
+        private final long size;
+        private final Checksum checksum;
+        private final boolean awaitChecksum;
+        private final TransferTimer timer = new TransferTimer();
+        // хеш исходного содержимого от клиента: сервер поток не распаковывает и проверить его не может
+        private byte[] hash;
+        private boolean verified;
+        private boolean ended;
+
+        CompressedUpload(String name, FileChannel file, Codec codec, long size, boolean awaitChecksum) {
+            this.name = name;
+            this.file = file;
+            this.codec = codec;
+            this.size = size;
+            this.checksum = Checksum.crc();
+            this.awaitChecksum = awaitChecksum;
+        }
+
+        @Override
+        public void accept(ByteBuffer payload) throws IOException {
+            checksum.update(payload);
+            long start = System.nanoTime();
+            while (payload.hasRemaining()) {
+                file.write(payload);
+            }
+            timer.disk(start);
+        }
+
+        @Override
+        public boolean isComplete() {
+            return ended;
+        }
+
+        @Override
+        public void checksum(int crc, byte[] expected) throws IOException {
+            Checksum.verifyCrc(crc, checksum.crcValue());
+            hash = expected;
+            verified = true;
+        }
+
+        @Override
+        public void complete() throws IOException {
+            if (awaitChecksum && !verified) {
+                abort();
+                throw new IOException("Missing checksum");
+            }
+            file.close();
+            storage.compressedStored(name, codec, size, hash);
+            timer.finish();
+        }
+
+        @Override
+        public void abort() {
+            try {
+                file.close();
+                storage.compressedStore().discard(name);
+            } catch (IOException e) {
+                Log.error("Cannot discard upload " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Сборка файла по командам Delta. Команды одного кадра выполняются в потоке реактора,
+     * клиент ограничивает число копируемых байт на кадр. Блоки старой копии читаются через буфер:
+     * по ним, как и по вставленным байтам, считается хеш нового файла.
+     */
+    private final class DeltaUpload implements Inbound {
+        private final String name;
+        private final StoredFile base;
+        private final StoredFileReader reader;
+        private final int blockSize;
+        private final Path temp;
+        private final FileChannel file;
+        private final long end;
+        private final Checksum frames = Checksum.crc();
+        private final Checksum content = Checksum.full();
+        private final boolean awaitChecksum;
+        private final ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        private final TransferTimer timer = new TransferTimer();
+        private long position;
+        private byte[] hash;
+        private boolean verified;
+
+        DeltaUpload(String name, StoredFile base, int blockSize, Path temp, FileChannel file, long end,
+                    boolean awaitChecksum) {
+            this.name = name;
+            this.base = base;
+            this.reader = new StoredFileReader(base);
+            this.blockSize = blockSize;
+            this.temp = temp;
+            this.file = file;
+            this.end = end;
+            this.awaitChecksum = awaitChecksum;
+        }
+
+        @Override
+        public void accept(ByteBuffer payload) throws IOException {
+            frames.update(payload);
+            long copied = 0;
+            while (payload.hasRemaining()) {
+                byte op = payload.get();
+                if (op == Delta.COPY) {
+                    copied += copy(payload.getInt(), payload.getInt());
+                    if (copied > Delta.MAX_FRAME_COPY) {
+                        throw new IOException("Too many blocks in one frame");
+                    }
+                } else if (op == Delta.LITERAL) {
+                    int length = payload.getInt();
+                    if (length < 0 || length > payload.remaining()) {
+                        throw new IOException("Invalid literal length: " + length);
+                    }
+                    ByteBuffer literal = payload.slice();
+                    literal.limit(length);
+                    write(literal);
+                    payload.position(payload.position() + length);
+                } else {
+                    throw new IOException("Unknown delta operation: " + op);
+                }
+            }
+        }
+
+        private long copy(int block, int count) throws IOException {
+            long from = (long) block * blockSize;
+            long to = Math.min(base.size(), ((long) block + count) * blockSize);
+            if (block < 0 || count <= 0 || from >= to) {
+                throw new IOException("Invalid block range: " + block + "+" + count);
+            }
+            long length = to - from;
+            while (from < to) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), to - from));
+                long start = System.nanoTime();
+                reader.read(from, buffer);
+                timer.disk(start);
+                from += buffer.flip().remaining();
+                write(buffer);
+            }
+            return length;
+        }
+
+        private void write(ByteBuffer data) throws IOException {
+            if (data.remaining() > end - position) {
+                throw new IOException("More data than declared");
+            }
+            content.update(data);
+            long start = System.nanoTime();
+            while (data.hasRemaining()) {
+                position += file.write(data, position);
+            }
+            timer.disk(start);
+        }
+
+        @Override
+        public boolean isComplete() {
+            return position == end && (verified || !awaitChecksum);
+        }
+
+        @Override
+        public void checksum(int crc, byte[] expected) throws IOException {
+            if (position != end) {
+                throw new IOException("Checksum before end of data");
+            }
+            Checksum.verifyCrc(crc, frames.crcValue());
+            hash = content.hash();
+            Checksum.verifyHash(expected, hash);
+            verified = true;
+        }
+
+        @Override
+        public void complete() throws IOException {
+            reader.close();
+            file.close();
+            storage.uploaded(name, temp, verified ? hash : content.hash());
+            timer.finish();
+        }
+
+        @Override
+        public void abort() {
+            try {
+                reader.close();
+                file.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                Log.error("Cannot discard upload " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Прием пакета файлов. Каждый файл пишется во временный файл и переносится на место,
+     * как только сошелся его хеш, с временем изменения с клиента. Ошибка в одном файле
+     * прерывает пакет; уже перенесенные файлы остаются.
+     */
+    private final class BatchUpload implements Inbound {
+        private final Checksum frames = Checksum.crc();
+        private final boolean awaitChecksum;
+        private final TransferTimer timer = new TransferTimer();
+        private int files;
+        private Batch entry;
+        private Path temp;
+        private FileChannel file;
+        private Checksum content;
+        private long position;
+        private boolean verified;
+
+        BatchUpload(int files, boolean awaitChecksum) {
+            this.files = files;
+            this.awaitChecksum = awaitChecksum;
+        }
+
+        @Override
+        public void accept(ByteBuffer payload) throws IOException {
+            frames.update(payload);
+            while (payload.hasRemaining()) {
+                if (entry == null) {
+                    Batch next = Batch.readFrom(payload);
+                    long start = System.nanoTime();
+                    open(next);
+                    timer.disk(start);
+                } else {
+                    ByteBuffer data = payload.slice();
+                    data.limit((int) Math.min(data.remaining(), entry.getSize() - position));
+                    payload.position(payload.position() + data.remaining());
+                    content.update(data);
+                    long start = System.nanoTime();
+                    while (data.hasRemaining()) {
+                        position += file.write(data, position);
+                    }
+                    timer.disk(start);
+                }
+                if (entry != null && position == entry.getSize()) {
+                    long start = System.nanoTime();
+                    store();
+                    timer.disk(start);
+                }
+            }
+        }
+
+        private void open(Batch next) throws IOException {
+            if (files == 0) {
+                throw new IOException("More files than declared");
+            }
+            if (next.getSize() < 0 || next.getHash().length != Checksum.HASH_SIZE) {
+                throw new IOException("Invalid batch entry: " + next.getName());
+            }
+            int slash = next.getName().lastIndexOf('/');
+            if (slash > 0 && storage.info(next.getName().substring(0, slash + 1)) == null) {
+                storage.mkdir(next.getName().substring(0, slash));
+            }
+            entry = next;
+            temp = storage.uploadTemp(entry.getName());
+            file = FileChannel.open(temp, StandardOpenOption.WRITE);
+            content = Checksum.full();
+            position = 0;
+        }
+
+        private void store() throws IOException {
+            file.close();
+            byte[] hash = content.hash();
+            Checksum.verifyHash(entry.getHash(), hash);
+            Files.setLastModifiedTime(temp, FileTime.fromMillis(entry.getModified()));
+            storage.uploaded(entry.getName(), temp, hash);
+            entry = null;
+            files--;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return files == 0 && (verified || !awaitChecksum);
+        }
+
+        @Override
+        public void checksum(int crc, byte[] expected) throws IOException {
+            if (files != 0) {
+                throw new IOException("Checksum before end of data");
+            }
+            Checksum.verifyCrc(crc, frames.crcValue());
+            verified = true;
+        }
+
+        @Override
+        public void complete() {
+            timer.finish();
+        }
+
+        @Override
+        public void abort() {
+            if (entry == null) {
+                return;
+            }
+            try {
+                file.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                Log.error("Cannot discard batch entry " + entry.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Прием одной части для хранилища частей. Часть не больше нескольких кадров, она собирается в памяти.
+     */
+    private final class BlobUpload implements Inbound {
+        private final byte[] hash;
+        private final byte[] data;
+        private int received;
+
+        BlobUpload(byte[] hash, int length) {
+            this.hash = hash;
+            this.data = new byte[length];
+        }
+
+        @Override
+        public void accept(ByteBuffer payload) throws IOException {
+            if (payload.remaining() > data.length - received) {
+                throw new IOException("More data than declared");
+            }
+            int count = payload.remaining();
+            payload.get(data, received, count);
+            received += count;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return received == data.length;
+        }
+
+        @Override
+        public void complete() throws IOException {
+            blobsInFlight--;
+            storage.chunkStore().put(hash, data, data.length);
+        }
+
+        @Override
+        public void abort() {
+            blobsInFlight--;
+        }
+    }
+
+    /**
+     * Прием манифеста: список частей приходит кадрами DATA, в каждом целое число записей
+     */
+    private final class ManifestUpload implements Inbound {
+        private final String name;
+        private final int count;
+        // хеш файла от клиента; части уже сверены при BLOB_PUT, целиком файл сверяет клиент при скачивании
+        private final byte[] hash;
+        private final List<ChunkRef> chunks = new ArrayList<>();
+        private long offset;
+
+        ManifestUpload(String name, int count, byte[] hash) {
+            this.name = name;
+            this.count = count;
+            this.hash = hash;
+        }
+
+        @Override
+        public void accept(ByteBuffer payload) throws IOException {
+            while (payload.remaining() >= ChunkRef.ENCODED_SIZE) {
+                if (chunks.size() == count) {
+                    throw new IOException("More chunks than declared");
+                }
+                ChunkRef chunk = ChunkRef.readFrom(payload, offset);
+                chunks.add(chunk);
+                offset += chunk.getLength();
+            }
+        }
+
+        @Override
+        public boolean isComplete() {
+            return chunks.size() == count;
+        }
+
+        @Override
+        public void complete() throws IOException {
+            int missing = storage.chunkStore().putManifest(name, chunks);
+            if (missing > 0) {
+                throw new IOException("Missing " + missing + " chunks");
+            }
+            storage.manifestStored(name, offset, hash);
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Подсказки для недоступных узлов кластера (hinted handoff): файлы и удаления, которые клиент
+ * не смог отдать владельцу и оставил на этом узле. Лежат в .hints/&lt;узел&gt;/put и .../remove
+ * под закодированными именами, время изменения подсказки - время операции.
+ * Новая операция с тем же именем заменяет прежнюю; доставляет подсказки {@link HintedHandoff}.
+ */
+public class HintStore {
+    private static final String PUT = "put";
+    private static final String REMOVE = "remove";
+    // подсказки в доставке лежат в put-sending и remove-sending
+    private static final String SENDING = "-sending";
+
+    private final Storage storage;
+    // каталог .hints для чтения: чтение не создает каталогов
+    private final Path base;
+    // подсказки, ждущие доставки; меняется вместе с файлами подсказок
+    private int count;
+
+    public HintStore(Storage storage) throws IOException {
+        this.storage = storage;
+        this.base = storage.root().resolve(".hints");
+        for (String node : nodes()) {
+            count += pending(node).size();
+        }
+    }
+
+    /**
+     * Подсказка, ждущая доставки
+     */
+    public static class Hint {
+        private final String node;
+        private final String name;
+        private final boolean remove;
+        private final Path file;
+        private final long modified;
+
+        Hint(String node, String name, boolean remove, Path file, long modified) {
+            this.node = node;
+            this.name = name;
+            this.remove = remove;
+            this.file = file;
+            this.modified = modified;
+        }
+
+        public String node() {
+            return node;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public boolean isRemove() {
+            return remove;
+        }
+
+        public Path file() {
+            return file;
+        }
+
+        public long modified() {
+            return modified;
+        }
+    }
+
+    /**
+     * Временный файл для приема содержимого подсказки
+     */
+    public Path temp() throws IOException {
+        return Files.createTempFile(storage.serviceDir("hints"), "hint", ".tmp");
+    }
+
+    /**
+     * Принятый файл для узла node; заменяет прежние подсказки с этим именем
+     */
+    public synchronized void put(String node, String name, Path temp) throws IOException {
+        Path put = path(node, PUT, name);
+        boolean replaced = Files.exists(put);
+        Files.setLastModifiedTime(temp, FileTime.fromMillis(System.currentTimeMillis()));
+        Files.move(temp, put, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        boolean unmarked = Files.deleteIfExists(path(node, REMOVE, name));
+        if (!replaced && !unmarked) {
+            count++;
+        }
+    }
+
+    public synchronized void remove(String node, String name) throws IOException {
+        Path marker = path(node, REMOVE, name);
+        boolean created = !Files.exists(marker);
+        if (created) {
+            Files.createFile(marker);
+        }
+        Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+        boolean replaced = Files.deleteIfExists(path(node, PUT, name));
+        if (created && !replaced) {
+            count++;
+        }
+    }
+
+    /**
+     * Узлы, для которых есть подсказки
+     */
+    public synchronized List<String> nodes() throws IOException {
+        List<String> nodes = new ArrayList<>();
+        if (!Files.isDirectory(base)) {
+            return nodes;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(base, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                nodes.add(decode(dir.getFileName().toString()));
+            }
+        }
+        return nodes;
+    }
+
+    public synchronized List<Hint> pending(String node) throws IOException {
+        List<Hint> hints = new ArrayList<>();
+        collect(node, PUT, false, hints);
+        collect(node, REMOVE, true, hints);
+        return hints;
+    }
+
+    /**
+     * Число подсказок, ждущих доставки, для метрик; считается при запуске и дальше ведется в памяти
+     */
+    public synchronized int count() {
+        return count;
+    }
+
+    private void collect(String node, String kind, boolean remove, List<Hint> hints) throws IOException {
+        Path dir = base.resolve(encode(node)).resolve(kind);
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                hints.add(new Hint(node, decode(file.getFileName().toString()), remove, file,
+                    Files.getLastModifiedTime(file).toMillis()));
+            }
+        }
+    }
+
+    /**
+     * Подсказка уходит в доставку: новая операция с тем же именем, пришедшая во время доставки,
+     * ляжет рядом и не потеряется
+     *
+     * @return подсказка с файлом в каталоге доставки или null, если ее уже заменили
+     */
+    public synchronized Hint claim(Hint hint) throws IOException {
+        Path sending = path(hint.node, kind(hint.remove) + SENDING, hint.name);
+        try {
+            Files.move(hint.file, sending, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        count--;
+        return new Hint(hint.node, hint.name, hint.remove, sending, hint.modified);
+    }
+
+    public synchronized void delivered(Hint claimed) throws IOException {
+        Files.deleteIfExists(claimed.file);
+    }
+
+    /**
+     * Доставка не удалась: подсказка возвращается, если за это время не появилась более новая
+     */
+    public synchronized void restore(Hint claimed) throws IOException {
+        Path put = path(claimed.node, PUT, claimed.name);
+        Path remove = path(claimed.node, REMOVE, claimed.name);
+        if (Files.exists(put) || Files.exists(remove)) {
+            Files.deleteIfExists(claimed.file);
+            return;
+        }
+        Files.move(claimed.file, claimed.remove ? remove : put, StandardCopyOption.ATOMIC_MOVE);
+        count++;
+    }
+
+    /**
+     * Подсказки, доставка которых оборвалась вместе с прошлым запуском сервера, возвращаются в очередь
+     */
+    public synchronized void recover() throws IOException {
+        for (String node : nodes()) {
+            for (boolean remove : new boolean[]{false, true}) {
+                List<Hint> claimed = new ArrayList<>();
+                collect(node, kind(remove) + SENDING, remove, claimed);
+                for (Hint hint : claimed) {
+                    restore(hint);
+                }
+            }
+        }
+    }
+
+    private static String kind(boolean remove) {
+        return remove ? REMOVE : PUT;
+    }
+
+    private Path path(String node, String kind, String name) throws IOException {
+        return dir(node, kind).resolve(encode(name));
+    }
+
+    private Path dir(String node, String kind) throws IOException {
+        return Files.createDirectories(storage.serviceDir("hints").resolve(encode(node)).resolve(kind));
+    }
+
+    // имена с '/' и ':' становятся одним именем файла
+    private static String encode(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String name) {
+        return URLDecoder.decode(name, StandardCharsets.UTF_8);
+    }
+}
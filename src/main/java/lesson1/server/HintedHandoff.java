@@ -0,0 +1,138 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import lesson1.client.StorageClient;
+import lesson1.common.Batch;
+import lesson1.common.ClusterMap;
+import lesson1.common.ContentChunker;
+import lesson1.common.FileInfo;
+import lesson1.metrics.Log;
+
+/**
+ * Доставка подсказок {@link HintStore} владельцам. Раз в storage.handoffInterval мс поток обходит узлы,
+ * для которых есть подсказки, и передает их обычным клиентским соединением. Файл уходит пакетом
+ * BATCH_PUT со временем подсказки; если у владельца файл новее подсказки, подсказка отбрасывается.
+ * Недоступный узел просто пропускается до следующего обхода.
+ */
+final class HintedHandoff implements Runnable {
+    private static final long INTERVAL = Long.getLong("storage.handoffInterval", 5000);
+
+    private final HintStore hints;
+
+    private HintedHandoff(HintStore hints) {
+        this.hints = hints;
+    }
+
+    static void start(Storage storage) {
+        Thread thread = new Thread(new HintedHandoff(storage.hints()), "hinted-handoff");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            hints.recover();
+        } catch (IOException e) {
+            Log.error("Cannot recover hints", e);
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(INTERVAL);
+                for (String node : hints.nodes()) {
+                    deliver(node);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Log.error("Cannot read hints", e);
+            }
+        }
+    }
+
+    private void deliver(String node) throws IOException {
+        List<HintStore.Hint> pending = hints.pending(node);
+        if (pending.isEmpty()) {
+            return;
+        }
+        StorageClient client;
+        try {
+            client = new StorageClient(ClusterMap.host(node), ClusterMap.port(node));
+        } catch (IOException e) {
+            // владелец все еще недоступен
+            return;
+        }
+        int delivered = 0;
+        try (client) {
+            for (HintStore.Hint hint : pending) {
+                if (deliver(client, hint)) {
+                    delivered++;
+                }
+            }
+        } catch (IOException | CompletionException e) {
+            Log.error("Hinted handoff to " + node + " interrupted", e);
+        }
+        Log.info("Hinted handoff: " + delivered + " of " + pending.size() + " hints delivered to " + node);
+    }
+
+    /**
+     * @return false, если подсказку заменили или она старше файла владельца
+     */
+    private boolean deliver(StorageClient client, HintStore.Hint hint) throws IOException {
+        HintStore.Hint claimed = hints.claim(hint);
+        if (claimed == null) {
+            return false;
+        }
+        try {
+            FileInfo current = find(client, claimed.name());
+            boolean fresh = current == null || current.getModified() <= claimed.modified();
+            if (fresh && claimed.isRemove()) {
+                String status = client.remove(claimed.name()).join();
+                if (!"DONE".equals(status) && !"FILE NOT FOUND".equals(status)) {
+                    throw new IOException(status);
+                }
+            } else if (fresh) {
+                Path file = claimed.file();
+                Batch entry = new Batch(claimed.name(), Files.size(file), claimed.modified(), hash(file));
+                String status = client.putBatch(List.of(entry), name -> file, null).join();
+                if (!"DONE".equals(status)) {
+                    throw new IOException(status);
+                }
+            }
+            hints.delivered(claimed);
+            return fresh;
+        } catch (IOException | CompletionException e) {
+            hints.restore(claimed);
+            throw e;
+        }
+    }
+
+    private static FileInfo find(StorageClient client, String name) {
+        for (FileInfo info : client.list(name).join()) {
+            if (info.getName().equals(name)) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] hash(Path file) throws IOException {
+        MessageDigest digest = ContentChunker.sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) >= 0) {
+                digest.update(buffer.flip());
+            }
+        }
+        return digest.digest();
+    }
+}
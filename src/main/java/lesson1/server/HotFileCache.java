@@ -0,0 +1,339 @@
+package lesson1.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lesson1.common.FileInfo;
+import lesson1.metrics.Log;
+
+/**
+ * Кэш содержимого часто скачиваемых небольших файлов в direct-буферах, вне кучи.
+ * Запись действительна, пока у файла в индексе те же размер и время изменения.
+ * Вытеснение - сегментированный LRU: новый файл попадает в испытательный сегмент,
+ * повторное обращение переводит его в защищенный, поэтому однократные скачивания
+ * большого числа файлов не вытесняют горячие. Объем ограничен в байтах.
+ * <p>
+ * Промах не читает файл в потоке реактора: его отдает обычный путь без копирования,
+ * а кэш заполняется в общем для процесса фоновом потоке. Буферы выделяются по степеням двойки
+ * и после вытеснения используются повторно; вместе со свободными кэш занимает не больше своего объема.
+ */
+public class HotFileCache {
+    // доля защищенного сегмента в объеме кэша
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int MIN_BUFFER = 4096;
+
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "hot-file-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long capacity;
+    private final long protectedCapacity;
+    private final long maxEntrySize;
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> loading = new HashSet<>();
+    // свободные буферы по размеру
+    private final Map<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<>();
+    private long probationBytes;
+    private long protectedBytes;
+    private long freeBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity объем кэша в байтах; файлы больше capacity / 16 не кэшируются
+     */
+    public HotFileCache(long capacity) {
+        this.capacity = capacity;
+        this.protectedCapacity = capacity * PROTECTED_PERCENT / 100;
+        this.maxEntrySize = capacity / 16;
+    }
+
+    public interface Loader {
+        StoredFile open() throws IOException;
+    }
+
+    /**
+     * Содержимое файла, выданное на время отправки. Пока его не вернули,
+     * буфер не используется повторно, даже если файл вытеснен из кэша.
+     */
+    public final class Lease {
+        private final Entry entry;
+        private final ByteBuffer content;
+        private boolean released;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+            this.content = entry.content.duplicate();
+        }
+
+        public ByteBuffer content() {
+            return content;
+        }
+
+        public void release() {
+            synchronized (HotFileCache.this) {
+                if (!released) {
+                    released = true;
+                    entry.leases--;
+                    if (entry.leases == 0 && entry.removed) {
+                        recycle(entry.buffer);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Содержимое файла из кэша. При промахе файл загружается в кэш в фоне.
+     *
+     * @return содержимое, которое нужно вернуть после отправки, или null, если файла нет в кэше
+     */
+    public Lease get(FileInfo info, Loader loader) {
+        String name = info.getName();
+        synchronized (this) {
+            Entry entry = protectedEntries.get(name);
+            if (entry == null) {
+                entry = probation.get(name);
+            }
+            if (entry != null && entry.modified == info.getModified() && entry.content.capacity() == info.getSize()) {
+                hits++;
+                if (!entry.isProtected) {
+                    promote(name, entry);
+                }
+                entry.leases++;
+                return new Lease(entry);
+            }
+            if (entry != null) {
+                remove(name);
+            }
+            misses++;
+            if (info.getSize() > 0 && info.getSize() <= maxEntrySize && loading.add(name)) {
+                LOADER.execute(() -> fill(info, loader));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Удаление файла или всех файлов каталога (имя на '/')
+     */
+    public synchronized void invalidate(String name) {
+        if (!name.endsWith("/")) {
+            remove(name);
+            return;
+        }
+        for (LinkedHashMap<String, Entry> segment : List.of(probation, protectedEntries)) {
+            Iterator<Map.Entry<String, Entry>> entries = segment.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, Entry> entry = entries.next();
+                if (entry.getKey().startsWith(name)) {
+                    entries.remove();
+                    release(entry.getValue());
+                }
+            }
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized long size() {
+        return probationBytes + protectedBytes;
+    }
+
+    public synchronized int entries() {
+        return probation.size() + protectedEntries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("hot files: %d entries, %d bytes, %d hits, %d misses, %d evictions",
+            entries(), size(), hits, misses, evictions);
+    }
+
+    // фоновая загрузка; у файла, измененного во время чтения, запись со старым временем не будет выдана
+    private void fill(FileInfo info, Loader loader) {
+        String name = info.getName();
+        ByteBuffer buffer = null;
+        try {
+            StoredFile file = loader.open();
+            if (file != null && file.size() == info.getSize()) {
+                synchronized (this) {
+                    buffer = allocate((int) file.size());
+                }
+                load(file, buffer);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.error("Cannot cache " + name, e);
+            synchronized (this) {
+                recycle(buffer);
+            }
+            buffer = null;
+        }
+        synchronized (this) {
+            loading.remove(name);
+            if (buffer == null) {
+                return;
+            }
+            if (protectedEntries.containsKey(name) || probation.containsKey(name)) {
+                recycle(buffer);
+                return;
+            }
+            Entry entry = new Entry(buffer, info.getModified());
+            probation.put(name, entry);
+            probationBytes += buffer.capacity();
+            evict();
+        }
+    }
+
+    private static void load(StoredFile file, ByteBuffer content) throws IOException {
+        if (file.isCompressed()) {
+            try (InflatingReader reader = new InflatingReader(file)) {
+                while (content.hasRemaining()) {
+                    if (reader.read(content) < 0) {
+                        throw new EOFException("File is shorter than expected");
+                    }
+                }
+            }
+            return;
+        }
+        for (StoredFile.Segment segment : file.range(0, file.size())) {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                long position = segment.position;
+                content.limit((int) (content.position() + segment.length));
+                while (content.hasRemaining()) {
+                    int read = channel.read(content, position);
+                    if (read < 0) {
+                        throw new EOFException("File is shorter than expected");
+                    }
+                    position += read;
+                }
+            }
+        }
+    }
+
+    /**
+     * Буфер размером size из свободных или новый. Чтобы уложиться в объем кэша,
+     * лишние свободные буферы других размеров отдаются сборщику мусора.
+     *
+     * @return буфер с limit = size
+     */
+    private ByteBuffer allocate(int size) {
+        int bufferSize = Math.max(MIN_BUFFER, Integer.highestOneBit(size - 1) << 1);
+        ArrayDeque<ByteBuffer> sameSize = free.get(bufferSize);
+        ByteBuffer buffer = sameSize == null ? null : sameSize.poll();
+        if (buffer != null) {
+            freeBytes -= bufferSize;
+        } else {
+            Iterator<ArrayDeque<ByteBuffer>> lists = free.values().iterator();
+            while (probationBytes + protectedBytes + freeBytes + bufferSize > capacity && lists.hasNext()) {
+                ArrayDeque<ByteBuffer> list = lists.next();
+                while (!list.isEmpty() && probationBytes + protectedBytes + freeBytes + bufferSize > capacity) {
+                    freeBytes -= list.poll().capacity();
+                }
+            }
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer.clear().limit(size);
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        if (buffer != null && probationBytes + protectedBytes + freeBytes + buffer.capacity() <= capacity) {
+            free.computeIfAbsent(buffer.capacity(), size -> new ArrayDeque<>()).push(buffer);
+            freeBytes += buffer.capacity();
+        }
+    }
+
+    // повторное обращение: из испытательного сегмента в защищенный, лишнее из защищенного - обратно
+    private void promote(String name, Entry entry) {
+        probation.remove(name);
+        probationBytes -= entry.buffer.capacity();
+        entry.isProtected = true;
+        protectedEntries.put(name, entry);
+        protectedBytes += entry.buffer.capacity();
+        Iterator<Map.Entry<String, Entry>> eldest = protectedEntries.entrySet().iterator();
+        while (protectedBytes > protectedCapacity && eldest.hasNext()) {
+            Map.Entry<String, Entry> demoted = eldest.next();
+            eldest.remove();
+            protectedBytes -= demoted.getValue().buffer.capacity();
+            demoted.getValue().isProtected = false;
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().buffer.capacity();
+        }
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry> eldest = probation.values().iterator();
+        while (probationBytes + protectedBytes > capacity && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            release(entry);
+            evictions++;
+        }
+    }
+
+    private void remove(String name) {
+        Entry entry = protectedEntries.remove(name);
+        if (entry == null) {
+            entry = probation.remove(name);
+        }
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    // запись уже убрана из сегмента; буфер освобождается, когда его никто не отправляет
+    private void release(Entry entry) {
+        if (entry.isProtected) {
+            protectedBytes -= entry.buffer.capacity();
+        } else {
+            probationBytes -= entry.buffer.capacity();
+        }
+        entry.removed = true;
+        if (entry.leases == 0) {
+            recycle(entry.buffer);
+        }
+    }
+
+    private static final class Entry {
+        final ByteBuffer buffer;
+        final ByteBuffer content;
+        final long modified;
+        boolean isProtected;
+        boolean removed;
+        int leases;
+
+        Entry(ByteBuffer buffer, long modified) {
+            this.buffer = buffer;
+            this.content = buffer.flip().slice().asReadOnlyBuffer();
+            this.modified = modified;
+        }
+    }
+}
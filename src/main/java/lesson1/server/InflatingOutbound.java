@@ -0,0 +1,120 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import lesson1.common.Checksum;
+import lesson1.common.Protocol;
+
+/**
+ * Сжатый при хранении файл для клиента, который не принимает его кодек: распаковка идет
+ * по кадру, только когда сокет готов принять следующий. В кадровом протоколе данные уходят
+ * кадрами DATA и END (с CRC32C данных, если она запрошена), в старом - просто байтами.
+ */
+class InflatingOutbound implements Outbound {
+    private static final int NO_FRAMES = -1;
+
+    private final InflatingReader reader;
+    private final int requestId;
+    private final Runnable onRelease;
+    private final Checksum checksum;
+    private final TransferTimer timer = new TransferTimer();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(Protocol.HEADER_SIZE + Protocol.DATA_CHUNK);
+    private long skip;
+    private long remaining;
+    private boolean finished;
+    private volatile boolean cancelled;
+
+    /**
+     * Исходные байты [offset, offset + length) без кадров, для старого протокола
+     */
+    InflatingOutbound(StoredFile file, long offset, long length) {
+        this(file, offset, length, NO_FRAMES, null, () -> { });
+    }
+
+    InflatingOutbound(StoredFile file, long offset, long length, int requestId, Checksum checksum,
+                      Runnable onRelease) {
+        this.reader = new InflatingReader(file);
+        this.skip = offset;
+        this.remaining = length;
+        this.requestId = requestId;
+        this.checksum = checksum;
+        this.onRelease = onRelease;
+        buffer.flip();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                if (finished) {
+                    return true;
+                }
+                long start = System.nanoTime();
+                fill();
+                timer.disk(start);
+            }
+            StorageMetrics.BYTES_OUT.add(channel.write(buffer));
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+            if (requestId != NO_FRAMES) {
+                // кадр отправлен, следующий - после кадров других запросов
+                return true;
+            }
+        }
+    }
+
+    private void fill() throws IOException {
+        if (skip > 0) {
+            reader.skip(skip);
+            skip = 0;
+        }
+        int header = requestId == NO_FRAMES ? 0 : Protocol.HEADER_SIZE;
+        buffer.clear().position(header);
+        buffer.limit(header + (int) Math.min(Protocol.DATA_CHUNK, cancelled ? 0 : remaining));
+        while (buffer.hasRemaining() && reader.read(buffer) >= 0) {
+            // читаем, пока кадр не заполнится или файл не кончится
+        }
+        int length = buffer.position() - header;
+        remaining -= length;
+        if (header == 0) {
+            finished = length == 0;
+            buffer.flip();
+            return;
+        }
+        ByteBuffer frame = buffer.duplicate().clear();
+        if (length > 0) {
+            Protocol.putHeader(frame, Protocol.DATA, requestId, length);
+            if (checksum != null) {
+                checksum.update(frame.limit(header + length));
+            }
+        } else if (checksum != null && !cancelled) {
+            finished = true;
+            Protocol.putHeader(frame, Protocol.END, requestId, Integer.BYTES);
+            buffer.limit(buffer.capacity()).putInt(checksum.crcValue());
+        } else {
+            finished = true;
+            Protocol.putHeader(frame, Protocol.END, requestId, 0);
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public boolean hasMore() {
+        return requestId != NO_FRAMES && !finished;
+    }
+
+    @Override
+    public void release() {
+        onRelease.run();
+        reader.close();
+        timer.finish();
+    }
+}
@@ -0,0 +1,101 @@
+package lesson1.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import lesson1.metrics.Log;
+
+/**
+ * Последовательное чтение исходных байт сжатого при хранении файла
+ * для клиентов, которые не принимают его кодек
+ */
+public class InflatingReader implements Closeable {
+    private static final int INPUT_SIZE = 64 * 1024;
+
+    private final StoredFile.Segment segment;
+    private final Inflater inflater;
+    private final ByteBuffer input = ByteBuffer.allocate(INPUT_SIZE);
+    private FileChannel file;
+    private long consumed;
+
+    public InflatingReader(StoredFile stored) {
+        this.segment = stored.range(0, stored.storedSize()).get(0);
+        this.inflater = stored.codec().inflater();
+    }
+
+    /**
+     * @return сколько байт записано в dst или -1, если файл закончился
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (file == null) {
+            file = FileChannel.open(segment.path, StandardOpenOption.READ);
+        }
+        try {
+            while (true) {
+                int inflated = inflater.inflate(dst);
+                if (inflated > 0 || !dst.hasRemaining()) {
+                    return inflated;
+                }
+                if (inflater.finished()) {
+                    return -1;
+                }
+                if (inflater.needsDictionary()) {
+                    throw new IOException("Preset dictionary is not supported");
+                }
+                if (inflater.needsInput()) {
+                    fillInput();
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Пропуск count исходных байт
+     */
+    public void skip(long count) throws IOException {
+        ByteBuffer scratch = ByteBuffer.allocate((int) Math.min(count, INPUT_SIZE));
+        while (count > 0) {
+            scratch.clear().limit((int) Math.min(count, scratch.capacity()));
+            int read = read(scratch);
+            if (read < 0) {
+                return;
+            }
+            count -= read;
+        }
+    }
+
+    private void fillInput() throws IOException {
+        input.clear().limit((int) Math.min(INPUT_SIZE, segment.length - consumed));
+        if (!input.hasRemaining()) {
+            throw new EOFException("Compressed file is truncated");
+        }
+        while (input.hasRemaining()) {
+            if (file.read(input, segment.position + consumed + input.position()) < 0) {
+                throw new EOFException("Compressed file is truncated");
+            }
+        }
+        consumed += input.flip().remaining();
+        inflater.setInput(input);
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.error("Cannot close compressed file", e);
+            }
+            file = null;
+        }
+    }
+}
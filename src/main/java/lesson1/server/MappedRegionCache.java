@@ -0,0 +1,130 @@
+package lesson1.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Общий кэш отображенных в память участков файлов для чтения диапазонов.
+ * Файл делится на участки по {@link #REGION_SIZE}, каждый участок отображается один раз
+ * и отдается всем читателям как duplicate, поэтому клиенты, читающие разные части одного файла,
+ * не открывают его заново и читают прямо из страничного кэша.
+ * Когда суммарный размер участков превышает лимит, вытесняются давно не читавшиеся (LRU).
+ * Отображение снимает сборщик мусора, когда участок вытеснен и его больше никто не читает.
+ */
+public class MappedRegionCache {
+    public static final int REGION_SIZE = 4 * 1024 * 1024;
+
+    private final long capacity;
+    private final LinkedHashMap<RegionKey, MappedByteBuffer> regions = new LinkedHashMap<>(16, 0.75f, true);
+    private long mapped;
+    private long hits;
+    private long misses;
+
+    public MappedRegionCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Данные файла с позиции position до конца ее участка: буфер только для чтения,
+     * position буфера указывает на запрошенный байт
+     */
+    public ByteBuffer region(Path path, long position) throws IOException {
+        long index = position / REGION_SIZE;
+        int offset = (int) (position - index * REGION_SIZE);
+        RegionKey key = new RegionKey(path, index);
+        MappedByteBuffer region;
+        synchronized (this) {
+            region = regions.get(key);
+            if (region != null && offset < region.capacity()) {
+                hits++;
+                return region.duplicate().position(offset);
+            }
+        }
+        // последний участок растущего файла отображается заново, когда запрошены байты за его концом
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long start = index * REGION_SIZE;
+            long length = Math.min(REGION_SIZE, file.size() - start);
+            if (length <= offset) {
+                throw new EOFException("File was truncated during download");
+            }
+            region = file.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        synchronized (this) {
+            misses++;
+            MappedByteBuffer previous = regions.put(key, region);
+            if (previous != null) {
+                mapped -= previous.capacity();
+            }
+            mapped += region.capacity();
+            evict();
+        }
+        return region.duplicate().position(offset);
+    }
+
+    /**
+     * Забыть участки файла, который перезаписан или удален
+     */
+    public synchronized void invalidate(Path path) {
+        Iterator<Map.Entry<RegionKey, MappedByteBuffer>> entries = regions.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<RegionKey, MappedByteBuffer> entry = entries.next();
+            if (entry.getKey().path.startsWith(path)) {
+                mapped -= entry.getValue().capacity();
+                entries.remove();
+            }
+        }
+    }
+
+    public synchronized long mappedBytes() {
+        return mapped;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    private void evict() {
+        Iterator<MappedByteBuffer> eldest = regions.values().iterator();
+        while (mapped > capacity && regions.size() > 1) {
+            mapped -= eldest.next().capacity();
+            eldest.remove();
+        }
+    }
+
+    private static final class RegionKey {
+        final Path path;
+        final long index;
+
+        RegionKey(Path path, long index) {
+            this.path = path;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RegionKey)) {
+                return false;
+            }
+            RegionKey other = (RegionKey) o;
+            return index == other.index && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, index);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package lesson1.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import lesson1.common.Codec;
+import lesson1.common.FileInfo;
+import lesson1.common.Protocol;
+
+/**
+ * Индекс файлов хранилища: отсортированная карта в памяти и журнал изменений,
+ * отображенный в память (append-only). Список файлов и поиск по имени не обращаются к диску.
+ * <p>
+ * Журнал ведет один процесс, захвативший блокировку владельца: он создает журнал и перезаписывает его
+ * при сверке с каталогом. Дописывать записи могут все процессы с этим хранилищем (например,
+ * telnet-сервер рядом с сервером хранилища) - под блокировкой дописывания, догнав перед этим журнал.
+ * Перед запросом процесс без блокировок и системных вызовов сверяет поколение в заголовке и слово длины
+ * на своей позиции журнала и догоняет записи остальных, только если там что-то изменилось.
+ * Журнал не сбрасывается на диск при каждой записи: после сбоя питания индекс
+ * восстанавливается сверкой с каталогом при запуске.
+ */
+public class MetadataIndex implements Closeable {
+    private static final int MAGIC = 0x4D494458; // "MIDX"
+    private static final int HEADER_SIZE = 16;   // magic, резерв, long поколение
+    private static final long REGION_SIZE = 16L * 1024 * 1024;
+    private static final int NEXT_REGION = -1;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    // блокировки занимают байты за концом журнала и не мешают друг другу
+    private static final long OWNER_LOCK = Long.MAX_VALUE - 1;
+    private static final long APPEND_LOCK = Long.MAX_VALUE - 2;
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final ConcurrentSkipListMap<String, FileInfo> entries = new ConcurrentSkipListMap<>();
+    private MappedByteBuffer header;
+    private MappedByteBuffer region;
+    private long regionStart = -1;
+    // пишется последним при чтении журнала: проверка без блокировки видит согласованные поля
+    private volatile long position;
+    private long generation;
+
+    private MetadataIndex(FileChannel channel, FileLock lock) {
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    public static MetadataIndex open(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock(OWNER_LOCK, 1, false);
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        MetadataIndex index = new MetadataIndex(channel, lock);
+        if (lock != null && !index.hasValidHeader(channel.size())) {
+            index.reset();
+        } else {
+            index.catchUp();
+        }
+        return index;
+    }
+
+    /**
+     * Этот процесс ведет журнал и сверяет его с каталогом при запуске
+     */
+    public boolean isOwner() {
+        return lock != null;
+    }
+
+    public FileInfo get(String name) throws IOException {
+        refresh();
+        return entries.get(name);
+    }
+
+    /**
+     * Файлы с заданным префиксом в порядке имен. Возвращается представление карты без копирования.
+     */
+    public Collection<FileInfo> list(String prefix) throws IOException {
+        refresh();
+        return entriesWith(prefix).values();
+    }
+
+    public NavigableMap<String, FileInfo> range(String prefix) throws IOException {
+        refresh();
+        return entriesWith(prefix);
+    }
+
+    public int size() throws IOException {
+        refresh();
+        return entries.size();
+    }
+
+    private NavigableMap<String, FileInfo> entriesWith(String prefix) {
+        if (prefix.isEmpty()) {
+            return entries;
+        }
+        return entries.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    public synchronized void put(FileInfo info) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(Byte.BYTES + info.encodedSize() + 1);
+        record.put(PUT);
+        info.writeTo(record);
+        // флаги: бит 0 - файл из частей, выше - кодек сжатия при хранении
+        record.put((byte) ((info.isChunked() ? 1 : 0) | info.getCodec().id() << 1));
+        append(record.flip());
+    }
+
+    public synchronized void remove(String name) throws IOException {
+        refresh();
+        if (!entries.containsKey(name)) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(Byte.BYTES + Protocol.stringSize(name));
+        record.put(REMOVE);
+        Protocol.putString(record, name);
+        append(record.flip());
+    }
+
+    /**
+     * Замена содержимого индекса и перезапись журнала без устаревших записей
+     */
+    public synchronized void rebuild(Collection<FileInfo> files) throws IOException {
+        requireOwner();
+        synchronized (MetadataIndex.class) {
+            FileLock appendLock = channel.lock(APPEND_LOCK, 1, false);
+            try {
+                reset();
+            } finally {
+                appendLock.release();
+            }
+        }
+        for (FileInfo info : files) {
+            put(info);
+        }
+    }
+
+    private boolean hasValidHeader(long size) throws IOException {
+        if (size < HEADER_SIZE) {
+            return false;
+        }
+        if (header == null) {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        }
+        return header.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Обнуление журнала. Усечение файла очищает старые записи во всех участках,
+     * новое поколение в заголовке сообщает читателям, что читать нужно с начала.
+     */
+    private void reset() throws IOException {
+        entries.clear();
+        region = null;
+        regionStart = -1;
+        channel.truncate(0);
+        map(0);
+        hasValidHeader(REGION_SIZE);
+        generation = System.nanoTime();
+        header.putLong(8, generation);
+        header.putInt(0, MAGIC);
+        position = HEADER_SIZE;
+    }
+
+    /**
+     * Дописывание записи в конец журнала. Блокировка файла разделяет процессы, монитор класса -
+     * индексы одного процесса: внутри процесса блокировка файла не ждет, а бросает исключение.
+     * Запись применяется к карте при чтении журнала, как и записи других процессов.
+     */
+    private void append(ByteBuffer record) throws IOException {
+        if (record.remaining() + Integer.BYTES * 2 > REGION_SIZE) {
+            throw new IOException("Index record is too large");
+        }
+        synchronized (MetadataIndex.class) {
+            FileLock appendLock = channel.lock(APPEND_LOCK, 1, false);
+            try {
+                catchUp();
+                if (!hasValidHeader(channel.size())) {
+                    throw new IOException("Index is not initialized by its owner");
+                }
+                write(record);
+                catchUp();
+            } finally {
+                appendLock.release();
+            }
+        }
+    }
+
+    private void write(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        long start = position - position % REGION_SIZE;
+        if (region == null || regionStart != start) {
+            map(start);
+        }
+        int offset = (int) (position - start);
+        if (offset + Integer.BYTES + length + Integer.BYTES > REGION_SIZE) {
+            // запись не помещается в участок - продолжаем со следующего
+            if (offset + Integer.BYTES <= REGION_SIZE) {
+                region.putInt(offset, NEXT_REGION);
+            }
+            position = start + REGION_SIZE;
+            map(position);
+            offset = 0;
+        }
+        // сначала данные, потом длина: читатель не увидит запись, пока она не дописана
+        ByteBuffer target = region.duplicate();
+        target.position(offset + Integer.BYTES);
+        target.put(record);
+        region.putInt(offset, length);
+    }
+
+    private void refresh() throws IOException {
+        if (changed()) {
+            catchUp();
+        }
+    }
+
+    /**
+     * Проверка без блокировки: журнал не менялся, если поколение то же и на текущей позиции
+     * еще нет записи. При гонке с чтением журнала в другом потоке запрос в худшем случае
+     * увидит карту до записей, которые тот поток еще применяет.
+     */
+    private boolean changed() {
+        long at = position;
+        MappedByteBuffer head = header;
+        MappedByteBuffer current = region;
+        long start = at - at % REGION_SIZE;
+        if (head == null || current == null || regionStart != start || head.getLong(8) != generation) {
+            return true;
+        }
+        int offset = (int) (at - start);
+        return offset + Integer.BYTES > REGION_SIZE || current.getInt(offset) != 0;
+    }
+
+    /**
+     * Чтение записей, появившихся с прошлого раза, в том числе своих
+     */
+    private synchronized void catchUp() throws IOException {
+        long size = channel.size();
+        if (!hasValidHeader(size)) {
+            return;
+        }
+        long current = header.getLong(8);
+        if (region != null && size < regionStart + REGION_SIZE) {
+            // файл усечен пишущим процессом, старое отображение использовать нельзя
+            region = null;
+        }
+        if (current != generation) {
+            // журнал перезаписан - читаем с начала
+            generation = current;
+            entries.clear();
+            position = HEADER_SIZE;
+        }
+        while (true) {
+            long start = position - position % REGION_SIZE;
+            if (region == null || regionStart != start) {
+                if (channel.size() < start + REGION_SIZE) {
+                    return;
+                }
+                map(start);
+            }
+            int offset = (int) (position - regionStart);
+            if (offset + Integer.BYTES > REGION_SIZE) {
+                position = regionStart + REGION_SIZE;
+                continue;
+            }
+            int length = region.getInt(offset);
+            if (length == 0) {
+                return;
+            }
+            if (length == NEXT_REGION) {
+                position = regionStart + REGION_SIZE;
+                continue;
+            }
+            ByteBuffer record = region.duplicate();
+            record.position(offset + Integer.BYTES).limit(offset + Integer.BYTES + length);
+            apply(record.slice());
+            position += Integer.BYTES + length;
+        }
+    }
+
+    private void apply(ByteBuffer record) {
+        byte type = record.get();
+        if (type == PUT) {
+            FileInfo info = FileInfo.readFrom(record);
+            int flags = record.get();
+            entries.put(info.getName(), new FileInfo(info.getName(), info.getSize(), info.getModified(),
+                info.getHash(), (flags & 1) != 0, Codec.byId(flags >>> 1)));
+        } else if (type == REMOVE) {
+            entries.remove(Protocol.getString(record));
+        }
+    }
+
+    private MappedByteBuffer map(long start) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+        regionStart = start;
+        return region;
+    }
+
+    private void requireOwner() throws IOException {
+        if (!isOwner()) {
+            throw new IOException("Index is owned by another process");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (lock != null) {
+            lock.release();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,30 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Исходящее сообщение в очереди соединения
+ */
+interface Outbound {
+    /**
+     * @return true, если сообщение (для потока - очередной кадр) отправлено полностью
+     */
+    boolean writeTo(SocketChannel channel) throws IOException;
+
+    /**
+     * Поток кадров возвращает true, пока у него остались данные.
+     * Такие сообщения очередь отправляет по кадру, чередуя с остальными.
+     */
+    default boolean hasMore() {
+        return false;
+    }
+
+    /**
+     * Отмена потока: оставшиеся данные не отправляются
+     */
+    default void cancel() {
+    }
+
+    void release();
+}
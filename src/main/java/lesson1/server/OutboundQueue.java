@@ -0,0 +1,67 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Очередь исходящих сообщений соединения.
+ * Короткие ответы идут первыми, длинные потоки (скачивания) отдаются по кадру по кругу,
+ * поэтому ответ на remove или list не ждет окончания большого файла.
+ */
+class OutboundQueue {
+    private final Deque<Outbound> control = new ArrayDeque<>();
+    private final Deque<Outbound> streams = new ArrayDeque<>();
+    private Outbound current;
+
+    void add(Outbound message) {
+        StorageMetrics.QUEUED.increment();
+        if (message.hasMore()) {
+            streams.add(message);
+        } else {
+            control.add(message);
+        }
+    }
+
+    boolean isEmpty() {
+        return current == null && control.isEmpty() && streams.isEmpty();
+    }
+
+    /**
+     * @return true, если очередь опустела
+     */
+    boolean flush(SocketChannel channel) throws IOException {
+        while (true) {
+            if (current == null) {
+                current = control.isEmpty() ? streams.poll() : control.poll();
+                if (current == null) {
+                    return true;
+                }
+            }
+            if (!current.writeTo(channel)) {
+                return false;
+            }
+            if (current.hasMore()) {
+                streams.add(current);
+            } else {
+                current.release();
+                StorageMetrics.QUEUED.decrement();
+            }
+            current = null;
+        }
+    }
+
+    void clear() {
+        if (current != null) {
+            current.release();
+            current = null;
+            StorageMetrics.QUEUED.decrement();
+        }
+        control.forEach(Outbound::release);
+        streams.forEach(Outbound::release);
+        StorageMetrics.QUEUED.add(-(control.size() + streams.size()));
+        control.clear();
+        streams.clear();
+    }
+}
@@ -0,0 +1,129 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lesson1.metrics.Log;
+
+/**
+ * Поток с собственным селектором, обслуживающий часть клиентских соединений
+ */
+public class Reactor implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final Storage storage;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public Reactor(String name, Storage storage) throws IOException {
+        this.name = name;
+        this.storage = storage;
+        this.selector = Selector.open();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int connections() {
+        return connections.get();
+    }
+
+    /**
+     * Передача принятого соединения в реактор. Регистрация выполняется в потоке реактора.
+     */
+    public void register(SocketChannel channel) {
+        connections.incrementAndGet();
+        pending.offer(channel);
+        selector.wakeup();
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Выполнение задачи в потоке реактора на следующем проходе его цикла
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        Log.info(name + ": started");
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                long start = System.nanoTime();
+                registerPending();
+                runTasks();
+                var iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    var key = iterator.next();
+                    iterator.remove();
+                    handle(key);
+                }
+                StorageMetrics.REACTOR_LOOP.recordSince(start);
+            } catch (IOException e) {
+                Log.error(name + ": selector error", e);
+            }
+        }
+        Log.info(name + ": stopped");
+    }
+
+    private void handle(SelectionKey key) {
+        ClientHandler handler = (ClientHandler) key.attachment();
+        try {
+            if (key.isReadable()) {
+                handler.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                handler.onWritable();
+            }
+        } catch (IOException e) {
+            Log.info(name + ": connection error: " + e.getMessage());
+            handler.close();
+        } catch (RuntimeException e) {
+            // ошибка разбора или обработки закрывает только это соединение, реактор продолжает работу
+            Log.error(name + ": connection failed", e);
+            handler.close();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error(name + ": task failed", e);
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                ClientHandler handler = new ClientHandler(channel, storage, this);
+                handler.attach(channel.register(selector, SelectionKey.OP_READ, handler));
+            } catch (IOException e) {
+                Log.error(name + ": cannot register connection", e);
+                connectionClosed();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package lesson1.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import lesson1.common.Checksum;
+import lesson1.common.FileTransfer;
+import lesson1.metrics.Log;
+
+/**
+ * Последовательное чтение участков {@link StoredFile}. Файл участка открывается,
+ * только когда до него дошла очередь, и закрывается сразу после него.
+ * С {@link MappedRegionCache} данные берутся из общих отображенных участков, файл не открывается.
+ */
+public class SegmentCursor {
+    private final List<StoredFile.Segment> segments;
+    private final FileTransfer transfer;
+    private final MappedRegionCache regions;
+    private int index;
+    private long sentInSegment;
+    private long remaining;
+    private FileChannel file;
+    private Checksum checksum;
+    private TransferTimer timer;
+
+    SegmentCursor(List<StoredFile.Segment> segments, FileTransfer transfer) {
+        this(segments, transfer, null);
+    }
+
+    SegmentCursor(List<StoredFile.Segment> segments, FileTransfer transfer, MappedRegionCache regions) {
+        this.segments = segments;
+        this.transfer = transfer;
+        this.regions = regions;
+        for (StoredFile.Segment segment : segments) {
+            remaining += segment.length;
+        }
+    }
+
+    /**
+     * Учет отправленных байт в контрольной сумме. Байты видны только при чтении
+     * из отображенных участков, при transferTo они проходят мимо процесса.
+     */
+    void track(Checksum checksum) {
+        if (regions == null) {
+            throw new IllegalStateException("Checksum requires mapped regions");
+        }
+        this.checksum = checksum;
+    }
+
+    /**
+     * Учет времени открытия и отображения файлов как дискового
+     */
+    void time(TransferTimer timer) {
+        this.timer = timer;
+    }
+
+    public long remaining() {
+        return remaining;
+    }
+
+    /**
+     * Байт до конца текущего участка - кадр не должен пересекать границу участка
+     */
+    long segmentRemaining() {
+        skipFinished();
+        return index < segments.size() ? segments.get(index).length - sentInSegment : 0;
+    }
+
+    /**
+     * Отправка не более limit байт текущего участка
+     *
+     * @return сколько байт ушло; 0 - сокет заполнен
+     */
+    public long send(WritableByteChannel channel, long limit) throws IOException {
+        skipFinished();
+        if (index >= segments.size()) {
+            return 0;
+        }
+        StoredFile.Segment segment = segments.get(index);
+        if (regions != null) {
+            return sendMapped(channel, segment, limit);
+        }
+        if (file == null) {
+            long start = System.nanoTime();
+            file = FileChannel.open(segment.path, StandardOpenOption.READ);
+            if (timer != null) {
+                timer.disk(start);
+            }
+        }
+        long count = Math.min(limit, segment.length - sentInSegment);
+        long position = segment.position + sentInSegment;
+        long sent = transfer.send(file, position, count, channel);
+        if (sent <= 0 && position >= file.size()) {
+            throw new EOFException("File was truncated during download");
+        }
+        sentInSegment += sent;
+        remaining -= sent;
+        return sent;
+    }
+
+    private long sendMapped(WritableByteChannel channel, StoredFile.Segment segment, long limit) throws IOException {
+        long count = Math.min(limit, segment.length - sentInSegment);
+        long started = System.nanoTime();
+        ByteBuffer region = regions.region(segment.path, segment.position + sentInSegment);
+        if (timer != null) {
+            timer.disk(started);
+        }
+        if (region.remaining() > count) {
+            region.limit(region.position() + (int) count);
+        }
+        int start = region.position();
+        int sent = channel.write(region);
+        if (checksum != null && sent > 0) {
+            ByteBuffer written = region.duplicate();
+            written.position(start);
+            checksum.update(written.limit(start + sent));
+        }
+        sentInSegment += sent;
+        remaining -= sent;
+        return sent;
+    }
+
+    private void skipFinished() {
+        while (index < segments.size() && sentInSegment >= segments.get(index).length) {
+            closeFile();
+            index++;
+            sentInSegment = 0;
+        }
+    }
+
+    private void closeFile() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.error("Cannot close " + segments.get(index).path, e);
+            }
+            file = null;
+        }
+    }
+
+    public void close() {
+        closeFile();
+    }
+}
@@ -1,23 +1,76 @@
 package lesson1.server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 
+import lesson1.metrics.Log;
+import lesson1.metrics.MetricsEndpoint;
+
+/**
+ * Сервер хранилища: один поток принимает соединения,
+ * N реакторов (по умолчанию по числу ядер) обслуживают их через Selector.
+ * Со свойством storage.cluster сервер - узел кластера (см. {@link Cluster}).
+ */
 public class Server {
+    public static final int PORT = 1235;
+    public static final int METRICS_PORT = 9235;
+
+    private final Reactor[] reactors;
+
+    /**
+     * Порт, каталог и число реакторов - из свойств storage.port, storage.root и storage.reactors:
+     * так на одной машине запускается несколько узлов кластера
+     */
     public Server() {
-        ExecutorService service = Executors.newFixedThreadPool(4);
-        try (ServerSocket server = new ServerSocket(1235)) {
-            System.out.println("Server started");
-            while (true) {
-                System.out.println("Server: ready to accept");
-                service.execute(new ClientHandler(server.accept()));
-                System.out.println("Server: new client accepted");
+        this(Path.of(System.getProperty("storage.root", "server")), Integer.getInteger("storage.port", PORT),
+            Integer.getInteger("storage.reactors", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Сервер с хранилищем в каталоге root; конструктор возвращается, только когда сервер остановлен
+     */
+    public Server(Path root, int port, int reactorCount) {
+        reactors = new Reactor[reactorCount];
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            Storage storage = new Storage(root);
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor("reactor-" + i, storage);
+                Thread thread = new Thread(reactors[i], reactors[i].name());
+                thread.setDaemon(true);
+                thread.start();
+            }
+            if (Cluster.map() != null) {
+                HintedHandoff.start(storage);
+            }
+            StorageMetrics.register(reactors, storage);
+            MetricsEndpoint.start("storage", StorageMetrics.REGISTRY,
+                Integer.getInteger("storage.metricsPort", METRICS_PORT));
+            server.bind(new InetSocketAddress(port));
+            Log.info(Cluster.map() != null ? "Cluster node started on port " + port : "Server started");
+            while (server.isOpen()) {
+                SocketChannel channel = server.accept();
+                Reactor reactor = leastLoaded();
+                reactor.register(channel);
+                StorageMetrics.ACCEPTED.increment();
+                Log.info("Server: new client accepted by " + reactor.name());
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Server stopped", e);
+        }
+    }
+
+    // новое соединение получает реактор с наименьшим числом клиентов
+    private Reactor leastLoaded() {
+        Reactor best = reactors[0];
+        for (Reactor reactor : reactors) {
+            if (reactor.connections() < best.connections()) {
+                best = reactor;
+            }
         }
+        return best;
     }
 
     public static void main(String[] args) {
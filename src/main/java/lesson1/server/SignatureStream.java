@@ -0,0 +1,101 @@
+package lesson1.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import lesson1.common.Delta;
+import lesson1.common.Protocol;
+import lesson1.common.RollingChecksum;
+import lesson1.metrics.Log;
+
+/**
+ * Подписи блоков файла для синхронизации по отличиям: кадры BLOCKS, затем END.
+ * Блоки читаются по кадру, не больше {@link #READ_PER_FRAME} байт за раз, поэтому
+ * подписи большого файла не занимают реактор надолго и чередуются с другими ответами.
+ * У сжатого при хранении файла подписей нет: клиент пришлет его целиком командами LITERAL.
+ */
+class SignatureStream implements Outbound {
+    private static final int READ_PER_FRAME = 1024 * 1024;
+
+    private final int requestId;
+    private final StoredFile file;
+    private final StoredFileReader reader;
+    private final int blockSize;
+    private final int blocksPerFrame;
+    private final Runnable onRelease;
+    private final ByteBuffer frame;
+    private final ByteBuffer data;
+    private long position;
+    private boolean finished;
+    private volatile boolean cancelled;
+
+    SignatureStream(int requestId, StoredFile file, int blockSize, Runnable onRelease) {
+        this.requestId = requestId;
+        this.file = file;
+        this.reader = new StoredFileReader(file);
+        this.blockSize = blockSize;
+        this.blocksPerFrame = Math.max(1, Math.min(READ_PER_FRAME / blockSize,
+            (Protocol.DATA_CHUNK - Integer.BYTES) / Delta.SIGNATURE_SIZE));
+        this.onRelease = onRelease;
+        this.frame = ByteBuffer.allocate(Protocol.HEADER_SIZE + Integer.BYTES + blocksPerFrame * Delta.SIGNATURE_SIZE);
+        this.data = ByteBuffer.allocate(blocksPerFrame * blockSize);
+        // подписей нет, если байты на диске не совпадают с содержимым
+        this.position = file.isCompressed() ? file.size() : 0;
+        frame.flip();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        if (!frame.hasRemaining()) {
+            fill();
+        }
+        StorageMetrics.BYTES_OUT.add(channel.write(frame));
+        return !frame.hasRemaining();
+    }
+
+    private void fill() throws IOException {
+        frame.clear();
+        long remaining = file.size() - position;
+        if (remaining <= 0 || cancelled) {
+            Protocol.putHeader(frame, Protocol.END, requestId, 0);
+            finished = true;
+            frame.flip();
+            return;
+        }
+        int length = (int) Math.min(remaining, data.capacity());
+        data.clear().limit(length);
+        reader.read(position, data);
+        position += length;
+        int count = (length + blockSize - 1) / blockSize;
+        Protocol.putHeader(frame, Protocol.BLOCKS, requestId, Integer.BYTES + count * Delta.SIGNATURE_SIZE);
+        frame.putInt(count);
+        byte[] bytes = data.array();
+        for (int offset = 0; offset < length; offset += blockSize) {
+            int block = Math.min(blockSize, length - offset);
+            frame.putInt(RollingChecksum.of(bytes, offset, block));
+            frame.put(Delta.strong(bytes, offset, block));
+        }
+        frame.flip();
+    }
+
+    @Override
+    public boolean hasMore() {
+        return !finished;
+    }
+
+    @Override
+    public void release() {
+        onRelease.run();
+        try {
+            reader.close();
+        } catch (IOException e) {
+            Log.error("Cannot close signature source", e);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package lesson1.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import lesson1.common.ChunkRef;
+import lesson1.common.Codec;
+import lesson1.common.FileInfo;
+import lesson1.common.FileTransfer;
+
+/**
+ * Каталог хранилища на сервере, общий для всех реакторов.
+ * Файл хранится целиком в каталоге, манифестом в {@link ChunkStore} или сжатым в {@link CompressedStore}.
+ * Сведения о файлах ведет {@link MetadataIndex}, список и поиск по имени идут через него.
+ */
+public class Storage {
+    private final Path root;
+    private final ChunkedUploads chunkedUploads;
+    private final ChunkStore chunkStore;
+    private final CompressedStore compressedStore;
+    private final HintStore hints;
+    private final MetadataIndex index;
+    private final MappedRegionCache regions = new MappedRegionCache(Long.getLong("storage.mmap.cache", 256L << 20));
+    private final HotFileCache hotFiles = new HotFileCache(Long.getLong("storage.hot.cache", 64L << 20));
+
+    public Storage(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        Files.createDirectories(this.root);
+        this.chunkedUploads = new ChunkedUploads(this);
+        this.chunkStore = new ChunkStore(this);
+        this.compressedStore = new CompressedStore(this);
+        this.hints = new HintStore(this);
+        this.index = MetadataIndex.open(serviceDir("index").resolve("metadata.log"));
+        if (index.isOwner()) {
+            reconcile();
+        }
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    public ChunkedUploads chunkedUploads() {
+        return chunkedUploads;
+    }
+
+    public ChunkStore chunkStore() {
+        return chunkStore;
+    }
+
+    public CompressedStore compressedStore() {
+        return compressedStore;
+    }
+
+    /**
+     * Подсказки для недоступных узлов кластера
+     */
+    public HintStore hints() {
+        return hints;
+    }
+
+    /**
+     * Путь к файлу по имени от клиента. Выход за пределы каталога хранилища запрещен,
+     * имена на точку зарезервированы под служебные каталоги сервера.
+     */
+    public Path resolve(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (name.isEmpty() || !path.startsWith(root) || path.equals(root)
+            || root.relativize(path).getName(0).toString().startsWith(".")) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        return path;
+    }
+
+    /**
+     * Имя файла хранилища по имени относительно каталога base ("" - корень).
+     * Для самого корня возвращается пустая строка, выход за пределы хранилища запрещен.
+     */
+    public String name(String base, String name) throws IOException {
+        Path path = root.resolve(base).resolve(name).normalize();
+        if (!path.startsWith(root)) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        return nameOf(path);
+    }
+
+    /**
+     * Служебный каталог внутри хранилища, например .parts для незавершенных загрузок
+     */
+    public Path serviceDir(String name) throws IOException {
+        return Files.createDirectories(root.resolve("." + name));
+    }
+
+    public MetadataIndex index() {
+        return index;
+    }
+
+    /**
+     * Отображенные в память участки файлов для чтения диапазонов, общие для всех соединений
+     */
+    public MappedRegionCache regions() {
+        return regions;
+    }
+
+    /**
+     * Кэш содержимого часто скачиваемых файлов; счетчики попаданий помогают подобрать его объем
+     */
+    public HotFileCache hotFiles() {
+        return hotFiles;
+    }
+
+    /**
+     * Содержимое файла из кэша горячих файлов или null, если его там нет.
+     * После отправки содержимое нужно вернуть через {@link HotFileCache.Lease#release()}.
+     */
+    public HotFileCache.Lease cached(String name) throws IOException {
+        FileInfo info = info(name);
+        if (info == null || info.isDirectory()) {
+            return null;
+        }
+        return hotFiles.get(info, () -> open(name));
+    }
+
+    /**
+     * Открытие файла на чтение или null, если его нет. Наличие и размер берутся из индекса.
+     */
+    public StoredFile open(String name) throws IOException {
+        Path path = resolve(name);
+        FileInfo info = index.get(name);
+        if (info == null || info.isDirectory()) {
+            return null;
+        }
+        if (info.isChunked()) {
+            return chunkStore.open(name);
+        }
+        if (info.isCompressed()) {
+            return compressedStore.open(name);
+        }
+        return StoredFile.plain(path, info.getSize());
+    }
+
+    public FileInfo info(String name) throws IOException {
+        resolve(name);
+        return index.get(name);
+    }
+
+    /**
+     * Удаление файла или каталога со всем содержимым
+     */
+    public boolean remove(String name) throws IOException {
+        Path path = resolve(name);
+        regions.invalidate(path);
+        if (Files.isDirectory(path)) {
+            hotFiles.invalidate(nameOf(path) + "/");
+            removeDirectory(nameOf(path), path);
+            return true;
+        }
+        hotFiles.invalidate(name);
+        boolean removed = Files.deleteIfExists(path);
+        removed = chunkStore.removeManifest(name) || removed;
+        removed = compressedStore.remove(name) || removed;
+        index.remove(name);
+        return removed;
+    }
+
+    private void removeDirectory(String name, Path path) throws IOException {
+        String prefix = name + "/";
+        for (String manifest : chunkStore.manifestNames()) {
+            if (manifest.startsWith(prefix)) {
+                chunkStore.removeManifest(manifest);
+            }
+        }
+        for (String compressed : compressedStore.names()) {
+            if (compressed.startsWith(prefix)) {
+                compressedStore.remove(compressed);
+            }
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path child : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(child);
+            }
+        }
+        for (String child : new ArrayList<>(index.range(prefix).keySet())) {
+            index.remove(child);
+        }
+    }
+
+    /**
+     * Создание каталога вместе с родительскими
+     */
+    public void mkdir(String name) throws IOException {
+        Path path = resolve(name);
+        Files.createDirectories(path);
+        addDirectories(nameOf(path) + "/");
+    }
+
+    /**
+     * Создание пустого файла или обновление времени изменения существующего
+     */
+    public void touch(String name) throws IOException {
+        Path path = resolve(name);
+        FileInfo known = index.get(nameOf(path));
+        if (Files.isDirectory(path) || known != null && (known.isChunked() || known.isCompressed())) {
+            throw new IOException("Not a plain file: " + name);
+        }
+        try {
+            Files.createFile(path);
+        } catch (FileAlreadyExistsException e) {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        uploaded(nameOf(path), null);
+    }
+
+    /**
+     * Копирование файла внутри хранилища. Если target - каталог, копия получает имя исходного файла.
+     * Файл из частей копируется манифестом без чтения данных, обычный - через transferTo
+     * между файловыми каналами, не проходя через кучу.
+     *
+     * @return имя копии или null, если исходного файла нет
+     */
+    public String copy(String source, String target) throws IOException {
+        resolve(source);
+        FileInfo info = index.get(source);
+        if (info == null || info.isDirectory()) {
+            return null;
+        }
+        Path path = resolve(target);
+        if (Files.isDirectory(path)) {
+            path = resolve(nameOf(path) + "/" + source.substring(source.lastIndexOf('/') + 1));
+        }
+        String name = nameOf(path);
+        if (name.equals(source)) {
+            throw new IOException("Cannot copy file to itself: " + source);
+        }
+        Files.createDirectories(path.getParent());
+        if (info.isCompressed()) {
+            compressedStore.copy(source, name);
+            replaceWithCompressed(name, info.getCodec(), info.getSize(), info.hasHash() ? info.getHash() : null);
+            return name;
+        }
+        if (info.isChunked()) {
+            List<ChunkRef> chunks = chunkStore.manifest(source);
+            if (chunks == null || chunkStore.putManifest(name, chunks) > 0) {
+                throw new IOException("Chunks of " + source + " are missing");
+            }
+            manifestStored(name, info.getSize(), info.hasHash() ? info.getHash() : null);
+            return name;
+        }
+        // копия собирается во временном файле: читатели прежнего файла не увидят его недописанным
+        Path temp = uploadTemp(name);
+        try {
+            try (FileChannel from = FileChannel.open(resolve(source), StandardOpenOption.READ);
+                 FileChannel to = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                FileTransfer.defaultTransfer().sendFully(from, 0, from.size(), to);
+            }
+            uploaded(name, temp, info.hasHash() ? info.getHash() : null);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return name;
+    }
+
+    /**
+     * Временный файл в .uploads для приема обычного файла: до сверки суммы прежний файл не трогается.
+     * На место его переносит {@link #uploaded(String, Path, byte[])}.
+     */
+    public Path uploadTemp(String name) throws IOException {
+        Path target = resolve(name);
+        if (!Files.isDirectory(target.getParent())) {
+            throw new IOException("No such directory: " + name);
+        }
+        return Files.createTempFile(serviceDir("uploads"), "upload", ".tmp");
+    }
+
+    /**
+     * Свободное место на диске хранилища: загрузка большего объявленного размера не принимается
+     */
+    public long usableSpace() throws IOException {
+        return Files.getFileStore(root).getUsableSpace();
+    }
+
+    public void uploaded(String name, Path temp, byte[] hash) throws IOException {
+        Files.move(temp, resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        uploaded(name, hash);
+    }
+
+    /**
+     * Вызывается после того, как по имени записан новый обычный файл
+     *
+     * @param hash SHA-256 содержимого, если он посчитан при приеме, иначе null
+     */
+    public void uploaded(String name, byte[] hash) throws IOException {
+        // индекс знает, как хранилась прежняя версия
+        FileInfo previous = index.get(name);
+        if (previous != null && previous.isChunked()) {
+            chunkStore.removeManifest(name);
+        }
+        if (previous != null && previous.isCompressed()) {
+            compressedStore.remove(name);
+        }
+        Path path = resolve(name);
+        regions.invalidate(path);
+        hotFiles.invalidate(name);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        addDirectories(name);
+        index.put(new FileInfo(name, attributes.size(), attributes.lastModifiedTime().toMillis(), hash, false));
+    }
+
+    /**
+     * Вызывается после записи манифеста: обычный файл с тем же именем больше не нужен
+     *
+     * @param hash SHA-256 содержимого от клиента или null
+     */
+    public void manifestStored(String name, long size, byte[] hash) throws IOException {
+        Path path = resolve(name);
+        regions.invalidate(path);
+        hotFiles.invalidate(name);
+        compressedStore.remove(name);
+        Files.deleteIfExists(path);
+        addDirectories(name);
+        index.put(new FileInfo(name, size, System.currentTimeMillis(), hash, true));
+    }
+
+    /**
+     * Вызывается после приема сжатого файла во временный файл {@link CompressedStore}:
+     * файл переносится на место и заменяет обычный файл или манифест с тем же именем
+     */
+    public void compressedStored(String name, Codec codec, long size, byte[] hash) throws IOException {
+        compressedStore.commit(name);
+        replaceWithCompressed(name, codec, size, hash);
+    }
+
+    private void replaceWithCompressed(String name, Codec codec, long size, byte[] hash) throws IOException {
+        Path path = resolve(name);
+        regions.invalidate(path);
+        hotFiles.invalidate(name);
+        chunkStore.removeManifest(name);
+        Files.deleteIfExists(path);
+        addDirectories(name);
+        index.put(new FileInfo(name, size, System.currentTimeMillis(), hash, false, codec));
+    }
+
+    public Collection<FileInfo> list(String prefix) throws IOException {
+        return index.list(prefix);
+    }
+
+    /**
+     * Файлы с префиксом, идущие по имени после after. Представление индекса без копирования,
+     * обход не требует памяти, зависящей от числа файлов.
+     */
+    public Collection<FileInfo> list(String prefix, String after) throws IOException {
+        if (after == null || after.isEmpty()) {
+            return index.list(prefix);
+        }
+        return index.range(prefix).tailMap(after, false).values();
+    }
+
+    // каталоги в индексе - записи с именем на '/', чтобы список каталога строился без обращения к диску
+    private void addDirectories(String name) throws IOException {
+        for (int slash = name.indexOf('/'); slash > 0; slash = name.indexOf('/', slash + 1)) {
+            String directory = name.substring(0, slash + 1);
+            if (index.get(directory) == null) {
+                index.put(new FileInfo(directory, 0, System.currentTimeMillis(), null, false));
+            }
+        }
+    }
+
+    private String nameOf(Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Сверка индекса с каталогом при запуске: хеши сохраняются для файлов,
+     * у которых не изменились размер и время изменения
+     */
+    private void reconcile() throws IOException {
+        List<FileInfo> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                if (dir.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (root.relativize(dir).getName(0).toString().startsWith(".")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                files.add(new FileInfo(nameOf(dir) + "/", 0, attributes.lastModifiedTime().toMillis(), null, false));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                String name = nameOf(path);
+                if (!attributes.isRegularFile() || name.startsWith(".")) {
+                    return FileVisitResult.CONTINUE;
+                }
+                long modified = attributes.lastModifiedTime().toMillis();
+                FileInfo known = index.get(name);
+                byte[] hash = known != null && !known.isChunked() && known.getSize() == attributes.size()
+                    && known.getModified() == modified ? known.getHash() : null;
+                files.add(new FileInfo(name, attributes.size(), modified, hash, false));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (String name : chunkStore.manifestNames()) {
+            FileInfo known = index.get(name);
+            StoredFile file = chunkStore.open(name);
+            if (file != null) {
+                long modified = known != null ? known.getModified() : System.currentTimeMillis();
+                byte[] hash = known != null && known.isChunked() ? known.getHash() : null;
+                files.add(new FileInfo(name, file.size(), modified, hash, true));
+            }
+        }
+        for (String name : compressedStore.names()) {
+            FileInfo known = index.get(name);
+            StoredFile file = compressedStore.open(name);
+            long modified = known != null ? known.getModified() : System.currentTimeMillis();
+            byte[] hash = known != null && known.isCompressed() ? known.getHash() : null;
+            files.add(new FileInfo(name, file.size(), modified, hash, false, file.codec()));
+        }
+        index.rebuild(files);
+    }
+}
@@ -0,0 +1,150 @@
+package lesson1.server;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import lesson1.common.Protocol;
+import lesson1.metrics.Histogram;
+import lesson1.metrics.Log;
+import lesson1.metrics.MetricsRegistry;
+
+/**
+ * Метрики сервера хранилища. Все счетчики и гистограммы создаются при загрузке класса,
+ * поэтому запись из потоков реакторов не выделяет память и не берет блокировок.
+ */
+final class StorageMetrics {
+    static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    static final LongAdder ACCEPTED = REGISTRY.counter("storage_connections_accepted_total",
+        "Accepted client connections");
+    static final LongAdder BYTES_IN = REGISTRY.counter("storage_received_bytes_total",
+        "Bytes read from client sockets");
+    static final LongAdder BYTES_OUT = REGISTRY.counter("storage_sent_bytes_total",
+        "Bytes written to client sockets");
+    static final Histogram REACTOR_LOOP = REGISTRY.histogram("storage_reactor_loop_seconds",
+        "Time a reactor spends handling ready keys after one select");
+    static final LongAdder QUEUED = new LongAdder();
+    static final Histogram TRANSFER_DISK = REGISTRY.histogram("storage_transfer_seconds{part=\"disk\"}",
+        "Time of a file transfer spent on disk and on the network");
+    static final Histogram TRANSFER_NETWORK = REGISTRY.histogram("storage_transfer_seconds{part=\"network\"}",
+        "Time of a file transfer spent on disk and on the network");
+
+    // по коду операции кадрового протокола
+    private static final Histogram[] COMMANDS = new Histogram[Byte.MAX_VALUE + 1];
+    private static final Histogram UNKNOWN_COMMAND;
+    private static final Histogram LEGACY_UPLOAD;
+    private static final Histogram LEGACY_DOWNLOAD;
+    private static final Histogram LEGACY_READ;
+    private static final Histogram LEGACY_REMOVE;
+
+    private static volatile Reactor[] reactors = new Reactor[0];
+    private static volatile Storage storage;
+
+    static {
+        REGISTRY.gauge("storage_outbound_queued", "Replies and streams waiting in connection queues", QUEUED::sum);
+        command(Protocol.UPLOAD, "upload");
+        command(Protocol.DATA, "data");
+        command(Protocol.END, "end");
+        command(Protocol.DOWNLOAD, "download");
+        command(Protocol.REMOVE, "remove");
+        command(Protocol.LIST, "list");
+        command(Protocol.CANCEL, "cancel");
+        command(Protocol.CHUNK_OPEN, "chunk_open");
+        command(Protocol.CHUNK_PUT, "chunk_put");
+        command(Protocol.CHUNK_COMMIT, "chunk_commit");
+        command(Protocol.READ, "read");
+        command(Protocol.CHUNK_QUERY, "chunk_query");
+        command(Protocol.BLOB_PUT, "blob_put");
+        command(Protocol.MANIFEST_PUT, "manifest_put");
+        command(Protocol.HELLO, "hello");
+        command(Protocol.CHECKSUM, "checksum");
+        command(Protocol.SIGNATURE, "signature");
+        command(Protocol.DELTA_PUT, "delta_put");
+        command(Protocol.BATCH_PUT, "batch_put");
+        command(Protocol.BATCH_GET, "batch_get");
+        command(Protocol.CLUSTER, "cluster");
+        command(Protocol.HINT_PUT, "hint_put");
+        command(Protocol.HINT_REMOVE, "hint_remove");
+        UNKNOWN_COMMAND = commandHistogram("unknown");
+        LEGACY_UPLOAD = commandHistogram("legacy_upload");
+        LEGACY_DOWNLOAD = commandHistogram("legacy_download");
+        LEGACY_READ = commandHistogram("legacy_read");
+        LEGACY_REMOVE = commandHistogram("legacy_remove");
+        REGISTRY.counter("storage_log_dropped_total", "Log records dropped because the log queue was full",
+            Log::dropped);
+        REGISTRY.gauge("storage_connections", "Open client connections", StorageMetrics::connections);
+        REGISTRY.counter("storage_hot_cache_hits_total", "Hot file cache hits",
+            () -> fromStorage(s -> s.hotFiles().hits()));
+        REGISTRY.counter("storage_hot_cache_misses_total", "Hot file cache misses",
+            () -> fromStorage(s -> s.hotFiles().misses()));
+        REGISTRY.counter("storage_hot_cache_evictions_total", "Hot file cache evictions",
+            () -> fromStorage(s -> s.hotFiles().evictions()));
+        REGISTRY.gauge("storage_hot_cache_bytes", "Bytes held by the hot file cache",
+            () -> fromStorage(s -> s.hotFiles().size()));
+        REGISTRY.counter("storage_mapped_region_hits_total", "Mapped region cache hits",
+            () -> fromStorage(s -> s.regions().hits()));
+        REGISTRY.counter("storage_mapped_region_misses_total", "Mapped region cache misses",
+            () -> fromStorage(s -> s.regions().misses()));
+        REGISTRY.gauge("storage_mapped_bytes", "Bytes of files mapped by the region cache",
+            () -> fromStorage(s -> s.regions().mappedBytes()));
+        REGISTRY.gauge("storage_hints_pending", "Writes and removes waiting for a cluster node to come back",
+            () -> fromStorage(s -> s.hints().count()));
+    }
+
+    private StorageMetrics() {
+    }
+
+    private static void command(byte op, String name) {
+        COMMANDS[op] = commandHistogram(name);
+    }
+
+    private static Histogram commandHistogram(String name) {
+        return REGISTRY.histogram("storage_command_seconds{op=\"" + name + "\"}",
+            "Time a reactor spends handling one request frame or legacy command");
+    }
+
+    static Histogram command(byte op) {
+        Histogram histogram = op >= 0 ? COMMANDS[op] : null;
+        return histogram != null ? histogram : UNKNOWN_COMMAND;
+    }
+
+    /**
+     * Команда старого протокола; загрузка учитывается вместе с приемом тела
+     */
+    static Histogram legacy(String command) {
+        switch (command) {
+            case "upload":
+                return LEGACY_UPLOAD;
+            case "download":
+                return LEGACY_DOWNLOAD;
+            case "read":
+                return LEGACY_READ;
+            case "remove":
+                return LEGACY_REMOVE;
+            default:
+                return UNKNOWN_COMMAND;
+        }
+    }
+
+    /**
+     * Сервер, с которого читаются соединения и кэши. Метрики регистрируются один раз,
+     * поэтому следующий сервер в том же процессе (тесты производительности) просто заменяет предыдущий.
+     */
+    static void register(Reactor[] reactors, Storage storage) {
+        StorageMetrics.reactors = reactors;
+        StorageMetrics.storage = storage;
+    }
+
+    private static long connections() {
+        long total = 0;
+        for (Reactor reactor : reactors) {
+            total += reactor.connections();
+        }
+        return total;
+    }
+
+    private static long fromStorage(ToLongFunction<Storage> value) {
+        Storage current = storage;
+        return current != null ? value.applyAsLong(current) : 0;
+    }
+}
@@ -0,0 +1,101 @@
+package lesson1.server;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lesson1.common.Codec;
+import lesson1.common.FileTransfer;
+
+/**
+ * Файл хранилища как последовательность участков на диске.
+ * Обычный файл - один участок, файл из хранилища частей - по участку на каждую часть.
+ * У сжатого при хранении файла участок - сжатый поток, а размер - исходный, до сжатия.
+ */
+public class StoredFile {
+    private final long size;
+    private final long storedSize;
+    private final List<Segment> segments;
+    private final Codec codec;
+
+    StoredFile(long size, List<Segment> segments) {
+        this(size, segments, Codec.NONE);
+    }
+
+    StoredFile(long size, List<Segment> segments, Codec codec) {
+        this.size = size;
+        this.segments = segments;
+        this.codec = codec;
+        long stored = 0;
+        for (Segment segment : segments) {
+            stored += segment.length;
+        }
+        this.storedSize = stored;
+    }
+
+    static StoredFile plain(Path path, long size) {
+        return new StoredFile(size, Collections.singletonList(new Segment(path, 0, size)));
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Сколько байт файл занимает на диске; для несжатого файла совпадает с размером
+     */
+    public long storedSize() {
+        return storedSize;
+    }
+
+    public Codec codec() {
+        return codec;
+    }
+
+    public boolean isCompressed() {
+        return codec != Codec.NONE;
+    }
+
+    /**
+     * Последовательная отправка всего файла в канал
+     */
+    public SegmentCursor cursor(FileTransfer transfer) {
+        return new SegmentCursor(segments, transfer);
+    }
+
+    /**
+     * Участки, покрывающие диапазон [offset, offset + length) хранимых байт
+     */
+    public List<Segment> range(long offset, long length) {
+        List<Segment> result = new ArrayList<>();
+        // offset + length может переполниться при длине "до конца файла"
+        long end = offset + Math.max(0, Math.min(length, storedSize - offset));
+        long segmentStart = 0;
+        for (Segment segment : segments) {
+            long segmentEnd = segmentStart + segment.length;
+            if (segmentEnd > offset && segmentStart < end) {
+                long from = Math.max(offset, segmentStart) - segmentStart;
+                long to = Math.min(end, segmentEnd) - segmentStart;
+                result.add(new Segment(segment.path, segment.position + from, to - from));
+            }
+            if (segmentStart >= end) {
+                break;
+            }
+            segmentStart = segmentEnd;
+        }
+        return result;
+    }
+
+    public static final class Segment {
+        final Path path;
+        final long position;
+        final long length;
+
+        Segment(Path path, long position, long length) {
+            this.path = path;
+            this.position = position;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package lesson1.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Чтение хранимых байт {@link StoredFile} по смещению. Открытым держится только файл
+ * последнего участка: подряд идущие чтения одного участка его не переоткрывают.
+ */
+class StoredFileReader implements Closeable {
+    private final StoredFile file;
+    private Path openPath;
+    private FileChannel channel;
+
+    StoredFileReader(StoredFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Заполнение dst байтами с позиции position
+     */
+    void read(long position, ByteBuffer dst) throws IOException {
+        for (StoredFile.Segment segment : file.range(position, dst.remaining())) {
+            FileChannel channel = channel(segment.path);
+            int limit = dst.limit();
+            // участок не длиннее остатка dst, его байты читаются только из его файла
+            dst.limit(dst.position() + (int) segment.length);
+            long at = segment.position;
+            while (dst.hasRemaining()) {
+                int count = channel.read(dst, at);
+                if (count < 0) {
+                    throw new EOFException("File is shorter than expected");
+                }
+                at += count;
+            }
+            dst.limit(limit);
+        }
+        if (dst.hasRemaining()) {
+            throw new EOFException("Read past the end of file");
+        }
+    }
+
+    private FileChannel channel(Path path) throws IOException {
+        if (!path.equals(openPath)) {
+            close();
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            openPath = path;
+        }
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            openPath = null;
+        }
+    }
+}
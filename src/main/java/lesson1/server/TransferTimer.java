@@ -0,0 +1,29 @@
+package lesson1.server;
+
+/**
+ * Время одной передачи файла, разделенное на диск и сеть. Диском считается то, что измерено
+ * вокруг чтения, записи и отображения файла; сетью - остальное время от начала до конца передачи
+ * (запись в сокет и ожидание клиента). При передаче через transferTo чтение файла идет внутри
+ * записи в сокет и попадает в сеть.
+ */
+final class TransferTimer {
+    private final long started = System.nanoTime();
+    private long disk;
+    private boolean finished;
+
+    /**
+     * Учет дисковой операции, начатой в start = System.nanoTime()
+     */
+    void disk(long start) {
+        disk += System.nanoTime() - start;
+    }
+
+    void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        StorageMetrics.TRANSFER_DISK.record(disk);
+        StorageMetrics.TRANSFER_NETWORK.record(System.nanoTime() - started - disk);
+    }
+}
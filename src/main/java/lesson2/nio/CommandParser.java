@@ -0,0 +1,98 @@
+package lesson2.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Разбор команд прямо в буфере чтения, без промежуточных строк.
+ * Границы слов передаются индексами в буфере; строка создается только там, где она нужна дальше.
+ */
+public final class CommandParser {
+    private CommandParser() {
+    }
+
+    public static byte[] word(String word) {
+        return word.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Индекс конца строки '\n' между position и limit или -1, если строка еще не пришла
+     */
+    public static int lineEnd(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Конец строки без завершающих '\r' и пробелов
+     */
+    public static int trimEnd(ByteBuffer buffer, int start, int end) {
+        while (end > start && (buffer.get(end - 1) == '\r' || buffer.get(end - 1) == ' ')) {
+            end--;
+        }
+        return end;
+    }
+
+    public static int skipSpaces(ByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) == ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    public static int wordEnd(ByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) != ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Слово [start, end) совпадает с word
+     */
+    public static boolean is(ByteBuffer buffer, int start, int end, byte[] word) {
+        if (end - start != word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (buffer.get(start + i) != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Строка начинается с команды word, за которой конец строки или пробел
+     */
+    public static boolean isCommand(ByteBuffer buffer, int start, int end, byte[] word) {
+        int wordEnd = start + word.length;
+        return wordEnd <= end && is(buffer, start, wordEnd, word)
+            && (wordEnd == end || buffer.get(wordEnd) == ' ');
+    }
+
+    public static int parseInt(ByteBuffer buffer, int start, int end) {
+        if (start == end || end - start > 9) {
+            throw new NumberFormatException("Invalid number");
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid number");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    public static String string(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.duplicate().position(start).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,199 @@
+package lesson2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Base64;
+import java.util.Iterator;
+
+import lesson1.common.FileInfo;
+import lesson1.common.SlabBufferPool;
+import lesson1.server.Storage;
+
+/**
+ * Вывод команды ls по частям. Выводятся файлы и подкаталоги (с '/' на конце) одного каталога.
+ * Имена берутся итератором по индексу хранилища и пишутся
+ * в буфер фиксированного размера, поэтому память на запрос не зависит от числа файлов.
+ * Если сокет не принял все данные, вывод продолжается, когда канал снова готов к записи.
+ */
+class DirectoryListing implements ReplyStream {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String GLOB_CHARS = "*?[{";
+    private static final byte[] NEW_LINE = {'\n'};
+
+    private final Storage storage;
+    private final String base;
+    private final String prefix;
+    private final PathMatcher matcher;
+    private Iterator<FileInfo> files;
+    private final int pageSize;
+    private final SlabBufferPool pool;
+    private ByteBuffer buffer;
+    private String pending;
+    private byte[] trailer;
+    private String last;
+    private int count;
+    private boolean finished;
+
+    /**
+     * @param directory каталог хранилища, "" - корень
+     * @param pattern   префикс имени или маска glob, пустая строка - все файлы
+     * @param pageSize  сколько имен вывести, 0 - без ограничения
+     * @param token     продолжение предыдущей страницы или null
+     */
+    DirectoryListing(Storage storage, SlabBufferPool pool, String directory, String pattern, int pageSize,
+                     String token) throws IOException {
+        int glob = globStart(pattern);
+        this.storage = storage;
+        this.base = directory.isEmpty() ? "" : directory + "/";
+        this.prefix = base + pattern.substring(0, glob);
+        this.matcher = glob < pattern.length() ? FileSystems.getDefault().getPathMatcher("glob:" + pattern) : null;
+        String after = token == null ? null : base + decodeToken(token);
+        if (after != null && after.endsWith("/")) {
+            after = after + Character.MAX_VALUE;
+        }
+        this.files = storage.list(prefix, after).iterator();
+        this.pageSize = pageSize;
+        this.pool = pool;
+        this.buffer = pool.acquire(BUFFER_SIZE);
+        buffer.flip();
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        while (true) {
+            if (buffer.hasRemaining()) {
+                TelnetMetrics.BYTES_OUT.add(channel.write(buffer));
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (finished && pending == null && trailer == null) {
+                return true;
+            }
+            fill();
+        }
+    }
+
+    @Override
+    public void release() {
+        pool.release(buffer);
+        buffer = null;
+    }
+
+    private void fill() throws IOException {
+        buffer.clear();
+        while (true) {
+            if (pending != null) {
+                if (!putName(pending)) {
+                    break;
+                }
+                pending = null;
+            }
+            if (trailer != null) {
+                if (trailer.length > buffer.remaining()) {
+                    break;
+                }
+                buffer.put(trailer);
+                trailer = null;
+            }
+            if (finished) {
+                break;
+            }
+            next();
+        }
+        buffer.flip();
+    }
+
+    // следующее имя или завершающая строка
+    private void next() throws IOException {
+        String name = nextName();
+        if (name == null) {
+            finished = true;
+            trailer = NEW_LINE;
+        } else if (pageSize > 0 && count == pageSize) {
+            // есть еще файлы: продолжение начинается после последнего выведенного
+            finished = true;
+            trailer = ("\nnext page: -p " + encodeToken(last) + "\n").getBytes(StandardCharsets.UTF_8);
+        } else {
+            pending = name;
+            last = name;
+        }
+    }
+
+    /**
+     * Имя с разделителем в буфер. ASCII-имена кодируются на месте, остальные через getBytes.
+     *
+     * @return false, если имя не поместилось
+     */
+    private boolean putName(String name) {
+        int separator = count > 0 ? 1 : 0;
+        if (separator + name.length() > buffer.remaining()) {
+            return false;
+        }
+        int start = buffer.position();
+        if (separator > 0) {
+            buffer.put((byte) '\t');
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80) {
+                buffer.position(start);
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                if (separator + bytes.length > buffer.remaining()) {
+                    return false;
+                }
+                if (separator > 0) {
+                    buffer.put((byte) '\t');
+                }
+                buffer.put(bytes);
+                break;
+            }
+            buffer.put((byte) c);
+        }
+        count++;
+        return true;
+    }
+
+    private String nextName() throws IOException {
+        while (files.hasNext()) {
+            String name = files.next().getName().substring(base.length());
+            if (name.isEmpty()) {
+                // запись самого каталога
+                continue;
+            }
+            int slash = name.indexOf('/');
+            if (slash >= 0) {
+                // подкаталог выводится один раз, его содержимое пропускается
+                name = name.substring(0, slash + 1);
+                files = storage.list(prefix, base + name + Character.MAX_VALUE).iterator();
+            }
+            if (matcher == null || matcher.matches(Path.of(name))) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    // начало маски: все до первого спецсимвола glob - префикс для поиска в индексе
+    private static int globStart(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (GLOB_CHARS.indexOf(pattern.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return pattern.length();
+    }
+
+    private static String encodeToken(String name) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeToken(String token) {
+        return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+    }
+}
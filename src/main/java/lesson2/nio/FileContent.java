@@ -0,0 +1,37 @@
+package lesson2.nio;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import lesson1.common.FileTransfer;
+import lesson1.server.SegmentCursor;
+import lesson1.server.StoredFile;
+
+/**
+ * Вывод файла командой cat: участки файла уходят в сокет через transferTo, минуя кучу.
+ * Если сокет заполнен, вывод продолжается по готовности канала к записи.
+ */
+class FileContent implements ReplyStream {
+    private final SegmentCursor cursor;
+
+    FileContent(StoredFile file, FileTransfer transfer) {
+        this.cursor = file.cursor(transfer);
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        while (cursor.remaining() > 0) {
+            long sent = cursor.send(channel, cursor.remaining());
+            if (sent <= 0) {
+                return false;
+            }
+            TelnetMetrics.BYTES_OUT.add(sent);
+        }
+        return true;
+    }
+
+    @Override
+    public void release() {
+        cursor.close();
+    }
+}
@@ -0,0 +1,54 @@
+package lesson2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import lesson1.common.SlabBufferPool;
+import lesson1.server.InflatingReader;
+import lesson1.server.StoredFile;
+
+/**
+ * Вывод командой cat файла, сжатого при хранении: распаковка идет кусками в буфер из пула,
+ * следующий кусок - только после того, как предыдущий ушел в сокет.
+ */
+class InflatedContent implements ReplyStream {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final InflatingReader reader;
+    private final SlabBufferPool pool;
+    private ByteBuffer buffer;
+    private boolean finished;
+
+    InflatedContent(StoredFile file, SlabBufferPool pool) {
+        this.reader = new InflatingReader(file);
+        this.pool = pool;
+        this.buffer = pool.acquire(BUFFER_SIZE);
+        buffer.flip();
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        while (true) {
+            if (buffer.hasRemaining()) {
+                TelnetMetrics.BYTES_OUT.add(channel.write(buffer));
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (finished) {
+                return true;
+            }
+            buffer.clear();
+            finished = reader.read(buffer) < 0;
+            buffer.flip();
+        }
+    }
+
+    @Override
+    public void release() {
+        reader.close();
+        pool.release(buffer);
+        buffer = null;
+    }
+}
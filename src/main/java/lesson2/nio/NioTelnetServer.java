@@ -1,144 +1,586 @@
 package lesson2.nio;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class NioTelnetServer {
-    private final ByteBuffer buffer = ByteBuffer.allocate(512);
+import lesson1.common.FileTransfer;
+import lesson1.common.SlabBufferPool;
+import lesson1.metrics.Histogram;
+import lesson1.metrics.Log;
+import lesson1.metrics.MetricsEndpoint;
+import lesson1.server.Storage;
+import lesson1.server.StoredFile;
+
+import static lesson2.nio.CommandParser.isCommand;
+import static lesson2.nio.CommandParser.skipSpaces;
+import static lesson2.nio.CommandParser.wordEnd;
 
-    public static final String LS_COMMAND = "\tls          view all files from current directory\n";
-    public static final String MKDIR_COMMAND = "\tmkdir       view all files from current directory\n";
+public class NioTelnetServer {
+    public static final int METRICS_PORT = 9234;
+    public static final String LS_COMMAND = "\tls          view all files from current directory\n"
+        + "\t            ls [prefix or mask] [-n page size] [-p next page token]\n";
+    public static final String MKDIR_COMMAND = "\tmkdir       create directory: mkdir <name>\n";
+    public static final String TOUCH_COMMAND = "\ttouch       create empty file or update its time: touch <name>\n";
+    public static final String CD_COMMAND = "\tcd          change directory: cd <path>, cd .., cd / or cd for root\n";
+    public static final String RM_COMMAND = "\trm          remove file or directory: rm <name>\n";
+    public static final String CAT_COMMAND = "\tcat         print file contents: cat <name>\n";
+    public static final String COPY_COMMAND = "\tcopy        copy file: copy <source> <target file or directory>\n";
     public static final String CHANGE_NICKNAME_COMMAND = "\tnick        change nickname\n";
+    public static final String MESSAGE_COMMAND = "\tmsg         send message: msg <nick or address>[,...] <text>\n";
+    public static final String BROADCAST_COMMAND = "\tall         send message to everyone: all <text>\n";
 
-    private Map<String, SocketAddress> clients = new HashMap<>();
+    // ответы и команды в байтах готовятся один раз
+    private static final byte[] HELP = (LS_COMMAND + MKDIR_COMMAND + TOUCH_COMMAND + CD_COMMAND + RM_COMMAND
+        + CAT_COMMAND + COPY_COMMAND + CHANGE_NICKNAME_COMMAND + MESSAGE_COMMAND + BROADCAST_COMMAND).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] GREETING = "Hello user!\nEnter --help for support info\n"
+        .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOO_LONG = "Command is too long\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INVALID_LS = "Invalid ls arguments\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INVALID_COPY = "Usage: copy <source> <target>\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INVALID_NICK = "Invalid nickname\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NICK_TAKEN = "Nickname is already taken\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BUSY = "Server is busy, try again later\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NO_REPLY = new byte[0];
+    private static final byte[] HELP_WORD = CommandParser.word("--help");
+    private static final byte[] NICK_WORD = CommandParser.word("nick");
+    private static final byte[] LS_WORD = CommandParser.word("ls");
+    private static final byte[] EXIT_WORD = CommandParser.word("exit");
+    private static final byte[] MESSAGE_WORD = CommandParser.word("msg");
+    private static final byte[] BROADCAST_WORD = CommandParser.word("all");
+    private static final byte[] TOUCH_WORD = CommandParser.word("touch");
+    private static final byte[] MKDIR_WORD = CommandParser.word("mkdir");
+    private static final byte[] CD_WORD = CommandParser.word("cd");
+    private static final byte[] RM_WORD = CommandParser.word("rm");
+    private static final byte[] CAT_WORD = CommandParser.word("cat");
+    private static final byte[] COPY_WORD = CommandParser.word("copy");
+    private static final int WORKER_QUEUE_SIZE = 1024;
+    private static final byte[] PAGE_SIZE_FLAG = CommandParser.word("-n");
+    private static final byte[] TOKEN_FLAG = CommandParser.word("-p");
+
+    private final SessionRegistry registry = new SessionRegistry();
+    private final Storage storage;
+    private final SlabBufferPool pool = SlabBufferPool.shared();
+    private final FileTransfer transfer = FileTransfer.defaultTransfer();
+    private final TelnetReactor[] reactors;
+    // файловые команды блокируют поток, поэтому выполняются отдельно от реакторов; очередь ограничена
+    private final ThreadPoolExecutor workers;
 
     public NioTelnetServer() throws IOException {
-        ServerSocketChannel server = ServerSocketChannel.open(); // открыли
-        server.bind(new InetSocketAddress(1234));
-        server.configureBlocking(false); // ВАЖНО
-        Selector selector = Selector.open();
-        server.register(selector, SelectionKey.OP_ACCEPT);
-        System.out.println("Server started");
-        while (server.isOpen()) {
-            selector.select();
-            var selectionKeys = selector.selectedKeys();
-            var iterator = selectionKeys.iterator();
-            while (iterator.hasNext()) {
-                var key = iterator.next();
-                if (key.isAcceptable()) {
-                    handleAccept(key, selector);
-                } else if (key.isReadable()) {
-                    handleRead(key, selector);
-                }
-                iterator.remove();
+        this(new Storage(Path.of("server")), 1234);
+    }
+
+    public NioTelnetServer(Storage storage, int port) throws IOException {
+        this(storage, port, Integer.getInteger("telnet.reactors", Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("telnet.workers", 4));
+    }
+
+    /**
+     * Один поток принимает соединения и раздает их reactorCount реакторам,
+     * файловые команды выполняют workerCount рабочих потоков
+     */
+    public NioTelnetServer(Storage storage, int port, int reactorCount, int workerCount) throws IOException {
+        this.storage = storage;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(WORKER_QUEUE_SIZE), daemonThreads("telnet-worker-"));
+        this.reactors = new TelnetReactor[reactorCount];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new TelnetReactor("telnet-reactor-" + i, this);
+            Thread thread = new Thread(reactors[i], reactors[i].name());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        TelnetMetrics.register(reactors, workers);
+        MetricsEndpoint.start("telnet", TelnetMetrics.REGISTRY,
+            Integer.getInteger("telnet.metricsPort", METRICS_PORT));
+        try (ServerSocketChannel server = ServerSocketChannel.open()) { // открыли
+            server.bind(new InetSocketAddress(port));
+            Log.info("Server started");
+            while (server.isOpen()) {
+                leastLoaded().register(server.accept());
             }
         }
     }
 
-    private void handleRead(SelectionKey key, Selector selector) throws IOException {
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, prefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // новое соединение получает реактор с наименьшим числом клиентов
+    private TelnetReactor leastLoaded() {
+        TelnetReactor best = reactors[0];
+        for (TelnetReactor reactor : reactors) {
+            if (reactor.connections() < best.connections()) {
+                best = reactor;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Обработка готового ключа в потоке его реактора
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (key.isWritable()) {
+                handleWrite(key);
+            } else if (key.isReadable()) {
+                handleRead(key);
+            }
+        } catch (IOException e) {
+            Log.info("Client connection failed: " + e.getMessage());
+            close(key);
+        } catch (RuntimeException e) {
+            // ошибка в команде закрывает только эту сессию, реактор продолжает работу
+            Log.error("Client session failed", e);
+            close(key);
+        }
+    }
+
+    private void handleRead(SelectionKey key) throws IOException {
         SocketChannel channel = (SocketChannel) key.channel();
-        SocketAddress client = channel.getRemoteAddress();
-        String nickname = "";
-        int readBytes = channel.read(buffer);
+        Session session = (Session) key.attachment();
+        int readBytes = channel.read(session.in);
         if (readBytes < 0) {
-            channel.close();
+            close(key);
             return;
         } else if (readBytes == 0) {
             return;
         }
+        TelnetMetrics.BYTES_IN.add(readBytes);
+        processCommands(key, session);
+    }
 
-        buffer.flip();
-        StringBuilder sb = new StringBuilder();
-        while (buffer.hasRemaining()) {
-            sb.append((char) buffer.get());
-        }
-        buffer.clear();
-
-        // TODO: 05.03.2021
-        // touch (имя файла) - создание файла
-        // mkdir (имя директории) - создание директории
-        // cd (path) - перемещение по дереву папок
-        // rm (имя файла или папки) - удаление объекта
-        // copy (src, target) - копирование файла
-        // cat (имя файла) - вывод в консоль содержимого
-
-        if (key.isValid()) {
-            String command = sb.toString()
-                .replace("\n", "")
-                .replace("\r", "");
-            if ("--help".equals(command)) {
-                sendMessage(LS_COMMAND, selector, client);
-                sendMessage(MKDIR_COMMAND, selector, client);
-                sendMessage(CHANGE_NICKNAME_COMMAND, selector, client);
-            } else if (command.startsWith("nick ")) {
-                nickname = command.split(" ")[1];
-                clients.put(nickname, client);
-                System.out.println("Client [" + client.toString() + "] changes nickname on [" + nickname + "]");
-            } else if ("ls".equals(command)) {
-                sendMessage(getFilesList().concat("\n"), selector, client);
-            } else if ("exit".equals(command)) {
-                System.out.println("Client logged out. IP: " + channel.getRemoteAddress());
-                channel.close();
-                return;
+    /**
+     * Выполнение всех полностью пришедших строк из буфера чтения.
+     * Неполная строка остается в буфере до следующего чтения.
+     */
+    private void processCommands(SelectionKey key, Session session) throws IOException {
+        ByteBuffer in = session.in;
+        in.flip();
+        int end;
+        while (!isBlocked(session) && key.isValid() && (end = CommandParser.lineEnd(in)) >= 0) {
+            int start = in.position();
+            in.position(end + 1);
+            if (session.skipLine) {
+                // хвост слишком длинной строки
+                session.skipLine = false;
+                continue;
             }
+            execute(key, session, in, start, CommandParser.trimEnd(in, start, end));
         }
+        if (!key.isValid()) {
+            // соединение закрыто командой, буферы уже возвращены в пул
+            return;
+        }
+        session.waiting = isBlocked(session) && in.hasRemaining();
+        in.compact();
+        if (!in.hasRemaining() && !isBlocked(session)) {
+            // строка не помещается в буфер - отбрасываем ее до конца
+            in.clear();
+            if (!session.skipLine) {
+                session.skipLine = true;
+                send(session, TOO_LONG);
+                send(session, session.prompt);
+            }
+        }
+        flush(key, session);
+    }
 
-        for (Map.Entry<String, SocketAddress> clientInfo : clients.entrySet()) {
-            if (clientInfo.getValue().equals(client)) {
-                nickname = clientInfo.getKey();
+    private void execute(SelectionKey key, Session session, ByteBuffer in, int start, int end) throws IOException {
+        long started = System.nanoTime();
+        Histogram latency = dispatch(key, session, in, start, end);
+        if (latency != null) {
+            latency.recordSince(started);
+        }
+    }
+
+    /**
+     * @return гистограмма команды или null, если время команды запишет рабочий поток
+     */
+    private Histogram dispatch(SelectionKey key, Session session, ByteBuffer in, int start, int end)
+        throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Histogram latency = TelnetMetrics.UNKNOWN;
+        if (CommandParser.is(in, start, end, HELP_WORD)) {
+            latency = TelnetMetrics.HELP;
+            send(session, HELP);
+        } else if (isCommand(in, start, end, NICK_WORD)) {
+            latency = TelnetMetrics.NICK;
+            int nameStart = skipSpaces(in, start + NICK_WORD.length, end);
+            String nickname = CommandParser.string(in, nameStart, wordEnd(in, nameStart, end));
+            if (nickname.isEmpty() || nickname.indexOf(',') >= 0) {
+                send(session, INVALID_NICK);
+            } else if (!registry.rename(session, nickname)) {
+                send(session, NICK_TAKEN);
+            } else {
+                session.prompt = (nickname + ">: ").getBytes(StandardCharsets.UTF_8);
+                Log.info("Client [" + session.address + "] changes nickname on [" + nickname + "]");
+            }
+        } else if (isCommand(in, start, end, MESSAGE_WORD)) {
+            latency = TelnetMetrics.MESSAGE;
+            int targetsStart = skipSpaces(in, start + MESSAGE_WORD.length, end);
+            int targetsEnd = wordEnd(in, targetsStart, end);
+            byte[] message = message(session, in, skipSpaces(in, targetsEnd, end), end);
+            for (String target : CommandParser.string(in, targetsStart, targetsEnd).split(",")) {
+                Session recipient = findSession(target);
+                if (recipient == null || !post(recipient, message)) {
+                    send(session, ("User " + target + " is not available\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } else if (isCommand(in, start, end, BROADCAST_WORD)) {
+            latency = TelnetMetrics.BROADCAST;
+            byte[] message = message(session, in, skipSpaces(in, start + BROADCAST_WORD.length, end), end);
+            for (Session recipient : registry.all()) {
+                if (recipient != session) {
+                    post(recipient, message);
+                }
+            }
+        } else if (isCommand(in, start, end, TOUCH_WORD)) {
+            String name = argument(in, start + TOUCH_WORD.length, end);
+            String directory = session.directory;
+            submit(session, TelnetMetrics.TOUCH, () -> {
+                storage.touch(storage.name(directory, name));
+                return NO_REPLY;
+            });
+            return null;
+        } else if (isCommand(in, start, end, MKDIR_WORD)) {
+            String name = argument(in, start + MKDIR_WORD.length, end);
+            String directory = session.directory;
+            submit(session, TelnetMetrics.MKDIR, () -> {
+                storage.mkdir(storage.name(directory, name));
+                return NO_REPLY;
+            });
+            return null;
+        } else if (isCommand(in, start, end, CD_WORD)) {
+            String path = argument(in, start + CD_WORD.length, end);
+            String directory = session.directory;
+            submit(session, TelnetMetrics.CD, () -> {
+                // путь от корня хранилища начинается с '/', пустой путь - сам корень
+                String target = path.startsWith("/") || path.isEmpty()
+                    ? storage.name("", path.isEmpty() ? "" : path.substring(1))
+                    : storage.name(directory, path);
+                if (!target.isEmpty() && !Files.isDirectory(storage.resolve(target))) {
+                    return ("No such directory: " + path + "\n").getBytes(StandardCharsets.UTF_8);
+                }
+                // каталог принадлежит реактору; задача встает в очередь раньше ответа команды
+                session.reactor.execute(() -> session.directory = target);
+                return NO_REPLY;
+            });
+            return null;
+        } else if (isCommand(in, start, end, RM_WORD)) {
+            String name = argument(in, start + RM_WORD.length, end);
+            String directory = session.directory;
+            submit(session, TelnetMetrics.RM, () -> storage.remove(storage.name(directory, name))
+                ? NO_REPLY : ("No such file: " + name + "\n").getBytes(StandardCharsets.UTF_8));
+            return null;
+        } else if (isCommand(in, start, end, COPY_WORD)) {
+            latency = TelnetMetrics.COPY;
+            int sourceStart = skipSpaces(in, start + COPY_WORD.length, end);
+            int sourceEnd = wordEnd(in, sourceStart, end);
+            int targetStart = skipSpaces(in, sourceEnd, end);
+            if (sourceStart == sourceEnd || targetStart == end) {
+                send(session, INVALID_COPY);
+            } else {
+                String source = CommandParser.string(in, sourceStart, sourceEnd);
+                String target = CommandParser.string(in, targetStart, end);
+                String directory = session.directory;
+                submit(session, latency, () -> storage.copy(storage.name(directory, source),
+                    storage.name(directory, target)) != null
+                    ? NO_REPLY : ("No such file: " + source + "\n").getBytes(StandardCharsets.UTF_8));
+                return null;
             }
+        } else if (isCommand(in, start, end, CAT_WORD)) {
+            if (startFile(session, argument(in, start + CAT_WORD.length, end))) {
+                // приглашение будет выведено после содержимого файла
+                return TelnetMetrics.CAT;
+            }
+            latency = TelnetMetrics.CAT;
+        } else if (isCommand(in, start, end, LS_WORD)) {
+            if (startListing(key, session, in, start + LS_WORD.length, end)) {
+                // приглашение будет выведено после списка
+                return TelnetMetrics.LS;
+            }
+            latency = TelnetMetrics.LS;
+        } else if (CommandParser.is(in, start, end, EXIT_WORD)) {
+            Log.info("Client logged out. IP: " + channel.getRemoteAddress());
+            close(key);
+            return TelnetMetrics.EXIT;
+        }
+        send(session, session.prompt);
+        return latency;
+    }
+
+    private static String argument(ByteBuffer in, int start, int end) {
+        return CommandParser.string(in, skipSpaces(in, start, end), end);
+    }
+
+    /**
+     * Файловая команда в рабочем потоке. Ответ и приглашение отправляет реактор сессии,
+     * до этого следующие команды клиента не выполняются.
+     */
+    private void submit(Session session, Histogram latency, FileCommand command) {
+        session.busy = true;
+        long submitted = System.nanoTime();
+        try {
+            workers.execute(() -> {
+                byte[] reply;
+                try {
+                    reply = command.run();
+                } catch (IOException | RuntimeException e) {
+                    reply = ("Error: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+                }
+                latency.recordSince(submitted);
+                byte[] result = reply;
+                session.reactor.execute(() -> completed(session, result));
+            });
+        } catch (RejectedExecutionException e) {
+            session.busy = false;
+            send(session, BUSY);
+            send(session, session.prompt);
         }
-        sendName(channel, nickname);
     }
 
-    private void sendName(SocketChannel channel, String nickname) throws IOException {
-        if (nickname.isEmpty()) {
-            nickname = channel.getRemoteAddress().toString();
+    private void completed(Session session, byte[] reply) {
+        SelectionKey key = session.key;
+        if (!key.isValid()) {
+            // клиент отключился, пока команда выполнялась
+            return;
+        }
+        session.busy = false;
+        send(session, reply);
+        send(session, session.prompt);
+        try {
+            flush(key, session);
+        } catch (IOException e) {
+            Log.info("Client connection failed: " + e.getMessage());
+            close(key);
         }
-        channel.write(
-            ByteBuffer.wrap(nickname
-                .concat(">: ")
-                .getBytes(StandardCharsets.UTF_8)
-            )
-        );
     }
 
-    private String getFilesList() {
-        return String.join("\t", new File("server").list());
+    private interface FileCommand {
+        byte[] run() throws IOException;
     }
 
-    private void sendMessage(String message, Selector selector, SocketAddress client) throws IOException {
-        for (SelectionKey key : selector.keys()) {
-            if (key.isValid() && key.channel() instanceof SocketChannel) {
-                if (((SocketChannel) key.channel()).getRemoteAddress().equals(client)) {
-                    ((SocketChannel) key.channel())
-                        .write(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    private static byte[] message(Session from, ByteBuffer in, int start, int end) {
+        String name = from.nickname != null ? from.nickname : from.address.toString();
+        return ("[" + name + "] " + CommandParser.string(in, start, end) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Сессия по имени клиента или по адресу вида /127.0.0.1:50000. Имена хостов не разрешаются:
+     * поиск в DNS остановил бы все сессии реактора.
+     */
+    private Session findSession(String target) {
+        Session session = registry.byNickname(target);
+        if (session != null || target.indexOf(':') < 0) {
+            return session;
+        }
+        return registry.byAddress(target);
+    }
+
+    /**
+     * Передача сообщения реактору получателя. Если получатель обслуживается другим реактором,
+     * сообщение считается отправленным: проверки выполнит его реактор.
+     */
+    private boolean post(Session recipient, byte[] message) {
+        if (recipient.reactor.inReactorThread()) {
+            return deliver(recipient, message);
+        }
+        recipient.reactor.execute(() -> deliver(recipient, message));
+        return true;
+    }
+
+    /**
+     * Сообщение в очередь другого клиента. Запись произойдет в его очередь обработки ключей,
+     * поэтому здесь только добавляется OP_WRITE. Во время вывода списка или файла сообщение
+     * откладывается до конца вывода, клиенту, который не успевает читать, не доставляется.
+     */
+    private boolean deliver(Session recipient, byte[] message) {
+        SelectionKey key = recipient.key;
+        if (key == null || !key.isValid() || recipient.output.isAboveHighWatermark()) {
+            return false;
+        }
+        if (recipient.stream != null) {
+            if (recipient.deferred.size() >= Session.MAX_DEFERRED) {
+                return false;
+            }
+            recipient.deferred.addLast(message);
+            return true;
+        }
+        send(recipient, message);
+        send(recipient, recipient.prompt);
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        return true;
+    }
+
+    /**
+     * Запуск вывода списка файлов. Пока список не выведен целиком, команды от клиента не выполняются.
+     *
+     * @return true, если вывод продолжится по готовности канала к записи
+     */
+    private boolean startListing(SelectionKey key, Session session, ByteBuffer in, int start, int end)
+        throws IOException {
+        String pattern = "";
+        int pageSize = 0;
+        String token = null;
+        DirectoryListing listing;
+        try {
+            int position = skipSpaces(in, start, end);
+            while (position < end) {
+                int wordEnd = wordEnd(in, position, end);
+                int next = skipSpaces(in, wordEnd, end);
+                if (CommandParser.is(in, position, wordEnd, PAGE_SIZE_FLAG) && next < end) {
+                    wordEnd = wordEnd(in, next, end);
+                    pageSize = CommandParser.parseInt(in, next, wordEnd);
+                } else if (CommandParser.is(in, position, wordEnd, TOKEN_FLAG) && next < end) {
+                    wordEnd = wordEnd(in, next, end);
+                    token = CommandParser.string(in, next, wordEnd);
+                } else {
+                    pattern = CommandParser.string(in, position, wordEnd);
                 }
+                position = skipSpaces(in, wordEnd, end);
             }
+            listing = new DirectoryListing(storage, pool, session.directory, pattern, pageSize, token);
+        } catch (IllegalArgumentException e) {
+            send(session, INVALID_LS);
+            return false;
+        }
+        session.stream = listing;
+        return true;
+    }
+
+    /**
+     * Запуск вывода файла. Имя ищется в индексе, сам файл открывается уже при записи в сокет.
+     *
+     * @return true, если вывод продолжится по готовности канала к записи
+     */
+    private boolean startFile(Session session, String name) {
+        StoredFile file;
+        try {
+            file = storage.open(storage.name(session.directory, name));
+        } catch (IOException e) {
+            send(session, ("Error: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+            return false;
+        }
+        if (file == null) {
+            send(session, ("No such file: " + name + "\n").getBytes(StandardCharsets.UTF_8));
+            return false;
+        }
+        session.stream = file.isCompressed() ? new InflatedContent(file, pool) : new FileContent(file, transfer);
+        return true;
+    }
+
+    private void handleWrite(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        flush(key, session);
+    }
+
+    private void send(Session session, byte[] message) {
+        session.output.add(message);
+    }
+
+    /**
+     * Команды клиента ждут: выполняется файловая команда, выводится список или файл
+     * или очередь ответов слишком велика
+     */
+    private boolean isBlocked(Session session) {
+        return session.busy || session.stream != null || session.readPaused
+            || session.output.isAboveHighWatermark();
+    }
+
+    /**
+     * Запись накопленных ответов, затем продолжение вывода списка или файла.
+     * OP_WRITE остается в интересах ключа, только пока есть что писать; OP_READ снимается,
+     * пока очередь ответов не опустится ниже нижнего порога.
+     */
+    private void flush(SelectionKey key, Session session) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (session.output.flush(channel) && session.stream != null && session.stream.writeTo(channel)) {
+            session.stream.release();
+            session.stream = null;
+            send(session, session.prompt);
+            while (!session.deferred.isEmpty()) {
+                send(session, session.deferred.pollFirst());
+                send(session, session.prompt);
+            }
+            session.output.flush(channel);
+        }
+        if (session.output.isAboveHighWatermark()) {
+            session.readPaused = true;
+        } else if (session.readPaused && session.output.isBelowLowWatermark()) {
+            session.readPaused = false;
+        }
+        boolean blocked = isBlocked(session);
+        int ops = blocked ? 0 : SelectionKey.OP_READ;
+        if (!session.output.isEmpty() || session.stream != null) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+        if (session.waiting && !blocked) {
+            // команды, пришедшие, пока вывод или файловая команда не закончились
+            session.waiting = false;
+            processCommands(key, session);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // соединение уже разорвано
+        }
+        Object attachment = key.attach(null);
+        if (attachment instanceof Session) {
+            Session session = (Session) attachment;
+            registry.remove(session);
+            session.release(pool);
+            session.reactor.connectionClosed();
         }
     }
 
-    private void handleAccept(SelectionKey key, Selector selector) throws IOException {
-        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+    /**
+     * Регистрация принятого соединения в потоке реактора
+     */
+    void accepted(TelnetReactor reactor, SocketChannel channel, Selector selector) throws IOException {
         channel.configureBlocking(false);
-        System.out.println("Client accepted. IP: " + channel.getRemoteAddress());
-        channel.register(selector, SelectionKey.OP_READ, "some attach");
-        channel.write(ByteBuffer.wrap("Hello user!\n".getBytes(StandardCharsets.UTF_8)));
-        channel.write(ByteBuffer.wrap("Enter --help for support info\n".getBytes(StandardCharsets.UTF_8)));
-        sendName(channel, "");
+        // ответ и приглашение уходят отдельными записями, без задержки Нейгла
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SocketAddress address = channel.getRemoteAddress();
+        TelnetMetrics.ACCEPTED.increment();
+        Log.info("Client accepted by " + reactor.name() + ". IP: " + address);
+        Session session = new Session(pool, reactor, address, (address + ">: ").getBytes(StandardCharsets.UTF_8));
+        session.key = channel.register(selector, SelectionKey.OP_READ, session);
+        registry.add(session);
+        send(session, GREETING);
+        send(session, session.prompt);
+        flush(session.key, session);
     }
 
     public static void main(String[] args) throws IOException {
         new NioTelnetServer();
     }
-}
\ No newline at end of file
+}
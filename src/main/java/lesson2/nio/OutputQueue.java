@@ -0,0 +1,110 @@
+package lesson2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import lesson1.common.SlabBufferPool;
+
+/**
+ * Очередь ответов соединения. Данные копируются в буферы из пула и уходят в сокет
+ * одной записью с несколькими буферами (gathering write). Ничего не теряется при частичной записи.
+ * <p>
+ * Объем очереди ограничивается снаружи по двум порогам: выше верхнего сервер перестает читать
+ * команды клиента, ниже нижнего снова начинает.
+ */
+class OutputQueue {
+    static final int CHUNK_SIZE = 8 * 1024;
+    static final int HIGH_WATERMARK = 256 * 1024;
+    static final int LOW_WATERMARK = 64 * 1024;
+    private static final int MAX_GATHER = 16;
+
+    private final SlabBufferPool pool;
+    // буферы в режиме чтения: position - начало неотправленных данных, limit - конец записанных
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private long pending;
+
+    OutputQueue(SlabBufferPool pool) {
+        this.pool = pool;
+    }
+
+    void add(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            ByteBuffer tail = chunks.peekLast();
+            if (tail == null || tail.limit() == tail.capacity()) {
+                tail = pool.acquire(CHUNK_SIZE).flip();
+                chunks.addLast(tail);
+            }
+            int length = Math.min(bytes.length - offset, tail.capacity() - tail.limit());
+            int position = tail.position();
+            int limit = tail.limit();
+            tail.limit(limit + length).position(limit);
+            tail.put(bytes, offset, length);
+            tail.position(position);
+            offset += length;
+        }
+        pending += bytes.length;
+        TelnetMetrics.QUEUED_BYTES.add(bytes.length);
+    }
+
+    boolean isEmpty() {
+        return pending == 0;
+    }
+
+    long pending() {
+        return pending;
+    }
+
+    boolean isAboveHighWatermark() {
+        return pending > HIGH_WATERMARK;
+    }
+
+    boolean isBelowLowWatermark() {
+        return pending < LOW_WATERMARK;
+    }
+
+    /**
+     * Запись в сокет, сколько он примет
+     *
+     * @return true, если очередь опустела
+     */
+    boolean flush(SocketChannel channel) throws IOException {
+        while (pending > 0) {
+            int count = 0;
+            for (ByteBuffer chunk : chunks) {
+                gather[count++] = chunk;
+                if (count == MAX_GATHER) {
+                    break;
+                }
+            }
+            long written = channel.write(gather, 0, count);
+            pending -= written;
+            TelnetMetrics.BYTES_OUT.add(written);
+            TelnetMetrics.QUEUED_BYTES.add(-written);
+            while (!chunks.isEmpty() && !chunks.peekFirst().hasRemaining()
+                && (chunks.size() > 1 || chunks.peekFirst().limit() == chunks.peekFirst().capacity())) {
+                // опустевший последний буфер с местом остается для следующих ответов
+                pool.release(chunks.pollFirst());
+            }
+            if (written == 0) {
+                break;
+            }
+        }
+        for (int i = 0; i < MAX_GATHER; i++) {
+            gather[i] = null;
+        }
+        return pending == 0;
+    }
+
+    void release() {
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        TelnetMetrics.QUEUED_BYTES.add(-pending);
+        pending = 0;
+    }
+}
@@ -0,0 +1,19 @@
+package lesson2.nio;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Длинный ответ, который выводится по частям после очереди ответов: список файлов или содержимое файла.
+ * Пока он не выведен целиком, команды клиента не выполняются.
+ */
+interface ReplyStream {
+    /**
+     * Запись в канал, сколько он примет
+     *
+     * @return true, если вывод закончен
+     */
+    boolean writeTo(SocketChannel channel) throws IOException;
+
+    void release();
+}
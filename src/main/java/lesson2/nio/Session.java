@@ -0,0 +1,84 @@
+package lesson2.nio;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+
+import lesson1.common.SlabBufferPool;
+
+/**
+ * Состояние соединения telnet-сервера, хранится во вложении ключа селектора.
+ * Меняется только в потоке реактора, которому принадлежит соединение.
+ * Буфер чтения и очередь ответов свои у каждого соединения, память для них берется из пула.
+ */
+class Session {
+    static final int IN_BUFFER_SIZE = 512;
+    static final int MAX_DEFERRED = 1024;
+
+    final SocketAddress address;
+    final TelnetReactor reactor;
+    SelectionKey key;
+    /**
+     * Имя клиента или null, пока он не назвался
+     */
+    volatile String nickname;
+    /**
+     * Принятые, но еще не разобранные байты команд (режим записи)
+     */
+    final ByteBuffer in;
+    /**
+     * Ответы, которые еще не ушли в сокет
+     */
+    final OutputQueue output;
+    /**
+     * Приглашение "имя>: " в байтах, пересчитывается только при смене имени
+     */
+    byte[] prompt;
+    /**
+     * Отбрасывать байты до конца строки: начало строки не поместилось в буфер
+     */
+    boolean skipLine;
+    /**
+     * Список файлов или содержимое файла, которое еще выводится клиенту
+     */
+    ReplyStream stream;
+    /**
+     * Чтение команд остановлено: очередь ответов выше верхнего порога
+     */
+    boolean readPaused;
+    /**
+     * Текущий каталог хранилища, "" - корень. Рабочий поток команды cd только проверяет каталог,
+     * новое значение присваивает реактор до ответа на команду.
+     */
+    String directory = "";
+    /**
+     * Файловая команда выполняется в рабочем потоке, следующие команды ждут ее завершения
+     */
+    boolean busy;
+    /**
+     * В буфере остались команды, отложенные на время вывода или файловой команды
+     */
+    boolean waiting;
+    /**
+     * Сообщения от других клиентов, пришедшие во время вывода списка или файла
+     */
+    final ArrayDeque<byte[]> deferred = new ArrayDeque<>();
+
+    Session(SlabBufferPool pool, TelnetReactor reactor, SocketAddress address, byte[] prompt) {
+        this.reactor = reactor;
+        this.address = address;
+        this.in = pool.acquire(IN_BUFFER_SIZE);
+        this.output = new OutputQueue(pool);
+        this.prompt = prompt;
+    }
+
+    void release(SlabBufferPool pool) {
+        if (stream != null) {
+            stream.release();
+            stream = null;
+        }
+        pool.release(in);
+        output.release();
+    }
+}
@@ -0,0 +1,68 @@
+package lesson2.nio;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Сессии подключенных клиентов с поиском по имени и по адресу за O(1).
+ * Индексы конкурентные: искать и рассылать можно из любого потока.
+ * Адрес ищется по тексту вида 127.0.0.1:50000, без обращения к DNS.
+ */
+class SessionRegistry {
+    private final ConcurrentHashMap<String, Session> byNickname = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Session> byAddress = new ConcurrentHashMap<>();
+
+    void add(Session session) {
+        byAddress.put(key(session.address), session);
+    }
+
+    /**
+     * Смена имени сессии
+     *
+     * @return false, если имя занято другой сессией
+     */
+    boolean rename(Session session, String nickname) {
+        Session owner = byNickname.putIfAbsent(nickname, session);
+        if (owner != null && owner != session) {
+            return false;
+        }
+        if (session.nickname != null && !session.nickname.equals(nickname)) {
+            byNickname.remove(session.nickname, session);
+        }
+        session.nickname = nickname;
+        return true;
+    }
+
+    Session byNickname(String nickname) {
+        return byNickname.get(nickname);
+    }
+
+    /**
+     * @param address адрес и порт клиента, как их показывает сервер; ведущий '/' допускается
+     */
+    Session byAddress(String address) {
+        return byAddress.get(address.startsWith("/") ? address.substring(1) : address);
+    }
+
+    Collection<Session> all() {
+        return byAddress.values();
+    }
+
+    void remove(Session session) {
+        byAddress.remove(key(session.address), session);
+        if (session.nickname != null) {
+            byNickname.remove(session.nickname, session);
+        }
+    }
+
+    // адрес в виде литерала: getHostAddress не разрешает имя
+    private static String key(SocketAddress address) {
+        if (address instanceof InetSocketAddress) {
+            InetSocketAddress inet = (InetSocketAddress) address;
+            return inet.getAddress().getHostAddress() + ":" + inet.getPort();
+        }
+        return address.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package lesson2.nio;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+import lesson1.common.SlabBufferPool;
+import lesson1.metrics.Histogram;
+import lesson1.metrics.Log;
+import lesson1.metrics.MetricsRegistry;
+
+/**
+ * Метрики telnet-сервера. Создаются при загрузке класса, запись из реакторов и рабочих потоков
+ * не выделяет память.
+ */
+final class TelnetMetrics {
+    static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    static final LongAdder ACCEPTED = REGISTRY.counter("telnet_connections_accepted_total",
+        "Accepted telnet connections");
+    static final LongAdder BYTES_IN = REGISTRY.counter("telnet_received_bytes_total",
+        "Bytes read from telnet sockets");
+    static final LongAdder BYTES_OUT = REGISTRY.counter("telnet_sent_bytes_total",
+        "Bytes written to telnet sockets");
+    static final LongAdder QUEUED_BYTES = new LongAdder();
+    static final Histogram REACTOR_LOOP = REGISTRY.histogram("telnet_reactor_loop_seconds",
+        "Time a reactor spends handling ready keys, new connections and tasks in one pass");
+
+    static final Histogram HELP = command("help");
+    static final Histogram NICK = command("nick");
+    static final Histogram MESSAGE = command("msg");
+    static final Histogram BROADCAST = command("all");
+    static final Histogram TOUCH = command("touch");
+    static final Histogram MKDIR = command("mkdir");
+    static final Histogram CD = command("cd");
+    static final Histogram RM = command("rm");
+    static final Histogram COPY = command("copy");
+    static final Histogram CAT = command("cat");
+    static final Histogram LS = command("ls");
+    static final Histogram EXIT = command("exit");
+    static final Histogram UNKNOWN = command("unknown");
+
+    private static volatile TelnetReactor[] reactors = new TelnetReactor[0];
+    private static volatile ThreadPoolExecutor workers;
+
+    static {
+        REGISTRY.gauge("telnet_output_queued_bytes", "Bytes waiting in connection output queues",
+            QUEUED_BYTES::sum);
+        REGISTRY.gauge("telnet_pool_bytes_in_use", "Bytes of pooled direct buffers held by connections",
+            SlabBufferPool.shared()::bytesInUse);
+        REGISTRY.counter("telnet_log_dropped_total", "Log records dropped because the log queue was full",
+            Log::dropped);
+        REGISTRY.gauge("telnet_connections", "Open telnet connections", TelnetMetrics::connections);
+        REGISTRY.gauge("telnet_worker_queue", "File commands waiting for a worker", () -> {
+            ThreadPoolExecutor current = workers;
+            return current != null ? current.getQueue().size() : 0;
+        });
+        REGISTRY.gauge("telnet_workers_active", "Workers running a file command", () -> {
+            ThreadPoolExecutor current = workers;
+            return current != null ? current.getActiveCount() : 0;
+        });
+    }
+
+    private TelnetMetrics() {
+    }
+
+    private static Histogram command(String name) {
+        return REGISTRY.histogram("telnet_command_seconds{command=\"" + name + "\"}",
+            "Command latency; file commands include the wait for a worker, cat and ls - only the start of output");
+    }
+
+    /**
+     * Сервер, с которого читаются соединения и очередь рабочих потоков; следующий сервер
+     * в том же процессе заменяет предыдущий
+     */
+    static void register(TelnetReactor[] reactors, ThreadPoolExecutor workers) {
+        TelnetMetrics.reactors = reactors;
+        TelnetMetrics.workers = workers;
+    }
+
+    private static long connections() {
+        long total = 0;
+        for (TelnetReactor reactor : reactors) {
+            total += reactor.connections();
+        }
+        return total;
+    }
+}
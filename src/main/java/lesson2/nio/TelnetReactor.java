@@ -0,0 +1,118 @@
+package lesson2.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import lesson1.metrics.Log;
+
+/**
+ * Поток с собственным селектором, обслуживающий часть соединений telnet-сервера.
+ * Состояние сессии меняется только в потоке ее реактора: другие потоки передают ему задачи через {@link #execute}.
+ */
+class TelnetReactor implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final NioTelnetServer server;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    // обработка через Consumer не создает итератор по выбранным ключам на каждый проход
+    private final Consumer<SelectionKey> handler;
+    private volatile Thread thread;
+    // время обработки ключей внутри select текущего прохода
+    private long busy;
+
+    TelnetReactor(String name, NioTelnetServer server) throws IOException {
+        this.name = name;
+        this.server = server;
+        this.selector = Selector.open();
+        this.handler = key -> {
+            long start = System.nanoTime();
+            server.handle(key);
+            busy += System.nanoTime() - start;
+        };
+    }
+
+    String name() {
+        return name;
+    }
+
+    int connections() {
+        return connections.get();
+    }
+
+    /**
+     * Передача принятого соединения в реактор. Регистрация выполняется в потоке реактора.
+     */
+    void register(SocketChannel channel) {
+        connections.incrementAndGet();
+        pending.offer(channel);
+        selector.wakeup();
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Выполнение задачи в потоке реактора на следующем проходе его цикла
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (selector.isOpen()) {
+            try {
+                busy = 0;
+                selector.select(handler);
+                long start = System.nanoTime();
+                registerPending();
+                runTasks();
+                TelnetMetrics.REACTOR_LOOP.record(busy + System.nanoTime() - start);
+            } catch (IOException e) {
+                Log.error(name + ": selector error", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error(name + ": task failed", e);
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            try {
+                server.accepted(this, channel, selector);
+            } catch (IOException e) {
+                Log.info(name + ": cannot register client: " + e.getMessage());
+                connectionClosed();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}